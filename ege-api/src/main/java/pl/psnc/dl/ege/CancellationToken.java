@@ -0,0 +1,346 @@
+package pl.psnc.dl.ege;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import pl.psnc.dl.ege.exception.EGEException;
+
+/**
+ * <p>
+ * Cancellation token of conversion.
+ * </p>
+ * Token is cancelled explicitly (e.g. when client of conversion is
+ * disconnected) or when its deadline passes. Cancelled token interrupts
+ * all registered threads and closes all registered resources - stages of
+ * conversion blocked on pipes, external processes etc.<br/>
+ * Token of conversion is bound to threads performing the conversion, so
+ * converters can register their own resources with token returned by
+ * {@link #current()}.<br/>
+ * Child token is cancelled together with its parent, but can be cancelled
+ * alone, e.g. to stop stages of single failed conversion of many.
+ */
+public final class CancellationToken
+{
+
+	private static final ThreadLocal<CancellationToken> CURRENT = new ThreadLocal<CancellationToken>();
+
+	/*
+	 * Cancels tokens after their deadlines.
+	 */
+	private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(
+			1, new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "ege-cancellation");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final long deadline;
+
+	private volatile String reason = null;
+
+	private volatile boolean closed = false;
+
+	/*
+	 * Registered threads and resources - guarded by 'this'.
+	 */
+	private final Set<Thread> threads = new LinkedHashSet<Thread>();
+
+	private final Set<Closeable> resources = new LinkedHashSet<Closeable>();
+
+	private ScheduledFuture<?> timeout = null;
+
+	private final CancellationToken parent;
+
+	private final Closeable link;
+
+
+	/**
+	 * Creates token without deadline.
+	 */
+	public CancellationToken()
+	{
+		this(null, 0);
+	}
+
+
+	/**
+	 * Creates token with deadline.
+	 *
+	 * @param timeout
+	 *            time to deadline in milliseconds (values lower than 1 - no
+	 *            deadline)
+	 */
+	public CancellationToken(long timeout)
+	{
+		this(null, timeout);
+	}
+
+
+	/**
+	 * Creates child token, which is cancelled together with parent token.
+	 *
+	 * @param parent
+	 */
+	public CancellationToken(CancellationToken parent)
+	{
+		this(parent, 0);
+	}
+
+
+	/**
+	 * Creates child token with its own deadline; the earlier of deadlines of
+	 * child and parent applies.
+	 *
+	 * @param parent
+	 *            parent token ('null' - no parent)
+	 * @param timeout
+	 *            time to deadline in milliseconds (values lower than 1 - no
+	 *            own deadline)
+	 */
+	public CancellationToken(final CancellationToken parent, long timeout)
+	{
+		long own = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+		long inherited = parent == null ? 0 : parent.deadline;
+		deadline = own == 0 ? inherited : inherited == 0 ? own : Math.min(own,
+			inherited);
+		if (timeout > 0) {
+			this.timeout = TIMER.schedule(new Runnable() {
+				public void run()
+				{
+					cancel("Conversion timed out.");
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+		this.parent = parent;
+		if (parent != null) {
+			link = new Closeable() {
+				public void close()
+				{
+					cancel(parent.getReason());
+				}
+			};
+			parent.register(link);
+		}
+		else {
+			link = null;
+		}
+	}
+
+
+	/**
+	 * Returns token bound to current thread or new token without deadline,
+	 * if there is no bound token.
+	 */
+	public static CancellationToken current()
+	{
+		CancellationToken token = CURRENT.get();
+		return token == null ? new CancellationToken() : token;
+	}
+
+
+	/**
+	 * Returns token bound to current thread or 'null' if there is no bound
+	 * token.
+	 */
+	public static CancellationToken bound()
+	{
+		return CURRENT.get();
+	}
+
+
+	/**
+	 * Binds token to current thread.
+	 */
+	public void bind()
+	{
+		CURRENT.set(this);
+	}
+
+
+	/**
+	 * Removes token bound to current thread.
+	 */
+	public static void unbind()
+	{
+		CURRENT.remove();
+	}
+
+
+	/**
+	 * Cancels token : interrupts registered threads and closes registered
+	 * resources. Subsequent calls have no effect.
+	 *
+	 * @param reason
+	 *            message of cancellation
+	 */
+	public void cancel(String reason)
+	{
+		List<Thread> toInterrupt;
+		List<Closeable> toClose;
+		synchronized (this) {
+			if (this.reason != null) {
+				return;
+			}
+			this.reason = reason == null ? "Conversion cancelled." : reason;
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			toInterrupt = new ArrayList<Thread>(threads);
+			toClose = new ArrayList<Closeable>(resources);
+			threads.clear();
+			resources.clear();
+		}
+		for (Thread t : toInterrupt) {
+			t.interrupt();
+		}
+		for (Closeable c : toClose) {
+			try {
+				c.close();
+			}
+			catch (Exception ex) {
+				// resource is already broken
+			}
+		}
+	}
+
+
+	/**
+	 * Returns 'true' if token was cancelled or its deadline passed.
+	 */
+	public boolean isCancelled()
+	{
+		if (reason == null && deadline > 0
+				&& System.currentTimeMillis() >= deadline) {
+			cancel("Conversion timed out.");
+		}
+		return reason != null;
+	}
+
+
+	/**
+	 * Returns message of cancellation or 'null' if token is not cancelled.
+	 */
+	public String getReason()
+	{
+		return reason;
+	}
+
+
+	/**
+	 * Returns milliseconds left to deadline or Long.MAX_VALUE if token has no
+	 * deadline.
+	 */
+	public long getRemaining()
+	{
+		if (deadline == 0) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+
+
+	/**
+	 * Throws EGEException if token is cancelled.
+	 *
+	 * @throws EGEException
+	 */
+	public void check()
+		throws EGEException
+	{
+		if (isCancelled()) {
+			throw new EGEException(reason);
+		}
+	}
+
+
+	/**
+	 * Registers thread, which is interrupted when token is cancelled; thread
+	 * of already cancelled token is interrupted at once.
+	 */
+	public void register(Thread thread)
+	{
+		synchronized (this) {
+			if (reason == null) {
+				threads.add(thread);
+				return;
+			}
+		}
+		thread.interrupt();
+	}
+
+
+	/**
+	 * Registers resource, which is closed when token is cancelled; resource
+	 * of already cancelled token is closed at once.
+	 */
+	public void register(Closeable resource)
+	{
+		synchronized (this) {
+			if (reason == null) {
+				resources.add(resource);
+				return;
+			}
+		}
+		try {
+			resource.close();
+		}
+		catch (IOException ex) {
+			// resource is already broken
+		}
+	}
+
+
+	public synchronized void unregister(Thread thread)
+	{
+		threads.remove(thread);
+	}
+
+
+	public synchronized void unregister(Closeable resource)
+	{
+		resources.remove(resource);
+	}
+
+
+	/**
+	 * Returns 'true' if token was released by {@link #close()}.
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+
+	/**
+	 * Releases token after conversion : stops its deadline and forgets
+	 * registered threads and resources without cancelling them.
+	 */
+	public void close()
+	{
+		synchronized (this) {
+			closed = true;
+			if (timeout != null) {
+				timeout.cancel(false);
+				timeout = null;
+				TIMER.purge();
+			}
+			threads.clear();
+			resources.clear();
+		}
+		if (parent != null) {
+			parent.unregister(link);
+		}
+	}
+
+}
@@ -96,6 +96,29 @@ public interface EGE
 		throws IOException, ValidatorException, EGEException;
 	
 	
+	/**
+	 * <p>Method performs fail-fast validation : validation is aborted on
+	 * the first fatal error or when number of errors reaches errorLimit
+	 * (values lower than 1 abort only on fatal errors).</p>
+	 * Useful when only status of validation is important, e.g. in check
+	 * performed before conversion.
+	 * 
+	 * @param inputData
+	 *            input stream that contains necessary data
+	 * @param inputDataType
+	 *            validation argument
+	 * @param errorLimit
+	 *            number of errors that aborts validation
+	 * @return instance of {@link ValidationResult}
+	 * @throws IOException
+	 * @throws {@link ValidatorException}
+	 * @throws {@link EGEException}
+	 */
+	public ValidationResult performValidation(final InputStream inputData,
+			final DataType inputDataType, int errorLimit)
+		throws IOException, ValidatorException, EGEException;
+	
+	
 	/**
 	 * Method performs recognition of the MIME type of an input data. If any of
 	 * the loaded {@link Recognizer} implementations recognizes MIME type,
@@ -130,6 +153,54 @@ public interface EGE
 	public void performConversion(final InputStream inputStream,
 			OutputStream outputStream, ConversionsPath path)
 		throws ConverterException, EGEException, IOException;
+
+	/**
+	 * Performs sequence of conversions, which can be cancelled by selected
+	 * token : cancelled conversion stops all its stages and throws
+	 * EGEException.
+	 * 
+	 * @param inputStream
+	 *            source of data to convert
+	 * @param outputStream
+	 *            output stream for converted data
+	 * @param path
+	 *            defines sequence of conversion.
+	 * @param token
+	 *            cancellation token of conversion
+	 * @throws EGEException
+	 *             if unexpected error occurred within method or conversion
+	 *             was cancelled.
+	 * @throws ConverterException
+	 *             if during conversion method an exception occurred.
+	 */
+	public void performConversion(final InputStream inputStream,
+			OutputStream outputStream, ConversionsPath path,
+			CancellationToken token)
+		throws ConverterException, EGEException, IOException;
+	
+	/**
+	 * Performs conversions of the same data along many convert paths.<br/>
+	 * Conversions common to the beginning of several paths are performed
+	 * only once; their result is passed concurrently to all paths, which
+	 * diverge from it.<br/>
+	 * Failure of one path does not stop the others - exceptions are
+	 * returned as the result of method.
+	 * 
+	 * @param inputStream
+	 *            source of data to convert
+	 * @param paths
+	 *            convert paths
+	 * @param outputStreams
+	 *            output streams for converted data - one for each path
+	 * @return exceptions of conversions in order of paths ('null' if
+	 *         conversion succeeded)
+	 * @throws EGEException
+	 *             if unexpected error occurred within method.
+	 * @throws IOException
+	 */
+	public List<Exception> performConversions(final InputStream inputStream,
+			List<ConversionsPath> paths, List<OutputStream> outputStreams)
+		throws EGEException, IOException;
 	
 	/**
 	 * <p>Returns set of data types that are supported for validation.</p> 
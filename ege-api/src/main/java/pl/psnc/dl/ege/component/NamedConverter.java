@@ -9,8 +9,8 @@ import pl.psnc.dl.ege.exception.ConverterException;
 import pl.psnc.dl.ege.types.ConversionActionArguments;
 
 /**
- * Wrapper class of Converter implementation with additional parameter of a
- * converter name.
+ * Wrapper class of Converter implementation with additional parameters of a
+ * converter name and name of pool of converter.
  * 
  * @author mariuszs
  */
@@ -18,6 +18,7 @@ public class NamedConverter implements Converter {
 
 	private final Converter converter;
 	private final String converterName;
+	private final String pool;
 
 	/**
 	 * Default constructor.
@@ -33,6 +34,27 @@ public class NamedConverter implements Converter {
 		}
 		this.converter = converter;
 		this.converterName = converterName;
+		this.pool = null;
+	}
+
+	/**
+	 * Constructor with name of pool, which limits number of running
+	 * conversions of converter.
+	 * 
+	 * @param converter
+	 *            reference to a {@link Converter} interface implementation
+	 * @param converterName
+	 *            name of a converter.
+	 * @param pool
+	 *            name of pool of converter ('null' - default pool).
+	 */
+	public NamedConverter(Converter converter, String converterName, String pool) throws IllegalArgumentException {
+		if(converter == null){
+			throw new IllegalArgumentException();
+		}
+		this.converter = converter;
+		this.converterName = converterName;
+		this.pool = pool;
 	}
 	
 	/**
@@ -60,6 +82,15 @@ public class NamedConverter implements Converter {
 		return converterName;
 	}
 
+	/**
+	 * Returns name of pool of converter.
+	 * 
+	 * @return name of pool or 'null' if converter belongs to default pool
+	 */
+	public String getPool() {
+		return pool;
+	}
+
 	/**
 	 * Both objects are equal when they`re referencing the same
 	 * {@link Converter} interface implementation.
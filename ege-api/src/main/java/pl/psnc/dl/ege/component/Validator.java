@@ -43,6 +43,24 @@ public interface Validator{
 	 */
 	public ValidationResult validate(InputStream inputData, DataType inputDataType) throws IOException, ValidatorException, EGEException;
 	
+	/**
+	 * <p>Fail-fast validation method</p>
+	 * <p></p>
+	 * Works as {@link #validate(InputStream, DataType)}, but validation is
+	 * aborted on the first fatal error or when number of reported errors
+	 * reaches errorLimit (values lower than 1 abort only on fatal errors).
+	 * Result contains messages reported until validation was aborted.
+	 * 
+	 * @param inputData data to validate as {@link InputStream}
+	 * @param inputFormat specified {@link DataType} of streamed data.
+	 * @param errorLimit number of errors that aborts validation
+	 * @return instance of {@link ValidationResult} 
+	 * @throws IOException
+	 * @throws {@link ValidatorException}
+	 * @throws {@link EGEException}
+	 */
+	public ValidationResult validate(InputStream inputData, DataType inputDataType, int errorLimit) throws IOException, ValidatorException, EGEException;
+	
 	/**
 	 * <p>Supported data types</p>
 	 * 
@@ -0,0 +1,23 @@
+package pl.psnc.dl.ege.component;
+
+import java.util.List;
+
+/**
+ * <p>Implemented by converters, which can prepare their resources
+ * (e.g. compile stylesheets) before the first conversion is requested.<br/>
+ * Tasks are collected by EGE configuration manager during startup and
+ * run in parallel.
+ * </p>
+ */
+public interface WarmableConverter extends Converter {
+
+	/**
+	 * Returns list of independent warm-up tasks of the converter.
+	 *
+	 * @param sampleTransform if 'true' tasks should also perform sample
+	 *            conversion with prepared resources
+	 * @return list of tasks
+	 */
+	public List<Runnable> getWarmUpTasks(boolean sampleTransform);
+
+}
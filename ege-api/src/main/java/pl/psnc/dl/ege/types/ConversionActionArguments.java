@@ -163,6 +163,19 @@ public class ConversionActionArguments {
 		this.cost = cost;
 	}
 	
+	/**
+	 * Copy constructor - copy has its own conversion parameters, which can be
+	 * set independently of parameters of the original.
+	 * 
+	 * @param other copied arguments
+	 */
+	public ConversionActionArguments(ConversionActionArguments other){
+		this(other.inputType, other.outputType, other.propertiesDefinitions, other.visible, other.cost);
+		if(other.properties != null){
+			this.properties = new LinkedHashMap<String,String>(other.properties);
+		}
+	}
+	
 	/**
 	 * Returns definitions of conversion parameters.
 	 * <br/><br/>
@@ -1,5 +1,6 @@
 package pl.psnc.dl.ege.types;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -28,6 +29,23 @@ public class ConversionsPath implements Comparable {
 		this.path = path;
 	}
 	
+	/**
+	 * Returns copy of this path; conversion actions of the copy have their own
+	 * arguments, so conversion parameters of the copy can be set
+	 * independently (e.g. when the same path is used by concurrent
+	 * conversions).
+	 * 
+	 * @return copy of the path
+	 */
+	public ConversionsPath copy(){
+		List<ConversionAction> actions = new ArrayList<ConversionAction>(path.size());
+		for(ConversionAction ca : path){
+			actions.add(new ConversionAction(new ConversionActionArguments(
+				ca.getConversionActionArguments()), ca.getConverter()));
+		}
+		return new ConversionsPath(actions);
+	}
+	
 	/**
 	 * Returns list of <code>ConverterAction</code>.
 	 * 
@@ -0,0 +1,468 @@
+package pl.psnc.dl.ege;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+
+/**
+ * Delivers completion callbacks of asynchronous conversion jobs (see
+ * {@link JobJournal}).<br/><br/>
+ *
+ * When job is finished, xml data of job (status, location of job and of its
+ * result or error) is sent with POST request to callback URL of the job.
+ * Failed deliveries (connection errors, responses 408, 429 and 5xx) are
+ * retried <i>callbackRetries</i> times (oxgarage.properties, default : 5)
+ * after delay starting with <i>callbackRetryDelay</i> milliseconds (default
+ * : 1000) and doubled with every attempt. Deliveries are performed by
+ * <i>callbackThreads</i> threads (default : 2); at most
+ * <i>callbackQueueSize</i> deliveries (default : 1000) wait at once, other
+ * jobs are only available for polling.<br/>
+ * Only http and https URLs are accepted. Hosts resolved to local addresses
+ * (loopback, link-local, site-local, unique local, any-local and multicast)
+ * are refused, unless they are listed in <i>callbackHosts</i> (comma
+ * separated); when the list is set, callbacks are sent only to its
+ * hosts.<br/>
+ *
+ * Implemented as Singleton.
+ */
+public final class CallbackDelivery
+{
+
+	private static final Logger LOGGER = Logger.getLogger(CallbackDelivery.class);
+
+	/*
+	 * Max delay between attempts of delivery.
+	 */
+	private static final long MAX_RETRY_DELAY = 10L * 60 * 1000;
+
+	private final Set<String> hosts;
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	private final int retries;
+
+	private final long retryDelay;
+
+	private final int timeout;
+
+	private final int queueSize;
+
+	/*
+	 * Number of deliveries, which are not finished - guarded by 'this'.
+	 */
+	private int pending = 0;
+
+	private static class CallbackDeliveryHolder
+	{
+		private static final CallbackDelivery INSTANCE = new CallbackDelivery();
+	}
+
+
+	private CallbackDelivery()
+	{
+		this(EGEConstants.getIntProperty("callbackThreads", 2), EGEConstants
+				.getIntProperty("callbackQueueSize", 1000), EGEConstants
+				.getIntProperty("callbackRetries", 5), EGEConstants
+				.getLongProperty("callbackRetryDelay", 1000), EGEConstants
+				.getIntProperty("callbackTimeout", 10000), readHosts());
+	}
+
+
+	/*
+	 * Constructor with explicit configuration (e.g. for tests).
+	 */
+	CallbackDelivery(int threads, int queueSize, int retries, long retryDelay,
+			int timeout, Set<String> hosts)
+	{
+		this.queueSize = queueSize;
+		this.retries = Math.max(0, retries);
+		this.retryDelay = Math.max(1, retryDelay);
+		this.timeout = timeout;
+		this.hosts = hosts;
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threads),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "ege-callback");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+
+	/**
+	 * Method returns instance of CallbackDelivery.
+	 *
+	 * @return
+	 */
+	public static CallbackDelivery getInstance()
+	{
+		return CallbackDeliveryHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Returns 'true' if callbacks may be sent to selected URL : http or https
+	 * URL of host listed in <i>callbackHosts</i> or, if the list is not set,
+	 * of host with public addresses only.
+	 */
+	public static boolean isAllowed(String callback)
+	{
+		return getInstance().accepts(callback);
+	}
+
+
+	/*
+	 * Checks URL of callback; address of host is checked again before every
+	 * attempt of delivery, as it may change.
+	 */
+	boolean accepts(String callback)
+	{
+		if (callback == null) {
+			return false;
+		}
+		URL url;
+		try {
+			url = new URL(callback);
+		}
+		catch (MalformedURLException ex) {
+			return false;
+		}
+		if (!"http".equals(url.getProtocol())
+				&& !"https".equals(url.getProtocol())) {
+			return false;
+		}
+		String host = url.getHost();
+		if (host == null || host.length() == 0) {
+			return false;
+		}
+		host = host.toLowerCase();
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		if (!hosts.isEmpty()) {
+			return hosts.contains(host);
+		}
+		try {
+			for (InetAddress address : InetAddress.getAllByName(host)) {
+				if (isLocal(address)) {
+					return false;
+				}
+			}
+		}
+		catch (UnknownHostException ex) {
+			return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns number of deliveries, which are not finished.
+	 */
+	public synchronized int getPending()
+	{
+		return pending;
+	}
+
+
+	/**
+	 * Schedules delivery of callback of finished job.
+	 *
+	 * @return 'false' if there are too many waiting deliveries
+	 */
+	boolean deliver(final JobJournal.Job job)
+	{
+		return deliver(job.getId(), job.getCallback(), describe(job),
+			new Listener() {
+				public boolean isActive()
+				{
+					// callback of removed job is dropped
+					return JobJournal.getInstance().getJob(job.getId()) == job;
+				}
+
+
+				public void finished(boolean delivered)
+				{
+					JobJournal.getInstance().callbackFinished(job);
+				}
+			});
+	}
+
+
+	/*
+	 * Schedules delivery of data to callback URL.
+	 */
+	boolean deliver(String id, String callback, String data, Listener listener)
+	{
+		synchronized (this) {
+			if (pending >= queueSize) {
+				LOGGER.warn("Callback of job " + id
+						+ " dropped : too many waiting callbacks.");
+				return false;
+			}
+			pending++;
+		}
+		try {
+			executor.execute(new Delivery(id, callback, data, listener));
+		}
+		catch (RuntimeException ex) {
+			// delivery stopped
+			finished();
+			return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Stops deliveries; callbacks, which were not delivered, are sent again
+	 * after restart.
+	 */
+	void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+
+	private synchronized void finished()
+	{
+		pending--;
+	}
+
+
+	/*
+	 * Sends data of job; returns code of response.
+	 */
+	private int send(String callback, String data)
+		throws IOException
+	{
+		HttpURLConnection conn = (HttpURLConnection) new URL(callback)
+				.openConnection();
+		try {
+			// redirects could lead callbacks to forbidden hosts
+			conn.setInstanceFollowRedirects(false);
+			conn.setConnectTimeout(timeout);
+			conn.setReadTimeout(timeout);
+			conn.setDoOutput(true);
+			conn.setRequestMethod("POST");
+			conn.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+			byte[] bytes = data.getBytes("UTF-8");
+			conn.setFixedLengthStreamingMode(bytes.length);
+			OutputStream os = conn.getOutputStream();
+			try {
+				os.write(bytes);
+			}
+			finally {
+				os.close();
+			}
+			int code = conn.getResponseCode();
+			// response is read to let the connection be reused
+			InputStream is = code < 400 ? conn.getInputStream() : conn
+					.getErrorStream();
+			if (is != null) {
+				try {
+					byte[] buf = new byte[1024];
+					while (is.read(buf) != -1) {
+					}
+				}
+				finally {
+					is.close();
+				}
+			}
+			return code;
+		}
+		finally {
+			conn.disconnect();
+		}
+	}
+
+
+	/*
+	 * Xml data of job - the same as returned by Jobs/<id>.
+	 */
+	private static String describe(JobJournal.Job job)
+	{
+		String href = job.getLocation() == null ? "" : job.getLocation();
+		StringBuffer sb = new StringBuffer();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<job xmlns:xlink=\"http://www.w3.org/1999/xlink\" id=\""
+				+ job.getId() + "\" status=\"" + job.getStatus()
+				+ "\" submitted=\"" + job.getSubmitted() + "\" completed=\""
+				+ job.getCompleted() + "\" xlink:href=\"" + escape(href)
+				+ "\">\n");
+		if (JobJournal.COMPLETED.equals(job.getStatus())) {
+			sb.append("<result xlink:href=\"" + escape(href + "/result")
+					+ "\" />\n");
+		}
+		else if (job.getError() != null) {
+			sb.append("<error>" + escape(job.getError()) + "</error>\n");
+		}
+		sb.append("</job>\n");
+		return sb.toString();
+	}
+
+
+	private static String escape(String text)
+	{
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">",
+			"&gt;").replace("\"", "&quot;");
+	}
+
+
+	/*
+	 * Addresses of the service host and of its networks.
+	 */
+	private static boolean isLocal(InetAddress address)
+	{
+		if (address.isLoopbackAddress() || address.isLinkLocalAddress()
+				|| address.isSiteLocalAddress() || address.isAnyLocalAddress()
+				|| address.isMulticastAddress()) {
+			return true;
+		}
+		// unique local IPv6 addresses (fc00::/7)
+		return address instanceof Inet6Address
+				&& (address.getAddress()[0] & 0xfe) == 0xfc;
+	}
+
+
+	private static Set<String> readHosts()
+	{
+		Set<String> hosts = new HashSet<String>();
+		String value = EGEConstants.oxgProps.getProperty("callbackHosts");
+		if (value != null) {
+			for (String host : value.split(",")) {
+				if (host.trim().length() > 0) {
+					hosts.add(host.trim().toLowerCase());
+				}
+			}
+		}
+		return hosts;
+	}
+
+	/*
+	 * Receiver of result of delivery.
+	 */
+	interface Listener
+	{
+
+		/**
+		 * Returns 'false' if callback is no longer needed.
+		 */
+		boolean isActive();
+
+
+		/**
+		 * Called once, when callback is delivered or abandoned.
+		 */
+		void finished(boolean delivered);
+
+	}
+
+	/*
+	 * Attempt of delivery, which schedules the next attempt on failure.
+	 */
+	private class Delivery
+		implements Runnable
+	{
+
+		private final String id;
+
+		private final String callback;
+
+		private final String data;
+
+		private final Listener listener;
+
+		private int attempt = 0;
+
+
+		Delivery(String id, String callback, String data, Listener listener)
+		{
+			this.id = id;
+			this.callback = callback;
+			this.data = data;
+			this.listener = listener;
+		}
+
+
+		public void run()
+		{
+			if (!listener.isActive()) {
+				finished();
+				return;
+			}
+			if (!accepts(callback)) {
+				LOGGER.warn("Callback of job " + id + " refused : " + callback);
+				done(false);
+				return;
+			}
+			String problem;
+			try {
+				int code = send(callback, data);
+				if (code >= 200 && code < 300) {
+					LOGGER.debug("Callback of job " + id + " delivered.");
+					done(true);
+					return;
+				}
+				problem = "response " + code;
+				if (code != 408 && code != 429 && code < 500) {
+					LOGGER.warn("Callback of job " + id + " rejected : "
+							+ problem);
+					done(false);
+					return;
+				}
+			}
+			catch (IOException ex) {
+				problem = ex.toString();
+			}
+			if (attempt >= retries) {
+				LOGGER.warn("Callback of job " + id + " not delivered : "
+						+ problem);
+				done(false);
+				return;
+			}
+			long delay = Math.min(MAX_RETRY_DELAY, retryDelay << Math.min(
+				attempt, 30));
+			attempt++;
+			LOGGER.debug("Callback of job " + id + " failed (" + problem
+					+ "), retry in " + delay + " ms.");
+			try {
+				executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+			}
+			catch (RuntimeException ex) {
+				// delivery stopped
+				finished();
+			}
+		}
+
+
+		private void done(boolean delivered)
+		{
+			try {
+				listener.finished(delivered);
+			}
+			finally {
+				finished();
+			}
+		}
+
+	}
+
+}
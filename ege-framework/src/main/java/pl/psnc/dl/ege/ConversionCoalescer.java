@@ -0,0 +1,371 @@
+package pl.psnc.dl.ege;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.exception.ConverterException;
+import pl.psnc.dl.ege.exception.EGEException;
+import pl.psnc.dl.ege.types.ConversionAction;
+import pl.psnc.dl.ege.types.ConversionsPath;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
+
+/**
+ * Single-flight coalescing of identical conversions.<br/><br/>
+ *
+ * Conversions of the same input data (compared by digest) along the same
+ * path with the same properties, requested while one of them is in
+ * progress, are not started again - they wait for the conversion in
+ * progress and receive copy of its result (or its exception). The leading
+ * conversion receives its result while it is converted.<br/>
+ * Waiting conversion can be cancelled by its own token; if the conversion
+ * in progress is cancelled by its token, waiting conversions start
+ * again.<br/>
+ * Coalescing is disabled by default, as input of every conversion has to be
+ * spooled to compute its digest (oxgarage.properties :
+ * <i>coalesceConversions</i>).<br/>
+ *
+ * Implemented as Singleton.
+ */
+final class ConversionCoalescer
+{
+
+	private static final Logger LOGGER = Logger.getLogger(ConversionCoalescer.class);
+
+	/*
+	 * Interval of checking cancellation of waiting conversion.
+	 */
+	private static final long WAIT_INTERVAL = 1000;
+
+	private final boolean enabled;
+
+	/*
+	 * Conversions in progress by key of conversion.
+	 */
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	private static class ConversionCoalescerHolder
+	{
+		private static final ConversionCoalescer INSTANCE = new ConversionCoalescer();
+	}
+
+
+	private ConversionCoalescer()
+	{
+		enabled = EGEConstants.getBooleanProperty("coalesceConversions", false);
+	}
+
+
+	public static ConversionCoalescer getInstance()
+	{
+		return ConversionCoalescerHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Returns 'true' if identical conversions are coalesced.
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+
+	/**
+	 * Returns number of conversions in progress.
+	 */
+	public int getInFlight()
+	{
+		return flights.size();
+	}
+
+
+	/**
+	 * Performs conversion or waits for identical conversion in progress and
+	 * copies its result to output stream.
+	 *
+	 * @param ege engine performing conversions
+	 * @param inputStream
+	 * @param outputStream
+	 * @param path
+	 * @param token
+	 *            cancellation token of conversion
+	 * @throws ConverterException
+	 * @throws EGEException
+	 * @throws IOException
+	 */
+	public void perform(EGEImpl ege, InputStream inputStream,
+			OutputStream outputStream, ConversionsPath path,
+			CancellationToken token)
+		throws ConverterException, EGEException, IOException
+	{
+		File workDir = TempSpaceManager.getInstance().createTempDir(token);
+		try {
+			File input = new File(workDir, "input");
+			String digest = StageCache.spool(inputStream, input);
+			String key = digest;
+			for (ConversionAction ca : path.getPath()) {
+				key = StageCache.createKey(key, ca);
+			}
+			while (true) {
+				Flight current = flights.get(key);
+				if (current == null) {
+					Flight flight = new Flight(TempSpaceManager.getInstance()
+							.createTempDir(token));
+					current = flights.putIfAbsent(key, flight);
+					if (current == null) {
+						try {
+							lead(ege, key, flight, input, digest, path, token,
+								outputStream);
+							flight.throwException();
+						}
+						finally {
+							flight.release();
+						}
+						return;
+					}
+					flight.release();
+				}
+				if (current.join()) {
+					LOGGER.debug("Joined conversion in progress : " + path);
+					if (current.copyTo(outputStream, token)) {
+						return;
+					}
+					LOGGER.debug("Conversion in progress was cancelled : " + path);
+					continue;
+				}
+				// conversion has just finished and released its result
+				flights.remove(key, current);
+			}
+		}
+		finally {
+			TempSpaceManager.getInstance().release(workDir);
+		}
+	}
+
+
+	/*
+	 * Performs conversion of flight, passes its result to output stream of
+	 * the leader and publishes it.
+	 */
+	private void lead(EGEImpl ege, String key, Flight flight, File input,
+			String digest, ConversionsPath path, CancellationToken token,
+			OutputStream outputStream)
+	{
+		LeaderOutputStream los = null;
+		try {
+			los = new LeaderOutputStream(new FileOutputStream(flight.result),
+					outputStream);
+			try {
+				ege.convert(input, digest, los, path, token);
+			}
+			finally {
+				los.close();
+			}
+		}
+		catch (Exception ex) {
+			flight.exception = ex;
+			// waiting conversions do not fail with disconnected leader
+			flight.cancelled = token.isCancelled()
+					|| (los != null && los.failed);
+		}
+		finally {
+			flights.remove(key, flight);
+			flight.done.countDown();
+		}
+	}
+
+	/*
+	 * Conversion in progress : its result is removed by the last reader.
+	 */
+	private static class Flight
+	{
+
+		private final File dir;
+
+		private final File result;
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile Exception exception;
+
+		/*
+		 * 'true' if conversion failed, because it was cancelled by token of
+		 * its leader.
+		 */
+		private volatile boolean cancelled = false;
+
+		/*
+		 * Number of conversions reading result of flight - guarded by 'this'.
+		 */
+		private int readers = 1;
+
+
+		public Flight(File dir)
+		{
+			this.dir = dir;
+			this.result = new File(dir, "result");
+		}
+
+
+		/*
+		 * Registers another reader of result; returns 'false' if result was
+		 * already released.
+		 */
+		public synchronized boolean join()
+		{
+			if (readers == 0) {
+				return false;
+			}
+			readers++;
+			return true;
+		}
+
+
+		/*
+		 * Waits for result, copies it to output stream and releases it;
+		 * returns 'false' if conversion was cancelled by token of its leader,
+		 * but token of waiting conversion is not cancelled.
+		 */
+		public boolean copyTo(OutputStream os, CancellationToken token)
+			throws ConverterException, EGEException, IOException
+		{
+			try {
+				try {
+					while (!done.await(WAIT_INTERVAL, TimeUnit.MILLISECONDS)) {
+						token.check();
+					}
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new EGEException("Conversion interrupted.");
+				}
+				if (cancelled && !token.isCancelled()) {
+					return false;
+				}
+				throwException();
+				InputStream is = new FileInputStream(result);
+				try {
+					EGEIOUtils.copyStream(is, os);
+				}
+				finally {
+					is.close();
+				}
+				return true;
+			}
+			finally {
+				release();
+			}
+		}
+
+
+		/*
+		 * Throws exception of finished conversion, if it failed.
+		 */
+		public void throwException()
+			throws ConverterException, EGEException, IOException
+		{
+			if (exception instanceof ConverterException) {
+				throw (ConverterException) exception;
+			}
+			else if (exception instanceof EGEException) {
+				throw (EGEException) exception;
+			}
+			else if (exception instanceof IOException) {
+				throw (IOException) exception;
+			}
+			else if (exception != null) {
+				throw new EGEException(exception.getMessage());
+			}
+		}
+
+
+		public void release()
+		{
+			synchronized (this) {
+				if (--readers > 0) {
+					return;
+				}
+			}
+			TempSpaceManager.getInstance().release(dir);
+		}
+
+	}
+
+	/*
+	 * Writes result of flight to its file and to output stream of the leader.
+	 */
+	private static class LeaderOutputStream
+		extends OutputStream
+	{
+
+		private final OutputStream file;
+
+		private final OutputStream leader;
+
+		/*
+		 * 'true' if output stream of the leader failed.
+		 */
+		private volatile boolean failed = false;
+
+
+		public LeaderOutputStream(OutputStream file, OutputStream leader)
+		{
+			this.file = file;
+			this.leader = leader;
+		}
+
+
+		public void write(int b)
+			throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+
+		public void write(byte[] b, int off, int len)
+			throws IOException
+		{
+			file.write(b, off, len);
+			try {
+				leader.write(b, off, len);
+			}
+			catch (IOException ex) {
+				failed = true;
+				throw ex;
+			}
+		}
+
+
+		public void flush()
+			throws IOException
+		{
+			file.flush();
+			leader.flush();
+		}
+
+
+		/*
+		 * Closes file only - output stream of the leader belongs to its
+		 * caller.
+		 */
+		public void close()
+			throws IOException
+		{
+			file.close();
+		}
+
+	}
+
+}
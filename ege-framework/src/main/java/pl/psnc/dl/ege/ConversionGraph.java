@@ -0,0 +1,142 @@
+package pl.psnc.dl.ege;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import pl.psnc.dl.ege.types.ConversionAction;
+import pl.psnc.dl.ege.types.DataType;
+import edu.uci.ics.jung.graph.DirectedSparseMultigraph;
+import edu.uci.ics.jung.graph.Graph;
+
+/**
+ * Immutable graph of conversion actions : action A is connected with action
+ * B if output type of A is input type of B.<br/>
+ * Actions are identified by indexes; successors of actions and actions
+ * starting from every input type are kept in arrays, so traversal of graph
+ * does not allocate memory. Graph of available converters is built once by
+ * {@link pl.psnc.dl.ege.configuration.EGEConfigurationManager} and shared by
+ * EGE instances.
+ */
+public final class ConversionGraph
+{
+
+	private static final int[] NONE = new int[0];
+
+	private final ConversionAction[] actions;
+
+	/*
+	 * Indexes of successors of action.
+	 */
+	private final int[][] successors;
+
+	/*
+	 * Indexes of actions by their input type.
+	 */
+	private final Map<DataType, int[]> startNodes = new HashMap<DataType, int[]>();
+
+
+	/*
+	 * Builds graph of distinct actions.
+	 */
+	public ConversionGraph(Collection<ConversionAction> nodes)
+	{
+		actions = new LinkedHashSet<ConversionAction>(nodes)
+				.toArray(new ConversionAction[0]);
+		int size = actions.length;
+		// interned data types : index of type - actions consuming it
+		Map<DataType, Integer> types = new HashMap<DataType, Integer>();
+		List<List<Integer>> consumers = new ArrayList<List<Integer>>();
+		for (int i = 0; i < size; i++) {
+			DataType input = actions[i].getConversionInputType();
+			Integer type = types.get(input);
+			if (type == null) {
+				type = Integer.valueOf(consumers.size());
+				types.put(input, type);
+				consumers.add(new ArrayList<Integer>());
+			}
+			consumers.get(type.intValue()).add(Integer.valueOf(i));
+		}
+		int[][] byType = new int[consumers.size()][];
+		for (int t = 0; t < byType.length; t++) {
+			byType[t] = toArray(consumers.get(t));
+		}
+		for (Map.Entry<DataType, Integer> entry : types.entrySet()) {
+			startNodes.put(entry.getKey(), byType[entry.getValue().intValue()]);
+		}
+		successors = new int[size][];
+		for (int i = 0; i < size; i++) {
+			Integer type = types.get(actions[i].getConversionOutputType());
+			successors[i] = type == null ? NONE : byType[type.intValue()];
+		}
+	}
+
+
+	public int size()
+	{
+		return actions.length;
+	}
+
+
+	public ConversionAction getAction(int node)
+	{
+		return actions[node];
+	}
+
+
+	/*
+	 * Returns indexes of actions converting from selected type; returned
+	 * array is shared and must not be modified.
+	 */
+	public int[] getStartNodes(DataType inputType)
+	{
+		if (inputType == null) {
+			return NONE;
+		}
+		int[] nodes = startNodes.get(inputType);
+		return nodes == null ? NONE : nodes;
+	}
+
+
+	/*
+	 * Returns indexes of successors of action; returned array is shared and
+	 * must not be modified.
+	 */
+	public int[] getSuccessors(int node)
+	{
+		return successors[node];
+	}
+
+
+	/*
+	 * Creates JUNG view of graph.
+	 */
+	public Graph<ConversionAction, Integer> toJungGraph()
+	{
+		Graph<ConversionAction, Integer> graph = new DirectedSparseMultigraph<ConversionAction, Integer>();
+		for (ConversionAction ca : actions) {
+			graph.addVertex(ca);
+		}
+		int index = 0;
+		for (int i = 0; i < actions.length; i++) {
+			for (int j : successors[i]) {
+				graph.addEdge(Integer.valueOf(index++), actions[i], actions[j]);
+			}
+		}
+		return graph;
+	}
+
+
+	private static int[] toArray(List<Integer> list)
+	{
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i).intValue();
+		}
+		return array;
+	}
+
+}
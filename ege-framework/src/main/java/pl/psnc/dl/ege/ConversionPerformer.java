@@ -1,16 +1,30 @@
 package pl.psnc.dl.ege;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.log4j.Logger;
 
+import pl.psnc.dl.ege.component.NamedConverter;
 import pl.psnc.dl.ege.exception.ConverterException;
 import pl.psnc.dl.ege.types.ConversionAction;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
 
 /*
- * Thread class that performs and controls piped conversion.
+ * Thread class that performs and controls piped conversion. Stage converts
+ * only with place in pool of its converter (see ConversionScheduler). Stage
+ * reading output of another stage takes its place when the first data
+ * arrives; if it has to wait for place, it first stores its input in
+ * temporary file - stages never wait for places while holding others, which
+ * could deadlock pools.
  */
 class ConversionPerformer
 	implements Runnable
@@ -24,25 +38,74 @@ class ConversionPerformer
 
 	private final ExceptionListener el;
 
+	private final CancellationToken token;
+
+	private final ConversionProgress progress;
+
+	private final int stage;
+
+	private final boolean piped;
+
+	/*
+	 * Interval of publishing bytes written by stage.
+	 */
+	private static final long BYTES_INTERVAL = 500;
+
 	private static final Logger LOGGER = Logger
 			.getLogger(ConversionPerformer.class);
 
 
 	public ConversionPerformer(ConversionAction ca, InputStream is,
-			OutputStream os, ExceptionListener el)
+			OutputStream os, ExceptionListener el, CancellationToken token,
+			ConversionProgress progress, int stage, boolean piped)
 	{
 		this.el = el;
 		this.is = is;
 		this.os = os;
 		this.ca = ca;
+		this.token = token;
+		this.progress = progress;
+		this.stage = stage;
+		this.piped = piped;
 	}
 
 
 	public void run()
 	{
+		// converter registers its resources with token of conversion
+		token.bind();
+		// converter publishes its own events to progress of conversion
+		progress.bind();
+		String name = getStageName();
+		ConversionScheduler.Ticket ticket = null;
+		File spoolDir = null;
+		InputStream input = is;
 		try {
+			if (piped) {
+				// waits for the first data of previous stage
+				PushbackInputStream pis = new PushbackInputStream(is);
+				int b = pis.read();
+				if (b != -1) {
+					pis.unread(b);
+				}
+				input = pis;
+			}
+			ticket = ConversionScheduler.getInstance().tryAcquire(ca);
+			if (ticket == null) {
+				if (piped) {
+					spoolDir = TempSpaceManager.getInstance().createTempDir();
+					input = spool(input, spoolDir);
+				}
+				ticket = ConversionScheduler.getInstance().acquire(ca, token);
+			}
+			progress.stageStarted(stage, name);
+			MeasuredInputStream mis = new MeasuredInputStream(input);
+			CountingOutputStream cos = new ProgressOutputStream(os, name);
 			ca.getConverter()
-					.convert(is, os, ca.getConversionActionArguments());
+					.convert(mis, cos, ca.getConversionActionArguments());
+			ConversionStatistics.getInstance().record(ca, mis.getByteCount(),
+				cos.getByteCount(), mis.getMillis());
+			progress.stageFinished(stage, name, cos.getByteCount());
 			is.close();
 			os.close();
 		}
@@ -59,6 +122,11 @@ class ConversionPerformer
 			el.catchException(ex);
 		}
 		finally {
+			if (ticket != null) {
+				ticket.release();
+			}
+			CancellationToken.unbind();
+			ConversionProgress.unbind();
 			if (os != null) {
 				try {
 					os.close();
@@ -77,6 +145,111 @@ class ConversionPerformer
 					el.catchException(ex);
 				}
 			}
+			if (input != is) {
+				try {
+					input.close();
+				}
+				catch (IOException ex) {
+					// do nothing
+				}
+			}
+			TempSpaceManager.getInstance().release(spoolDir);
+		}
+
+	}
+
+
+	/*
+	 * Reads the whole input of stage into file in selected directory.
+	 */
+	private static InputStream spool(InputStream input, File dir)
+		throws IOException
+	{
+		File file = new File(dir, "input");
+		OutputStream fos = new FileOutputStream(file);
+		try {
+			EGEIOUtils.copyStream(input, fos);
+		}
+		finally {
+			fos.close();
+		}
+		input.close();
+		return new FileInputStream(file);
+	}
+
+	private String getStageName()
+	{
+		if (ca.getConverter() instanceof NamedConverter) {
+			return ((NamedConverter) ca.getConverter()).getName();
+		}
+		return ca.getConversionOutputType().getFormat();
+	}
+
+	/*
+	 * Counts bytes written by stage and publishes them to progress of
+	 * conversion, at most once per BYTES_INTERVAL.
+	 */
+	private class ProgressOutputStream
+		extends CountingOutputStream
+	{
+
+		private final String name;
+
+		private long published = 0;
+
+
+		public ProgressOutputStream(OutputStream out, String name)
+		{
+			super(out);
+			this.name = name;
+		}
+
+
+		@Override
+		protected synchronized void afterWrite(int n)
+			throws IOException
+		{
+			super.afterWrite(n);
+			long now = System.currentTimeMillis();
+			if (now - published >= BYTES_INTERVAL) {
+				published = now;
+				progress.bytesWritten(stage, name, getByteCount());
+			}
+		}
+
+	}
+
+	/*
+	 * Counts bytes of input and measures time since the first bytes were
+	 * read - waiting for the first output of previous conversion of path is
+	 * not counted.
+	 */
+	private static class MeasuredInputStream
+		extends CountingInputStream
+	{
+
+		private long start = 0;
+
+
+		public MeasuredInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+
+		@Override
+		protected synchronized void afterRead(int n)
+		{
+			if (start == 0) {
+				start = System.currentTimeMillis();
+			}
+			super.afterRead(n);
+		}
+
+
+		public synchronized long getMillis()
+		{
+			return start == 0 ? 0 : System.currentTimeMillis() - start;
 		}
 
 	}
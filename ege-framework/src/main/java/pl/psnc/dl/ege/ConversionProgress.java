@@ -0,0 +1,363 @@
+package pl.psnc.dl.ege;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+
+/**
+ * <p>
+ * Progress of single conversion, published to clients waiting for its
+ * result.
+ * </p>
+ * Progress is created under identifier known to client (e.g. sent by client
+ * of the service or identifier of asynchronous job) and bound to thread,
+ * which performs the conversion. EGE binds it to threads of stages of
+ * conversion, which publish events : stage started and finished, bytes
+ * written by stage; converters publish their own events (e.g. processed
+ * images) to progress returned by {@link #current()}.<br/>
+ * Clients read events after selected sequence number and wait for new ones
+ * ({@link #getEvents(long, long)}). Finished progress is forgotten after
+ * <i>progressRetention</i> milliseconds (oxgarage.properties, default :
+ * 60000).
+ */
+public final class ConversionProgress
+{
+
+	public static final String STAGE_STARTED = "stage-started";
+
+	public static final String STAGE_FINISHED = "stage-finished";
+
+	public static final String BYTES = "bytes";
+
+	public static final String IMAGES = "images";
+
+	public static final String COMPLETED = "completed";
+
+	public static final String FAILED = "failed";
+
+	/*
+	 * The oldest events are dropped, when progress has more events.
+	 */
+	private static final int MAX_EVENTS = 1000;
+
+	private static final long RETENTION = EGEConstants.getLongProperty(
+		"progressRetention", 60000);
+
+	private static final ConcurrentMap<String, ConversionProgress> PROGRESSES = new ConcurrentHashMap<String, ConversionProgress>();
+
+	private static final ThreadLocal<ConversionProgress> CURRENT = new ThreadLocal<ConversionProgress>();
+
+	/*
+	 * Progress of conversions, which are not watched - ignores events.
+	 */
+	private static final ConversionProgress NONE = new ConversionProgress(null);
+
+	private final String id;
+
+	/*
+	 * Events - guarded by 'this'.
+	 */
+	private final LinkedList<Event> events = new LinkedList<Event>();
+
+	private long sequence = 0;
+
+	private long finished = 0;
+
+
+	private ConversionProgress(String id)
+	{
+		this.id = id;
+	}
+
+
+	/**
+	 * Creates progress with selected identifier; progress previously created
+	 * with the same identifier is replaced.
+	 */
+	public static ConversionProgress create(String id)
+	{
+		removeExpired();
+		ConversionProgress progress = new ConversionProgress(id);
+		PROGRESSES.put(id, progress);
+		return progress;
+	}
+
+
+	/**
+	 * Returns progress with selected identifier or 'null'.
+	 */
+	public static ConversionProgress get(String id)
+	{
+		return PROGRESSES.get(id);
+	}
+
+
+	/**
+	 * Returns progress bound to current thread; events of returned progress
+	 * are ignored, if there is no bound progress.
+	 */
+	public static ConversionProgress current()
+	{
+		ConversionProgress progress = CURRENT.get();
+		return progress == null ? NONE : progress;
+	}
+
+
+	/**
+	 * Binds progress to current thread.
+	 */
+	public void bind()
+	{
+		CURRENT.set(this);
+	}
+
+
+	/**
+	 * Removes progress bound to current thread.
+	 */
+	public static void unbind()
+	{
+		CURRENT.remove();
+	}
+
+
+	/**
+	 * Returns identifier of progress ('null' for progress, which is not
+	 * watched).
+	 */
+	public String getId()
+	{
+		return id;
+	}
+
+
+	public void stageStarted(int stage, String name)
+	{
+		publish(new Event(STAGE_STARTED, stage, name, 0, 0, null));
+	}
+
+
+	public void stageFinished(int stage, String name, long bytes)
+	{
+		publish(new Event(STAGE_FINISHED, stage, name, bytes, 0, null));
+	}
+
+
+	/**
+	 * Publishes number of bytes written so far by stage.
+	 */
+	public void bytesWritten(int stage, String name, long bytes)
+	{
+		publish(new Event(BYTES, stage, name, bytes, 0, null));
+	}
+
+
+	/**
+	 * Publishes number of processed images out of total number of images.
+	 */
+	public void imagesProcessed(int processed, int total)
+	{
+		publish(new Event(IMAGES, -1, null, processed, total, null));
+	}
+
+
+	/**
+	 * Finishes progress : publishes completion or failure of conversion.
+	 *
+	 * @param error
+	 *            message of error or 'null' if conversion succeeded
+	 */
+	public void finish(String error)
+	{
+		publish(new Event(error == null ? COMPLETED : FAILED, -1, null, 0, 0,
+				error));
+		synchronized (this) {
+			finished = System.currentTimeMillis();
+		}
+	}
+
+
+	/**
+	 * Returns 'true' if conversion is finished.
+	 */
+	public synchronized boolean isFinished()
+	{
+		return finished > 0;
+	}
+
+
+	/**
+	 * Returns events with sequence numbers greater than selected one; waits
+	 * for new events, if there are none and conversion is not finished.
+	 *
+	 * @param after
+	 *            sequence number of the last received event (0 - none)
+	 * @param timeout
+	 *            max time of waiting in milliseconds
+	 * @return events (empty if no event came within timeout)
+	 * @throws InterruptedException
+	 */
+	public synchronized List<Event> getEvents(long after, long timeout)
+		throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		long left = timeout;
+		while (sequence <= after && finished == 0 && left > 0) {
+			wait(left);
+			left = deadline - System.currentTimeMillis();
+		}
+		List<Event> result = new ArrayList<Event>();
+		for (Event event : events) {
+			if (event.sequence > after) {
+				result.add(event);
+			}
+		}
+		return result;
+	}
+
+
+	private void publish(Event event)
+	{
+		if (id == null) {
+			return;
+		}
+		synchronized (this) {
+			if (finished > 0) {
+				return;
+			}
+			event.sequence = ++sequence;
+			events.add(event);
+			if (events.size() > MAX_EVENTS) {
+				events.removeFirst();
+			}
+			notifyAll();
+		}
+	}
+
+
+	private static void removeExpired()
+	{
+		long now = System.currentTimeMillis();
+		Iterator<ConversionProgress> it = PROGRESSES.values().iterator();
+		while (it.hasNext()) {
+			ConversionProgress progress = it.next();
+			synchronized (progress) {
+				if (progress.finished > 0 && now - progress.finished > RETENTION) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Event of progress.
+	 */
+	public static class Event
+	{
+
+		private long sequence;
+
+		private final long time = System.currentTimeMillis();
+
+		private final String type;
+
+		private final int stage;
+
+		private final String name;
+
+		private final long value;
+
+		private final long total;
+
+		private final String message;
+
+
+		Event(String type, int stage, String name, long value, long total,
+				String message)
+		{
+			this.type = type;
+			this.stage = stage;
+			this.name = name;
+			this.value = value;
+			this.total = total;
+			this.message = message;
+		}
+
+
+		/**
+		 * Returns sequence number of event within its progress.
+		 */
+		public long getSequence()
+		{
+			return sequence;
+		}
+
+
+		public long getTime()
+		{
+			return time;
+		}
+
+
+		/**
+		 * Returns type of event, e.g. stage-started.
+		 */
+		public String getType()
+		{
+			return type;
+		}
+
+
+		/**
+		 * Returns index of stage in conversions path (-1 - event of the whole
+		 * conversion or of converter).
+		 */
+		public int getStage()
+		{
+			return stage;
+		}
+
+
+		/**
+		 * Returns name of stage or 'null'.
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+
+		/**
+		 * Returns number of bytes or processed items.
+		 */
+		public long getValue()
+		{
+			return value;
+		}
+
+
+		/**
+		 * Returns total number of items (0 - unknown).
+		 */
+		public long getTotal()
+		{
+			return total;
+		}
+
+
+		/**
+		 * Returns message of error of failed conversion.
+		 */
+		public String getMessage()
+		{
+			return message;
+		}
+
+	}
+
+}
@@ -0,0 +1,467 @@
+package pl.psnc.dl.ege;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.component.Converter;
+import pl.psnc.dl.ege.component.NamedConverter;
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.exception.EGEException;
+import pl.psnc.dl.ege.types.ConversionAction;
+
+/**
+ * Bulkhead scheduling of conversions and validations.<br/><br/>
+ *
+ * Every converter belongs to a named pool (e.g. office, xslt-heavy,
+ * xslt-light), which limits number of conversions running at once; slow
+ * conversions of one pool do not take threads of the others. Pool of
+ * converter is taken from 'pool' parameter of its plugin descriptor and may
+ * be overridden in oxgarage.properties :
+ * <i>pool.&lt;pool&gt;.converters</i> - comma separated names of converters.
+ * Converters without pool belong to <i>defaultPool</i> (default :
+ * xslt-light); validations belong to 'validation' pool.<br/><br/>
+ *
+ * Every pool has its own limits (oxgarage.properties) :
+ * <i>pool.&lt;pool&gt;.threads</i> - number of conversions running at once,
+ * <i>pool.&lt;pool&gt;.queue</i> - number of waiting conversions (0 -
+ * unlimited); conversion waiting longer than <i>poolWaitTimeout</i>
+ * milliseconds (0 - no timeout) or exceeding the queue is rejected with
+ * EGEException; waiting stops also when the conversion is cancelled. Time
+ * of waiting for place is measured for every pool.<br/><br/>
+ *
+ * Every stage of a path takes place in pool of its converter only while the
+ * stage converts (see {@link ConversionPerformer}), so e.g. office conversion
+ * followed by XSLT stages frees its office place as soon as the office stage
+ * is finished.<br/>
+ *
+ * Implemented as Singleton.
+ */
+public final class ConversionScheduler
+{
+
+	private static final Logger LOGGER = Logger.getLogger(ConversionScheduler.class);
+
+	public static final String OFFICE = "office";
+
+	public static final String XSLT_HEAVY = "xslt-heavy";
+
+	public static final String XSLT_LIGHT = "xslt-light";
+
+	public static final String VALIDATION = "validation";
+
+	private static final String PREFIX = "pool.";
+
+	private static final String CONVERTERS = ".converters";
+
+	/*
+	 * Interval of checking cancellation of waiting conversion.
+	 */
+	private static final long WAIT_INTERVAL = 1000;
+
+	private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+
+	/*
+	 * Pools of converters configured in oxgarage.properties : name of
+	 * converter - pool.
+	 */
+	private final Map<String, String> converterPools = new HashMap<String, String>();
+
+	private final String defaultPool;
+
+	private final long waitTimeout;
+
+	private static class ConversionSchedulerHolder
+	{
+		private static final ConversionScheduler INSTANCE = new ConversionScheduler();
+	}
+
+
+	private ConversionScheduler()
+	{
+		defaultPool = EGEConstants.oxgProps.getProperty("defaultPool",
+			XSLT_LIGHT).trim();
+		waitTimeout = EGEConstants.getLongProperty("poolWaitTimeout", 0);
+		for (String key : EGEConstants.oxgProps.stringPropertyNames()) {
+			if (key.startsWith(PREFIX) && key.endsWith(CONVERTERS)
+					&& key.length() > PREFIX.length() + CONVERTERS.length()) {
+				String pool = key.substring(PREFIX.length(), key.length()
+						- CONVERTERS.length());
+				for (String name : EGEConstants.oxgProps.getProperty(key).split(
+					",")) {
+					if (name.trim().length() > 0) {
+						converterPools.put(name.trim(), pool);
+					}
+				}
+			}
+		}
+		for (String name : new String[] { OFFICE, XSLT_HEAVY, XSLT_LIGHT,
+				VALIDATION, defaultPool }) {
+			getPool(name);
+		}
+	}
+
+
+	/**
+	 * Method returns instance of ConversionScheduler.
+	 *
+	 * @return
+	 */
+	public static ConversionScheduler getInstance()
+	{
+		return ConversionSchedulerHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Returns name of pool of conversion action.
+	 *
+	 * @param ca
+	 * @return
+	 */
+	public String getPoolName(ConversionAction ca)
+	{
+		Converter converter = ca.getConverter();
+		if (converter instanceof NamedConverter) {
+			NamedConverter nc = (NamedConverter) converter;
+			String pool = converterPools.get(nc.getName());
+			if (pool == null) {
+				pool = nc.getPool();
+			}
+			if (pool != null && pool.trim().length() > 0) {
+				return pool.trim();
+			}
+		}
+		return defaultPool;
+	}
+
+
+	/**
+	 * Reserves place in pool of selected action for one stage of conversion;
+	 * waits until the pool has a free place.
+	 *
+	 * @param ca
+	 * @param token
+	 *            cancellation token of conversion
+	 * @return ticket, which has to be released after the stage
+	 * @throws EGEException
+	 *             if stage was rejected by pool or conversion was cancelled
+	 */
+	public Ticket acquire(ConversionAction ca, CancellationToken token)
+		throws EGEException
+	{
+		Pool pool = getPool(getPoolName(ca));
+		pool.acquire(waitTimeout, token);
+		return new Ticket(pool);
+	}
+
+
+	/**
+	 * Reserves place in pool of selected action only if it is free at once.
+	 *
+	 * @param ca
+	 * @return ticket, which has to be released after the stage, or 'null' if
+	 *         the pool has no free place
+	 */
+	public Ticket tryAcquire(ConversionAction ca)
+	{
+		Pool pool = getPool(getPoolName(ca));
+		return pool.tryAcquire() ? new Ticket(pool) : null;
+	}
+
+
+	/**
+	 * Reserves place in selected pool.
+	 *
+	 * @param name
+	 *            name of pool
+	 * @return ticket, which has to be released after operation
+	 * @throws EGEException
+	 *             if operation was rejected by pool
+	 */
+	public Ticket acquire(String name)
+		throws EGEException
+	{
+		Pool pool = getPool(name);
+		pool.acquire(waitTimeout, null);
+		return new Ticket(pool);
+	}
+
+
+	/**
+	 * Returns all pools, sorted by name.
+	 */
+	public Map<String, Pool> getPools()
+	{
+		return new TreeMap<String, Pool>(pools);
+	}
+
+
+	private Pool getPool(String name)
+	{
+		Pool pool = pools.get(name);
+		if (pool == null) {
+			int processors = Runtime.getRuntime().availableProcessors();
+			int threads = processors;
+			if (OFFICE.equals(name)) {
+				threads = 2;
+			}
+			else if (XSLT_HEAVY.equals(name)) {
+				threads = Math.max(1, processors / 2);
+			}
+			else if (XSLT_LIGHT.equals(name)) {
+				threads = processors * 2;
+			}
+			threads = EGEConstants.getIntProperty(PREFIX + name + ".threads",
+				threads);
+			int queue = EGEConstants.getIntProperty(PREFIX + name + ".queue",
+				100);
+			Pool created = new Pool(name, Math.max(1, threads), Math.max(0,
+				queue));
+			pool = pools.putIfAbsent(name, created);
+			if (pool == null) {
+				LOGGER.debug("Pool " + name + " : " + created.getLimit()
+						+ " threads, queue " + created.getQueueLimit());
+				pool = created;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Pool of conversions with its own limit of running and waiting
+	 * conversions.
+	 */
+	public static class Pool
+	{
+
+		private final String name;
+
+		private final int limit;
+
+		private final int queueLimit;
+
+		private final Semaphore permits;
+
+		private final AtomicInteger waiting = new AtomicInteger();
+
+		private final AtomicLong completed = new AtomicLong();
+
+		private final AtomicLong rejected = new AtomicLong();
+
+		private final AtomicLong acquired = new AtomicLong();
+
+		private final AtomicLong waitMillis = new AtomicLong();
+
+		private volatile long maxWaitMillis = 0;
+
+
+		Pool(String name, int limit, int queueLimit)
+		{
+			this.name = name;
+			this.limit = limit;
+			this.queueLimit = queueLimit;
+			this.permits = new Semaphore(limit, true);
+		}
+
+
+		/*
+		 * Waits for place; token (may be 'null') is checked every
+		 * WAIT_INTERVAL.
+		 */
+		void acquire(long timeout, CancellationToken token)
+			throws EGEException
+		{
+			if (tryAcquire()) {
+				return;
+			}
+			long started = System.currentTimeMillis();
+			int queued = waiting.incrementAndGet();
+			try {
+				if (queueLimit > 0 && queued > queueLimit) {
+					rejected.incrementAndGet();
+					throw new EGEException("Too many conversions waiting in pool '"
+							+ name + "'.");
+				}
+				long deadline = timeout > 0 ? started + timeout : Long.MAX_VALUE;
+				while (true) {
+					long wait = Math.min(WAIT_INTERVAL, deadline
+							- System.currentTimeMillis());
+					if (wait > 0
+							&& permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+						break;
+					}
+					if (token != null) {
+						token.check();
+					}
+					if (System.currentTimeMillis() >= deadline) {
+						rejected.incrementAndGet();
+						throw new EGEException("Timeout of waiting in pool '"
+								+ name + "'.");
+					}
+				}
+				recordWait(System.currentTimeMillis() - started);
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new EGEException("Conversion interrupted.");
+			}
+			finally {
+				waiting.decrementAndGet();
+			}
+		}
+
+
+		/*
+		 * Takes place only if it is free and nobody waits for it.
+		 */
+		boolean tryAcquire()
+		{
+			if (waiting.get() == 0 && permits.tryAcquire()) {
+				acquired.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+
+		private void recordWait(long millis)
+		{
+			acquired.incrementAndGet();
+			waitMillis.addAndGet(millis);
+			synchronized (this) {
+				if (millis > maxWaitMillis) {
+					maxWaitMillis = millis;
+				}
+			}
+		}
+
+
+		void release()
+		{
+			completed.incrementAndGet();
+			permits.release();
+		}
+
+
+		/**
+		 * Returns name of pool.
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+
+		/**
+		 * Returns maximal number of running conversions.
+		 */
+		public int getLimit()
+		{
+			return limit;
+		}
+
+
+		/**
+		 * Returns maximal number of waiting conversions (0 - unlimited).
+		 */
+		public int getQueueLimit()
+		{
+			return queueLimit;
+		}
+
+
+		/**
+		 * Returns number of running conversions.
+		 */
+		public int getActive()
+		{
+			return limit - permits.availablePermits();
+		}
+
+
+		/**
+		 * Returns number of waiting conversions.
+		 */
+		public int getWaiting()
+		{
+			return waiting.get();
+		}
+
+
+		/**
+		 * Returns number of finished conversions.
+		 */
+		public long getCompleted()
+		{
+			return completed.get();
+		}
+
+
+		/**
+		 * Returns number of rejected conversions.
+		 */
+		public long getRejected()
+		{
+			return rejected.get();
+		}
+
+
+		/**
+		 * Returns average time of waiting for place in milliseconds
+		 * (conversions started without waiting are included).
+		 */
+		public double getAverageWait()
+		{
+			long count = acquired.get();
+			return count == 0 ? 0 : (double) waitMillis.get() / count;
+		}
+
+
+		/**
+		 * Returns the longest time of waiting for place in milliseconds.
+		 */
+		public long getMaxWait()
+		{
+			return maxWaitMillis;
+		}
+
+	}
+
+	/**
+	 * Place reserved in pool by single stage of conversion or validation.
+	 */
+	public static class Ticket
+	{
+
+		private Pool pool;
+
+
+		Ticket(Pool pool)
+		{
+			this.pool = pool;
+		}
+
+
+		/**
+		 * Releases reserved place; subsequent calls have no effect.
+		 */
+		public synchronized void release()
+		{
+			if (pool != null) {
+				pool.release();
+				pool = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,255 @@
+package pl.psnc.dl.ege;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.types.ConversionAction;
+
+/**
+ * Measured latency and throughput of conversion actions.<br/><br/>
+ *
+ * Every successful conversion performed by EGE is recorded with its time and
+ * sizes of input and output data. Cost of an action is exponentially weighted
+ * moving average (EWMA) of milliseconds per kilobyte of input
+ * (oxgarage.properties : <i>statisticsAlpha</i> - weight of the latest
+ * sample, default : 0.2).<br/><br/>
+ *
+ * If <i>adaptiveCosts</i> is set to 'true' EGE selects conversions paths by
+ * observed costs of actions instead of their static costs. Actions with less
+ * than <i>adaptiveCostMinSamples</i> samples (default : 3) are estimated from
+ * their static cost scaled by average ratio of observed to static cost of
+ * measured actions.<br/>
+ *
+ * Implemented as Singleton.
+ */
+public final class ConversionStatistics
+{
+
+	private static final double KB = 1024.0;
+
+	private final boolean adaptive;
+
+	private final double alpha;
+
+	private final int minSamples;
+
+	/*
+	 * Statistics by action (string representation of action contains
+	 * converter and conversion arguments).
+	 */
+	private final ConcurrentMap<String, ActionStatistics> statistics = new ConcurrentHashMap<String, ActionStatistics>();
+
+	private static class ConversionStatisticsHolder
+	{
+		private static final ConversionStatistics INSTANCE = new ConversionStatistics();
+	}
+
+
+	private ConversionStatistics()
+	{
+		adaptive = EGEConstants.getBooleanProperty("adaptiveCosts", false);
+		double a = 0.2;
+		try {
+			a = Double.parseDouble(EGEConstants.oxgProps.getProperty(
+				"statisticsAlpha", "0.2").trim());
+		}
+		catch (NumberFormatException ex) {
+			// default value
+		}
+		alpha = a > 0 && a <= 1 ? a : 0.2;
+		minSamples = EGEConstants.getIntProperty("adaptiveCostMinSamples", 3);
+	}
+
+
+	/**
+	 * Method returns instance of ConversionStatistics.
+	 *
+	 * @return
+	 */
+	public static ConversionStatistics getInstance()
+	{
+		return ConversionStatisticsHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Returns 'true' if conversions paths are selected by observed costs.
+	 */
+	public boolean isAdaptive()
+	{
+		return adaptive;
+	}
+
+
+	/**
+	 * Records successful conversion.
+	 *
+	 * @param ca performed action
+	 * @param bytesIn size of input data
+	 * @param bytesOut size of output data
+	 * @param millis time of conversion
+	 */
+	public void record(ConversionAction ca, long bytesIn, long bytesOut,
+			long millis)
+	{
+		String key = ca.toString();
+		ActionStatistics stats = statistics.get(key);
+		if (stats == null) {
+			ActionStatistics created = new ActionStatistics(ca.getCost());
+			stats = statistics.putIfAbsent(key, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		stats.record(bytesIn, bytesOut, millis, alpha);
+	}
+
+
+	/**
+	 * Returns estimated cost of action : observed milliseconds per kilobyte of
+	 * input or static cost scaled to observed costs.
+	 *
+	 * @param ca
+	 * @return
+	 */
+	public double estimateCost(ConversionAction ca)
+	{
+		ActionStatistics stats = statistics.get(ca.toString());
+		if (stats != null && stats.getCount() >= minSamples) {
+			return stats.getCost();
+		}
+		double ratio = 0;
+		int measured = 0;
+		for (ActionStatistics s : statistics.values()) {
+			if (s.getCount() >= minSamples && s.staticCost > 0) {
+				ratio += s.getCost() / s.staticCost;
+				measured++;
+			}
+		}
+		return measured == 0 ? ca.getCost() : ca.getCost() * ratio / measured;
+	}
+
+
+	/**
+	 * Returns statistics of all measured actions, sorted by action.
+	 */
+	public Map<String, ActionStatistics> getStatistics()
+	{
+		return new TreeMap<String, ActionStatistics>(statistics);
+	}
+
+
+	/**
+	 * Removes all statistics.
+	 */
+	public void clear()
+	{
+		statistics.clear();
+	}
+
+	/**
+	 * Statistics of single conversion action.
+	 */
+	public static class ActionStatistics
+	{
+
+		private final int staticCost;
+
+		private long count = 0;
+
+		private long totalMillis = 0;
+
+		private long totalBytesIn = 0;
+
+		private long totalBytesOut = 0;
+
+		private double cost = 0;
+
+
+		ActionStatistics(int staticCost)
+		{
+			this.staticCost = staticCost;
+		}
+
+
+		synchronized void record(long bytesIn, long bytesOut, long millis,
+				double alpha)
+		{
+			double sample = millis / Math.max(1.0, bytesIn / KB);
+			cost = count == 0 ? sample : alpha * sample + (1 - alpha) * cost;
+			count++;
+			totalMillis += millis;
+			totalBytesIn += bytesIn;
+			totalBytesOut += bytesOut;
+		}
+
+
+		/**
+		 * Returns number of recorded conversions.
+		 */
+		public synchronized long getCount()
+		{
+			return count;
+		}
+
+
+		/**
+		 * Returns EWMA of milliseconds per kilobyte of input.
+		 */
+		public synchronized double getCost()
+		{
+			return cost;
+		}
+
+
+		/**
+		 * Returns average time of conversion in milliseconds.
+		 */
+		public synchronized double getAverageMillis()
+		{
+			return count == 0 ? 0 : (double) totalMillis / count;
+		}
+
+
+		/**
+		 * Returns average throughput : kilobytes of input per second.
+		 */
+		public synchronized double getThroughput()
+		{
+			return totalMillis == 0 ? 0 : totalBytesIn / KB * 1000
+					/ totalMillis;
+		}
+
+
+		/**
+		 * Returns total size of input data in bytes.
+		 */
+		public synchronized long getBytesIn()
+		{
+			return totalBytesIn;
+		}
+
+
+		/**
+		 * Returns total size of output data in bytes.
+		 */
+		public synchronized long getBytesOut()
+		{
+			return totalBytesOut;
+		}
+
+
+		/**
+		 * Returns static cost of action.
+		 */
+		public int getStaticCost()
+		{
+			return staticCost;
+		}
+
+	}
+
+}
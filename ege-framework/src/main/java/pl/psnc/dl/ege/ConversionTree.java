@@ -0,0 +1,279 @@
+package pl.psnc.dl.ege;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.types.ConversionAction;
+import pl.psnc.dl.ege.types.ConversionsPath;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
+
+/*
+ * Tree of conversions paths sharing prefixes : conversions common to many
+ * paths are performed once, their result is stored in temporary file and
+ * sent concurrently to every divergent branch.
+ */
+class ConversionTree
+{
+
+	private static final Logger LOGGER = Logger.getLogger(ConversionTree.class);
+
+	private final EGE ege;
+
+	private final List<OutputStream> outputs;
+
+	private final Node root = new Node();
+
+	/*
+	 * Exceptions of conversions : index of path - exception.
+	 */
+	private final Exception[] errors;
+
+	private File workDir;
+
+	private int files = 0;
+
+
+	public ConversionTree(EGE ege, List<ConversionsPath> paths,
+			List<OutputStream> outputs)
+	{
+		if (paths.size() != outputs.size()) {
+			throw new IllegalArgumentException(
+					"Number of paths differs from number of outputs.");
+		}
+		this.ege = ege;
+		this.outputs = outputs;
+		this.errors = new Exception[paths.size()];
+		for (int i = 0; i < paths.size(); i++) {
+			Node node = root;
+			for (ConversionAction ca : paths.get(i).getPath()) {
+				Node next = null;
+				for (Node child : node.children) {
+					if (isSame(child.actions.get(0), ca)) {
+						next = child;
+						break;
+					}
+				}
+				if (next == null) {
+					next = new Node();
+					next.actions.add(ca);
+					node.children.add(next);
+				}
+				node = next;
+			}
+			node.outputs.add(Integer.valueOf(i));
+		}
+		for (Node child : root.children) {
+			child.compact();
+		}
+	}
+
+
+	/**
+	 * Performs all conversions of the tree.
+	 *
+	 * @param inputStream
+	 * @return exceptions of conversions, indexed as paths ('null' - conversion
+	 *         succeeded)
+	 * @throws IOException
+	 */
+	public List<Exception> perform(InputStream inputStream)
+		throws IOException
+	{
+		workDir = TempSpaceManager.getInstance().createTempDir();
+		try {
+			perform(root, inputStream);
+		}
+		finally {
+			TempSpaceManager.getInstance().release(workDir);
+		}
+		List<Exception> result = new ArrayList<Exception>();
+		for (Exception ex : errors) {
+			result.add(ex);
+		}
+		return result;
+	}
+
+
+	/*
+	 * Performs conversions of node and its subtree.
+	 */
+	private void perform(Node node, InputStream is)
+	{
+		int targets = node.outputs.size() + node.children.size();
+		if (targets == 0) {
+			return;
+		}
+		if (targets == 1 && node.children.size() == 1) {
+			// root with single branch : nothing to share
+			perform(node.children.get(0), is);
+			return;
+		}
+		if (targets == 1) {
+			int index = node.outputs.get(0).intValue();
+			try {
+				convert(node, is, outputs.get(index));
+			}
+			catch (Exception ex) {
+				errors[index] = ex;
+			}
+			return;
+		}
+		File result;
+		synchronized (this) {
+			result = new File(workDir, String.valueOf(files++));
+		}
+		try {
+			OutputStream os = new FileOutputStream(result);
+			try {
+				convert(node, is, os);
+			}
+			finally {
+				os.close();
+			}
+		}
+		catch (Exception ex) {
+			LOGGER.error(ex.getMessage(), ex);
+			node.fail(ex, errors);
+			return;
+		}
+		for (Integer index : node.outputs) {
+			try {
+				InputStream fis = new FileInputStream(result);
+				try {
+					EGEIOUtils.copyStream(fis, outputs.get(index.intValue()));
+				}
+				finally {
+					fis.close();
+				}
+			}
+			catch (IOException ex) {
+				errors[index.intValue()] = ex;
+			}
+		}
+		List<Thread> branches = new ArrayList<Thread>();
+		for (final Node child : node.children) {
+			final File input = result;
+			Thread branch = new Thread(new Runnable() {
+				public void run()
+				{
+					try {
+						InputStream fis = new FileInputStream(input);
+						try {
+							perform(child, fis);
+						}
+						finally {
+							fis.close();
+						}
+					}
+					catch (IOException ex) {
+						child.fail(ex, errors);
+					}
+				}
+			});
+			branch.start();
+			branches.add(branch);
+		}
+		try {
+			for (Thread branch : branches) {
+				branch.join();
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			node.fail(ex, errors);
+		}
+		finally {
+			result.delete();
+		}
+	}
+
+
+	/*
+	 * Performs conversions of single node : node without actions copies data.
+	 */
+	private void convert(Node node, InputStream is, OutputStream os)
+		throws Exception
+	{
+		if (node.actions.isEmpty()) {
+			EGEIOUtils.copyStream(is, os);
+		}
+		else {
+			ege.performConversion(is, os, new ConversionsPath(node.actions));
+		}
+	}
+
+
+	/*
+	 * Actions can be shared if they are performed by the same converter with
+	 * the same properties.
+	 */
+	private static boolean isSame(ConversionAction ca1, ConversionAction ca2)
+	{
+		if (!ca1.equals(ca2)) {
+			return false;
+		}
+		Map<String, String> p1 = ca1.getConversionActionArguments()
+				.getProperties();
+		Map<String, String> p2 = ca2.getConversionActionArguments()
+				.getProperties();
+		return p1 == null || p1.isEmpty() ? p2 == null || p2.isEmpty() : p1
+				.equals(p2);
+	}
+
+	/*
+	 * Node of the tree : sequence of actions with outputs (paths ending after
+	 * the sequence) and divergent branches.
+	 */
+	private static class Node
+	{
+
+		private final List<ConversionAction> actions = new ArrayList<ConversionAction>();
+
+		private final List<Integer> outputs = new ArrayList<Integer>();
+
+		private final List<Node> children = new ArrayList<Node>();
+
+
+		/*
+		 * Joins chains of actions without branches into single nodes.
+		 */
+		public void compact()
+		{
+			while (outputs.isEmpty() && children.size() == 1) {
+				Node child = children.remove(0);
+				actions.addAll(child.actions);
+				outputs.addAll(child.outputs);
+				children.addAll(child.children);
+			}
+			for (Node child : children) {
+				child.compact();
+			}
+		}
+
+
+		/*
+		 * Reports exception for all paths passing through node.
+		 */
+		public void fail(Exception ex, Exception[] errors)
+		{
+			for (Integer index : outputs) {
+				errors[index.intValue()] = ex;
+			}
+			for (Node child : children) {
+				child.fail(ex, errors);
+			}
+		}
+
+	}
+
+}
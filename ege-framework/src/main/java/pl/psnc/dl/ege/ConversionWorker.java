@@ -0,0 +1,267 @@
+package pl.psnc.dl.ege;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.exception.EGEException;
+import pl.psnc.dl.ege.types.ConversionsPath;
+
+/**
+ * Stateless worker process, which performs conversions of shared job queue
+ * (see {@link JobQueue}).<br/><br/>
+ *
+ * Worker is started on any node with access to <i>jobQueueDir</i> and with
+ * the same converters as the service :<br/>
+ * <code>java -cp &lt;classes and libraries of the service&gt;
+ * pl.psnc.dl.ege.ConversionWorker [threads]</code><br/>
+ * Number of jobs performed at once is taken from argument or
+ * <i>workerThreads</i> (oxgarage.properties, default : number of
+ * processors); conversions are still limited by pools of converters (see
+ * {@link ConversionScheduler}).<br/>
+ * Worker touches its running jobs and cancels jobs cancelled by clients.
+ * Jobs of stopped worker are returned to queue, jobs of killed worker are
+ * returned to queue when they become stale.
+ */
+public class ConversionWorker
+	implements Runnable
+{
+
+	private static final Logger LOGGER = Logger.getLogger(ConversionWorker.class);
+
+	/*
+	 * Interval of touching running jobs and checking their cancellation.
+	 */
+	private static final long HEARTBEAT_INTERVAL = 1000;
+
+	/*
+	 * Interval of maintenance of queue.
+	 */
+	private static final long MAINTENANCE_INTERVAL = 60L * 1000;
+
+	/*
+	 * Time for jobs of stopped worker to return to queue.
+	 */
+	private static final long STOP_TIMEOUT = 10000;
+
+	private final JobQueue queue = JobQueue.getInstance();
+
+	private final EGEImpl ege;
+
+	/*
+	 * Cancellation tokens of running jobs - guarded by 'running'.
+	 */
+	private final Map<JobQueue.Job, CancellationToken> running = new HashMap<JobQueue.Job, CancellationToken>();
+
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	private volatile boolean stopped = false;
+
+
+	public ConversionWorker(EGEImpl ege)
+	{
+		this.ege = ege;
+	}
+
+
+	public static void main(String[] args)
+	{
+		int threads = EGEConstants.getIntProperty("workerThreads", Runtime
+				.getRuntime().availableProcessors());
+		if (args.length > 0) {
+			try {
+				threads = Integer.parseInt(args[0]);
+			}
+			catch (NumberFormatException ex) {
+				System.err.println("Usage : ConversionWorker [threads]");
+				System.exit(1);
+			}
+		}
+		final ConversionWorker worker = new ConversionWorker(new EGEImpl());
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run()
+			{
+				worker.stop();
+			}
+		});
+		worker.start(Math.max(1, threads));
+	}
+
+
+	/**
+	 * Starts threads of worker.
+	 *
+	 * @param count
+	 *            number of jobs performed at once
+	 */
+	public synchronized void start(int count)
+	{
+		LOGGER.info("Worker started : " + count + " threads.");
+		for (int i = 0; i < count; i++) {
+			Thread t = new Thread(this, "ege-worker-" + i);
+			threads.add(t);
+			t.start();
+		}
+		Thread monitor = new Thread(new Runnable() {
+			public void run()
+			{
+				monitor();
+			}
+		}, "ege-worker-monitor");
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+
+	/**
+	 * Stops worker : running jobs are cancelled and returned to queue.
+	 */
+	public void stop()
+	{
+		stopped = true;
+		synchronized (running) {
+			for (CancellationToken token : running.values()) {
+				token.cancel("Worker stopped.");
+			}
+		}
+		List<Thread> toJoin;
+		synchronized (this) {
+			toJoin = new ArrayList<Thread>(threads);
+		}
+		long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+		try {
+			for (Thread t : toJoin) {
+				t.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		LOGGER.info("Worker stopped.");
+	}
+
+
+	/**
+	 * Performs jobs of queue until worker is stopped.
+	 */
+	public void run()
+	{
+		while (!stopped) {
+			JobQueue.Job job = queue.claim();
+			if (job == null) {
+				try {
+					Thread.sleep(queue.getPollInterval());
+				}
+				catch (InterruptedException ex) {
+					return;
+				}
+				continue;
+			}
+			perform(job);
+		}
+	}
+
+
+	private void perform(JobQueue.Job job)
+	{
+		CancellationToken token = new CancellationToken(
+				EGEImpl.CONVERSION_TIMEOUT);
+		synchronized (running) {
+			running.put(job, token);
+		}
+		Exception error = null;
+		long start = System.currentTimeMillis();
+		try {
+			if (job.isCancelled()) {
+				throw new EGEException("Conversion cancelled by client.");
+			}
+			ConversionsPath path = JobQueue.resolve(ege, job.getDescription());
+			if (path == null) {
+				throw new EGEException("Conversions path of job " + job.getId()
+						+ " is not available.");
+			}
+			InputStream is = new FileInputStream(job.getInput());
+			try {
+				OutputStream os = new FileOutputStream(job.getResult());
+				try {
+					ege.performLocalConversion(is, os, path, token);
+				}
+				finally {
+					os.close();
+				}
+			}
+			finally {
+				is.close();
+			}
+		}
+		catch (Exception ex) {
+			error = ex;
+		}
+		finally {
+			synchronized (running) {
+				running.remove(job);
+			}
+			token.close();
+		}
+		if (stopped && error != null) {
+			// job is performed again by other worker
+			if (queue.release(job)) {
+				LOGGER.info("Job " + job.getId() + " returned to queue.");
+			}
+			return;
+		}
+		if (!queue.complete(job, error)) {
+			LOGGER.warn("Job " + job.getId() + " was taken from worker.");
+		}
+		else if (error != null) {
+			LOGGER.debug("Job " + job.getId() + " failed : " + error.getMessage());
+		}
+		else {
+			LOGGER.debug("Job " + job.getId() + " performed in "
+					+ (System.currentTimeMillis() - start) + " ms.");
+		}
+	}
+
+
+	/*
+	 * Touches running jobs, cancels jobs cancelled by clients and maintains
+	 * queue.
+	 */
+	private void monitor()
+	{
+		long maintained = 0;
+		while (!stopped) {
+			Map<JobQueue.Job, CancellationToken> jobs;
+			synchronized (running) {
+				jobs = new HashMap<JobQueue.Job, CancellationToken>(running);
+			}
+			for (Map.Entry<JobQueue.Job, CancellationToken> entry : jobs
+					.entrySet()) {
+				entry.getKey().touch();
+				if (entry.getKey().isCancelled()) {
+					entry.getValue().cancel("Conversion cancelled by client.");
+				}
+			}
+			long now = System.currentTimeMillis();
+			if (now - maintained > MAINTENANCE_INTERVAL) {
+				maintained = now;
+				queue.maintain();
+			}
+			try {
+				Thread.sleep(HEARTBEAT_INTERVAL);
+			}
+			catch (InterruptedException ex) {
+				return;
+			}
+		}
+	}
+
+}
@@ -3,13 +3,13 @@ package pl.psnc.dl.ege;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -21,7 +21,6 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.xml.DOMConfigurator;
 
-import pl.psnc.dl.ege.component.Converter;
 import pl.psnc.dl.ege.component.Recognizer;
 import pl.psnc.dl.ege.component.Validator;
 import pl.psnc.dl.ege.configuration.EGEConfigurationManager;
@@ -31,18 +30,17 @@ import pl.psnc.dl.ege.exception.EGEException;
 import pl.psnc.dl.ege.exception.RecognizerException;
 import pl.psnc.dl.ege.exception.ValidatorException;
 import pl.psnc.dl.ege.types.ConversionAction;
-import pl.psnc.dl.ege.types.ConversionActionArguments;
 import pl.psnc.dl.ege.types.ConversionsPath;
 import pl.psnc.dl.ege.types.DataType;
 import pl.psnc.dl.ege.types.ValidationResult;
-import edu.uci.ics.jung.graph.DirectedSparseMultigraph;
 import edu.uci.ics.jung.graph.Graph;
 
 /**
  * <p>
  * Standard Enrich Garage Engine(EGE) implementation.
  * </p>
- * Implementation uses JUNG library for generating graph of conversions.
+ * Conversions graph is kept in compact, index based structure; JUNG graph
+ * of conversions is available as a view.
  * 
  * @author mariuszs
  */
@@ -52,6 +50,18 @@ public class EGEImpl
 
 	public final static int BUFFER_SIZE = 131072;
 
+	/**
+	 * Deadline of single conversion in milliseconds (oxgarage.properties :
+	 * conversionTimeout, 0 - none).
+	 */
+	public static final long CONVERSION_TIMEOUT = EGEConstants
+			.getLongProperty("conversionTimeout", 0);
+
+	/*
+	 * Interval of checking cancellation while waiting for the last stage.
+	 */
+	private static final long JOIN_INTERVAL = 1000;
+
 	private static final Logger LOGGER = Logger.getLogger(EGEImpl.class.getName());
 
 	static {
@@ -71,11 +81,6 @@ public class EGEImpl
 		}
 	}
 
-	/*
-	 * Contains last thrown exception from ConversionPerformer thread.
-	 */
-	private List<Exception> exceptions = new LinkedList<Exception>();
-
 	/*
 	 * Reference to singleton - extension manager.
 	 */
@@ -92,14 +97,15 @@ public class EGEImpl
 	private List<Recognizer> recognizers;
 
 	/*
-	 * List of available converter plugins : loaded through extension manager.
+	 * Directed graph of connections between available converter plugins :
+	 * shared by EGE instances.
 	 */
-	private List<Converter> converters;
+	private ConversionGraph graph;
 
 	/*
-	 * Directed graph of connections between available converter plugins.
+	 * JUNG view of the graph - created on demand.
 	 */
-	private final Graph<ConversionAction, Integer> graph = new DirectedSparseMultigraph<ConversionAction, Integer>();
+	private Graph<ConversionAction, Integer> jungGraph;
 
 	/**
 	 * Default Constructor : initializes basic structures.
@@ -111,40 +117,15 @@ public class EGEImpl
 
 
 	/*
-	 * Basic initialization : reading list of available converter plugins and
-	 * creation of converters graph.
+	 * Basic initialization : reading lists of available plugins and graph of
+	 * converters, which is built once by extension manager.
 	 */
 	private void initialize()
 	{
 		em = EGEConfigurationManager.getInstance();
-		this.converters = em.getAvailableConverters();
 		this.validators = em.getAvailableValidators();
 		this.recognizers = em.getAvailableRecognizers();
-		int size = converters.size();
-		Set<ConversionAction> nodes = new HashSet<ConversionAction>();
-		for (int i = 0; i < size; i++) {
-			Converter conv = converters.get(i);
-			for (ConversionActionArguments ac : conv.getPossibleConversions()) {
-				ConversionAction ca = new ConversionAction(ac, conv);
-				nodes.add(ca);
-			}
-		}
-		size = nodes.size();
-		List<ConversionAction> nodesList = new ArrayList<ConversionAction>(
-				nodes);
-		int index = 0;
-		for (int i = 0; i < size; i++) {
-			ConversionAction ca = nodesList.get(i);
-			graph.addVertex(ca);
-			for (int j = 0; j < size; j++) {
-				ConversionAction sca = nodesList.get(j);
-				if (ca.getConversionOutputType().equals(
-					sca.getConversionInputType())) {
-					graph.addEdge(index, ca, sca);
-					index++;
-				}
-			}
-		}
+		this.graph = em.getConversionGraph();
 	}
 
 
@@ -160,11 +141,10 @@ public class EGEImpl
 	public List<ConversionsPath> findConversionPaths(
 			final DataType sourceDataType)
 	{
-		List<ConversionAction> startNodes = getStartNodes(sourceDataType);
 		List<ConversionsPath> paths = new ArrayList<ConversionsPath>();
-		for (ConversionAction ca : startNodes) {
+		for (int node : graph.getStartNodes(sourceDataType)) {
 			expandPathsSet(new ConversionsPath(
-					new ArrayList<ConversionAction>()), ca, paths, null);
+					new ArrayList<ConversionAction>()), node, paths, null);
 		}
 		Collections.sort(paths);	
 		return paths;
@@ -184,11 +164,10 @@ public class EGEImpl
 	public List<ConversionsPath> findConversionPaths(
 			final DataType sourceDataType, final DataType resultDataType)
 	{
-		List<ConversionAction> startNodes = getStartNodes(sourceDataType);
 		List<ConversionsPath> paths = new ArrayList<ConversionsPath>();
-		for (ConversionAction ca : startNodes) {
+		for (int node : graph.getStartNodes(sourceDataType)) {
 			expandPathsSet(new ConversionsPath(
-					new ArrayList<ConversionAction>()), ca, paths,
+					new ArrayList<ConversionAction>()), node, paths,
 				resultDataType);
 		}
 		Collections.sort(paths);		
@@ -222,7 +201,52 @@ public class EGEImpl
 		for (Validator v : validators) {
 			for (DataType dt : v.getSupportedValidationTypes()) {
 				if (dt.equals(inputDataType)) {
-					return v.validate(inputData, inputDataType);
+					ConversionScheduler.Ticket ticket = ConversionScheduler
+							.getInstance().acquire(ConversionScheduler.VALIDATION);
+					try {
+						return v.validate(inputData, inputDataType);
+					}
+					finally {
+						ticket.release();
+					}
+				}
+			}
+		}
+		throw new ValidatorException(inputDataType);
+	}
+
+
+	/**
+	 * <p>Method performs fail-fast validation : validation is aborted on
+	 * the first fatal error or when number of errors reaches errorLimit
+	 * (values lower than 1 abort only on fatal errors).</p>
+	 * 
+	 * @param inputData
+	 *            input stream that contains necessary data
+	 * @param inputDataType
+	 *            validation argument
+	 * @param errorLimit
+	 *            number of errors that aborts validation
+	 * @return instance of {@link ValidationResult}
+	 * @throws IOException
+	 * @throws {@link ValidatorException}
+	 * @throws {@link EGEException}
+	 */
+	public ValidationResult performValidation(final InputStream inputData,
+			final DataType inputDataType, int errorLimit)
+		throws IOException, ValidatorException, EGEException
+	{
+		for (Validator v : validators) {
+			for (DataType dt : v.getSupportedValidationTypes()) {
+				if (dt.equals(inputDataType)) {
+					ConversionScheduler.Ticket ticket = ConversionScheduler
+							.getInstance().acquire(ConversionScheduler.VALIDATION);
+					try {
+						return v.validate(inputData, inputDataType, errorLimit);
+					}
+					finally {
+						ticket.release();
+					}
 				}
 			}
 		}
@@ -303,24 +327,139 @@ public class EGEImpl
 			OutputStream outputStream, ConversionsPath path)
 		throws ConverterException, EGEException, IOException
 	{
+		CancellationToken token = new CancellationToken(CONVERSION_TIMEOUT);
+		try {
+			performConversion(inputStream, outputStream, path, token);
+		}
+		finally {
+			token.close();
+		}
+	}
+
+
+	/**
+	 * Performs sequence of conversions, which can be cancelled by selected
+	 * token. Cancelled conversion interrupts its stages, closes their pipes
+	 * and throws EGEException.
+	 * 
+	 * @param inputStream
+	 *            source of data to convert
+	 * @param outputStream
+	 *            output stream for converted data
+	 * @param path
+	 *            defines sequence of conversion.
+	 * @param token
+	 *            cancellation token of conversion
+	 * @throws EGEException
+	 *             if unexpected error occurred within method or conversion
+	 *             was cancelled.
+	 * @throws ConverterException
+	 *             if during conversion method an exception occurred.
+	 */
+	public void performConversion(final InputStream inputStream,
+			OutputStream outputStream, ConversionsPath path,
+			CancellationToken token)
+		throws ConverterException, EGEException, IOException
+	{
+		if (path != null && path.getPath() != null && !path.getPath().isEmpty()
+				&& JobQueue.getInstance().isEnabled()) {
+			// conversion is performed by one of workers
+			JobQueue.getInstance().perform(inputStream, outputStream, path,
+				token);
+			return;
+		}
+		performLocalConversion(inputStream, outputStream, path, token);
+	}
+
+
+	/*
+	 * Performs conversion in this process (e.g. job of worker).
+	 */
+	void performLocalConversion(final InputStream inputStream,
+			OutputStream outputStream, ConversionsPath path,
+			CancellationToken token)
+		throws ConverterException, EGEException, IOException
+	{
+		if (path != null && path.getPath() != null && !path.getPath().isEmpty()
+				&& ConversionCoalescer.getInstance().isEnabled()) {
+			// identical conversions in progress share their result
+			ConversionCoalescer.getInstance().perform(this, inputStream,
+				outputStream, path, token);
+			return;
+		}
+		convert(inputStream, null, null, outputStream, path, token);
+	}
+
+
+	/*
+	 * Performs conversion of input data stored in file with known digest.
+	 */
+	void convert(File input, String digest, OutputStream outputStream,
+			ConversionsPath path, CancellationToken token)
+		throws ConverterException, EGEException, IOException
+	{
+		InputStream is = new FileInputStream(input);
+		try {
+			convert(is, input, digest, outputStream, path, token);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+
+	/*
+	 * Performs sequence of conversions; input data may be already stored in
+	 * file ('spooled') with known digest.
+	 */
+	private void convert(InputStream inputStream, File spooled, String digest,
+			OutputStream outputStream, ConversionsPath path,
+			CancellationToken token)
+		throws ConverterException, EGEException, IOException
+	{
+		token.check();
+		PipedInputStream is = null;
+		// exceptions of this conversion - EGEImpl can run many conversions at once
+		ConversionErrors errors = new ConversionErrors();
+		StageCache.Lookup lookup = null;
+		// stops stages of this conversion only, e.g. after failure of one of them
+		CancellationToken stages = new CancellationToken(token);
+		// stages publish their events to progress of calling thread
+		ConversionProgress progress = ConversionProgress.current();
+		boolean completed = false;
 		try {
-			clearExceptionsStack();
 			final PipedOutputStream os = new PipedOutputStream();
-			PipedInputStream is = new PipedInputStream(os);
+			is = new PipedInputStream(os);
+			stages.register(is);
 			int size = 0;
 			if (path != null && path.getPath() != null) {
 				size = path.getPath().size();
 			}
+			InputStream source = inputStream;
+			int start = 0;
+			// intermediate results of longer paths are cached
+			if (size > 1 && StageCache.getInstance().isEnabled()) {
+				lookup = spooled != null ? StageCache.getInstance().lookup(
+					spooled, digest, path.getPath()) : StageCache.getInstance()
+						.lookup(inputStream, path.getPath());
+				source = lookup.getInputStream();
+				start = lookup.getStart();
+			}
 			// uses inner class ReWriter
-			ReWriter cr = new ReWriter(inputStream, os);
+			ReWriter cr = new ReWriter(source, os);
+			stages.register(cr);
 			cr.start();
 			Thread last = null;
-			for (int i = 0; i < size; i++) {
+			for (int i = start; i < size; i++) {
 				ConversionAction ca = path.getPath().get(i);
 				PipedOutputStream os2 = new PipedOutputStream();
 				PipedInputStream is2 = new PipedInputStream(os2);
-				Thread convt = new Thread(new ConversionPerformer(ca, is, os2,
-						this));
+				stages.register(is2);
+				OutputStream cos = lookup != null ? lookup.wrap(i, os2) : os2;
+				// stages take places in pools of their converters
+				Thread convt = new Thread(new ConversionPerformer(ca, is, cos,
+						errors, stages, progress, i, i > start));
+				stages.register(convt);
 				convt.start();
 				last = convt;
 				is = is2;
@@ -330,23 +469,84 @@ public class EGEImpl
 			while ((b = is.read(buf)) != -1) {
 				outputStream.write(buf, 0, b);
 			}
-			last.join();
+			// hanging stage does not block cancelled conversion
+			while (last.isAlive()) {
+				last.join(JOIN_INTERVAL);
+				token.check();
+			}
 			// catches exception reported in ConversionPerfomer thread
-			Exception ex = throwException();
+			Exception ex = errors.throwException();
 			if (ex != null) {
 				throw ex;
 			}
+			if (lookup != null) {
+				lookup.commit();
+			}
+			completed = true;
 		}
 		catch (ConverterException ex) {
 			LOGGER.error(ex.getMessage(), ex);
+			token.check();
 			throw ex;
 		}
 		catch (IOException ex) {
+			LOGGER.error(ex.getMessage(), ex);
+			token.check();
+			throw ex;
+		}
+		catch (EGEException ex) {
 			LOGGER.error(ex.getMessage(), ex);
 			throw ex;
 		}
 		catch (Exception ex) {
 			LOGGER.error(ex.getMessage(), ex);
+			token.check();
+			throw new EGEException(ex.getMessage());
+		}
+		finally {
+			if (!completed) {
+				// failed or cancelled conversion stops all its stages
+				stages.cancel("Conversion failed.");
+			}
+			stages.close();
+			// closed pipe stops converters of interrupted conversion
+			if (is != null) {
+				is.close();
+			}
+			if (lookup != null) {
+				lookup.close();
+			}
+		}
+	}
+
+	/**
+	 * Performs conversions of the same data along many convert paths.<br/>
+	 * Conversions common to the beginning of several paths (the same
+	 * converters with the same properties) are performed only once; their
+	 * result is stored in temporary file and passed concurrently to all paths,
+	 * which diverge from it.
+	 * 
+	 * @param inputStream
+	 *            source of data to convert
+	 * @param paths
+	 *            convert paths
+	 * @param outputStreams
+	 *            output streams for converted data - one for each path
+	 * @return exceptions of conversions in order of paths ('null' if
+	 *         conversion succeeded)
+	 * @throws EGEException
+	 *             if unexpected error occurred within method.
+	 * @throws IOException
+	 */
+	public List<Exception> performConversions(final InputStream inputStream,
+			List<ConversionsPath> paths, List<OutputStream> outputStreams)
+		throws EGEException, IOException
+	{
+		try {
+			return new ConversionTree(this, paths, outputStreams)
+					.perform(inputStream);
+		}
+		catch (IllegalArgumentException ex) {
 			throw new EGEException(ex.getMessage());
 		}
 	}
@@ -374,38 +574,22 @@ public class EGEImpl
 	{
 		// sort alphabetically (to keep the documents from same family together)
 		Set<DataType> inputTypes = new TreeSet<DataType>();
-		for (ConversionAction ca : graph.getVertices()) {
+		for (int i = 0; i < graph.size(); i++) {
+			ConversionAction ca = graph.getAction(i);
 			if(ca.getConversionActionArguments().getVisible()) inputTypes.add(ca.getConversionInputType());
 		}
 		return inputTypes;
 	}
 
 
-	/*
-	 * Gets all nodes considered as starting points for provided input type. 
-	 */
-	private List<ConversionAction> getStartNodes(DataType inputType)
-	{
-		List<ConversionAction> nodes = new ArrayList<ConversionAction>(graph
-				.getVertices());
-		List<ConversionAction> startNodes = new ArrayList<ConversionAction>();
-		for (ConversionAction ca : nodes) {
-			if (ca.getConversionInputType() != null
-					&& ca.getConversionInputType().equals(inputType)) {
-				startNodes.add(ca);
-			}
-		}
-		return startNodes;
-	}
-
-
 	/*
 	 * Recursive algorithm for adding paths to paths sequence.
 	 */
 	private void expandPathsSet(ConversionsPath currentPath,
-			ConversionAction node, List<ConversionsPath> paths,
+			int index, List<ConversionsPath> paths,
 			DataType outputType)
 	{
+		ConversionAction node = graph.getAction(index);
 		int size = currentPath.getPath().size();
 		boolean loop = false;
 		// check for loops and cycles : deny cycles.
@@ -454,12 +638,10 @@ public class EGEImpl
 		// only search other paths, if the path we currently have is not longer than equal path already stored in the list of paths
 		// if we search all the paths, it takes too long
 		int indexOfPath = paths.indexOf(currentPath);
-		if(indexOfPath==-1 || paths.get(indexOfPath).getCost()>=currentPath.getCost()) {
-			List<ConversionAction> succs = new ArrayList<ConversionAction>(graph
-					.getSuccessors(node));
-			for (ConversionAction ca : succs) {
+		if(indexOfPath==-1 || cost(paths.get(indexOfPath))>=cost(currentPath)) {
+			for (int succ : graph.getSuccessors(index)) {
 				expandPathsSet(new ConversionsPath(new ArrayList<ConversionAction>(
-						currentPath.getPath())), ca, paths, outputType);
+						currentPath.getPath())), succ, paths, outputType);
 			}
 		}
 	}
@@ -476,7 +658,7 @@ public class EGEImpl
 			if (destinOutputType != null) {
 				if (currentOutputType.equals(destinOutputType)) {
 					int indexOfPath = paths.indexOf(path);
-					if(indexOfPath==-1 || paths.get(indexOfPath).getCost()>path.getCost()) {
+					if(indexOfPath==-1 || cost(paths.get(indexOfPath))>cost(path)) {
 						if(indexOfPath!=-1) { 
 							paths.remove(indexOfPath);					
 							paths.add(indexOfPath, path);
@@ -487,7 +669,7 @@ public class EGEImpl
 			}
 			else {
 				int indexOfPath = paths.indexOf(path);
-				if(indexOfPath==-1 || paths.get(indexOfPath).getCost()>path.getCost()) {
+				if(indexOfPath==-1 || cost(paths.get(indexOfPath))>cost(path)) {
 					if(indexOfPath!=-1) { 
 						paths.remove(indexOfPath);					
 						paths.add(indexOfPath, path);
@@ -499,42 +681,72 @@ public class EGEImpl
 	}
 
 
+	/*
+	 * Cost of path : sum of static costs of conversions or - if adaptive
+	 * costs are enabled - sum of their observed costs.
+	 */
+	private double cost(ConversionsPath path)
+	{
+		ConversionStatistics statistics = ConversionStatistics.getInstance();
+		if (!statistics.isAdaptive()) {
+			return path.getCost();
+		}
+		double cost = 0;
+		for (ConversionAction ca : path.getPath()) {
+			cost += statistics.estimateCost(ca);
+		}
+		return cost;
+	}
+
+
 	/**
 	 * Returns conversion graph.
 	 * 
 	 * @return JUNG graph structure of conversion actions
 	 */
-	public Graph<ConversionAction, Integer> getConvertersGraph()
+	public synchronized Graph<ConversionAction, Integer> getConvertersGraph()
 	{
-		return (Graph<ConversionAction, Integer>) graph;
+		if (jungGraph == null) {
+			jungGraph = graph.toJungGraph();
+		}
+		return jungGraph;
 	}
 
 
 	/*
-	 * Method used by conversion threads to report exceptions caught in run() method. 
+	 * Kept for compatibility - conversion threads report exceptions to
+	 * ConversionErrors of their own conversion, exceptions received here
+	 * are only logged.
 	 * (non-Javadoc)
 	 * @see pl.psnc.dl.ege.ExceptionListener#catchException(java.lang.Exception)
 	 */
-	public synchronized void catchException(Exception ex)
+	public void catchException(Exception ex)
 	{
-		exceptions.add(ex);
+		LOGGER.error(ex.getMessage(), ex);
 	}
 
 
-	private synchronized void clearExceptionsStack()
+	/*
+	 * Collects exceptions reported by threads of single conversion.
+	 */
+	private static class ConversionErrors
+		implements ExceptionListener
 	{
-		exceptions.clear();
-	}
 
+		private final List<Exception> exceptions = new LinkedList<Exception>();
 
-	private synchronized Exception throwException()
-	{
-		try {
-			return exceptions.remove(0);
+
+		public synchronized void catchException(Exception ex)
+		{
+			exceptions.add(ex);
 		}
-		catch (IndexOutOfBoundsException ex) {
-			return null;
+
+
+		public synchronized Exception throwException()
+		{
+			return exceptions.isEmpty() ? null : exceptions.remove(0);
 		}
+
 	}
 
 	/*
@@ -0,0 +1,900 @@
+package pl.psnc.dl.ege;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.exception.EGEException;
+import pl.psnc.dl.ege.types.ConversionsPath;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+
+/**
+ * Crash-safe journal of asynchronous conversion jobs.<br/><br/>
+ *
+ * Every job has its own directory in {@link EGEConstants#JOB_JOURNAL_PATH}
+ * with spooled input data, description of conversions path with its
+ * properties (see {@link JobQueue#describe(ConversionsPath)}) and, after
+ * completion, result of conversion. Changes of state of jobs (submitted,
+ * started, completed, failed, removed) are appended to write-ahead log
+ * before they take effect; log is forced to disk, unless
+ * <i>jobJournalSync</i> is set to 'false' (oxgarage.properties).<br/><br/>
+ *
+ * After restart of the service the log is replayed ({@link #recover()}) :
+ * submitted and interrupted jobs are performed again from their spooled
+ * input, results of completed jobs are kept. Jobs are performed by
+ * <i>jobJournalThreads</i> threads (default : 2); results and errors are
+ * kept for <i>jobJournalRetention</i> milliseconds (default : 86400000).<br/>
+ * Finished jobs with callback URL are announced to their clients (see
+ * {@link CallbackDelivery}); callbacks, which were not delivered before
+ * restart, are sent again.<br/>
+ *
+ * Implemented as Singleton.
+ */
+public final class JobJournal
+{
+
+	private static final Logger LOGGER = Logger.getLogger(JobJournal.class);
+
+	public static final String PENDING = "pending";
+
+	public static final String RUNNING = "running";
+
+	public static final String COMPLETED = "completed";
+
+	public static final String FAILED = "failed";
+
+	/*
+	 * Records of log.
+	 */
+	private static final String R_SUBMITTED = "SUBMITTED";
+
+	private static final String R_STARTED = "STARTED";
+
+	private static final String R_COMPLETED = "COMPLETED";
+
+	private static final String R_FAILED = "FAILED";
+
+	private static final String R_REMOVED = "REMOVED";
+
+	private static final String R_NOTIFIED = "NOTIFIED";
+
+	private static final String LOG = "journal.log";
+
+	private static final String INPUT = "input";
+
+	private static final String RESULT = "result";
+
+	private static final String DESCRIPTION = "job.xml";
+
+	private static final String FILE_NAME = "fileName";
+
+	private static final String OUTPUT_MIME = "output.mime";
+
+	private static final String CALLBACK = "callback";
+
+	private static final String LOCATION = "location";
+
+	private static final long PURGE_INTERVAL = 60L * 1000;
+
+	private final File dir;
+
+	private final boolean sync;
+
+	private final long retention;
+
+	private final ExecutorService executor;
+
+	/*
+	 * Jobs in order of submission - guarded by 'this'.
+	 */
+	private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+	private OutputStream log = null;
+
+	private long lastPurge = System.currentTimeMillis();
+
+	private volatile boolean stopped = false;
+
+	private static class JobJournalHolder
+	{
+		private static final JobJournal INSTANCE = new JobJournal();
+	}
+
+
+	private JobJournal()
+	{
+		dir = new File(EGEConstants.JOB_JOURNAL_PATH);
+		sync = EGEConstants.getBooleanProperty("jobJournalSync", true);
+		retention = EGEConstants.getLongProperty("jobJournalRetention",
+			86400000);
+		int threads = Math.max(1, EGEConstants.getIntProperty(
+			"jobJournalThreads", 2));
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "ege-job");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			LOGGER.error("Could not create dir " + dir);
+		}
+	}
+
+
+	/**
+	 * Method returns instance of JobJournal.
+	 *
+	 * @return
+	 */
+	public static JobJournal getInstance()
+	{
+		return JobJournalHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Replays log of journal : jobs, which were not finished before restart,
+	 * are performed again; results of finished jobs are kept. Log is
+	 * compacted afterwards.
+	 */
+	public synchronized void recover()
+	{
+		File file = new File(dir, LOG);
+		if (file.exists()) {
+			try {
+				replay(file);
+			}
+			catch (IOException ex) {
+				LOGGER.error("Could not read journal : " + ex.getMessage(), ex);
+			}
+		}
+		// directories of jobs, which were not submitted
+		File[] dirs = dir.listFiles();
+		if (dirs != null) {
+			for (File f : dirs) {
+				if (f.isDirectory() && !jobs.containsKey(f.getName())) {
+					EGEIOUtils.deleteDirectory(f);
+				}
+			}
+		}
+		int resumed = 0;
+		for (Job job : jobs.values()) {
+			if (job.status.equals(PENDING) || job.status.equals(RUNNING)) {
+				job.status = PENDING;
+				if (!new File(job.dir, INPUT).exists()) {
+					job.finish(FAILED, "Input of job is lost.");
+					notify(job);
+					continue;
+				}
+				execute(job);
+				resumed++;
+			}
+			else {
+				notify(job);
+			}
+		}
+		try {
+			compact();
+		}
+		catch (IOException ex) {
+			LOGGER.error("Could not compact journal : " + ex.getMessage(), ex);
+		}
+		LOGGER.info("Journal recovered : " + jobs.size() + " jobs, " + resumed
+				+ " resumed.");
+	}
+
+
+	/**
+	 * Submits asynchronous conversion of input data stored in file; the file
+	 * is moved to journal.
+	 *
+	 * @param input
+	 *            file with input data
+	 * @param path
+	 *            conversions path with properties
+	 * @param fileName
+	 *            name of converted document (without extension)
+	 * @return identifier of job
+	 * @throws IOException
+	 *             if job could not be stored
+	 */
+	public String submit(File input, ConversionsPath path, String fileName)
+		throws IOException
+	{
+		return submit(input, path, fileName, null, null);
+	}
+
+
+	/**
+	 * Submits asynchronous conversion of input data stored in file; the file
+	 * is moved to journal. Client is notified about completion of job with
+	 * POST request sent to callback URL.
+	 *
+	 * @param input
+	 *            file with input data
+	 * @param path
+	 *            conversions path with properties
+	 * @param fileName
+	 *            name of converted document (without extension)
+	 * @param callback
+	 *            URL, which receives data of finished job, or 'null'
+	 * @param jobsUrl
+	 *            URL of jobs served to clients, which is followed by
+	 *            identifier of job in location of job, or 'null'
+	 * @return identifier of job
+	 * @throws IOException
+	 *             if job could not be stored
+	 */
+	public String submit(File input, ConversionsPath path, String fileName,
+			String callback, String jobsUrl)
+		throws IOException
+	{
+		purge();
+		String id = UUID.randomUUID().toString();
+		File jobDir = new File(dir, id);
+		if (!jobDir.mkdirs()) {
+			throw new IOException("Could not create job " + jobDir);
+		}
+		try {
+			File spooled = new File(jobDir, INPUT);
+			if (!input.renameTo(spooled)) {
+				InputStream is = new FileInputStream(input);
+				try {
+					OutputStream os = new FileOutputStream(spooled);
+					try {
+						EGEIOUtils.copyStream(is, os);
+					}
+					finally {
+						os.close();
+					}
+				}
+				finally {
+					is.close();
+				}
+			}
+			Properties description = JobQueue.describe(path);
+			description.setProperty(OUTPUT_MIME, path.getOutputDataType()
+					.getMimeType());
+			if (fileName != null) {
+				description.setProperty(FILE_NAME, fileName);
+			}
+			if (callback != null) {
+				description.setProperty(CALLBACK, callback);
+			}
+			if (jobsUrl != null) {
+				description.setProperty(LOCATION, jobsUrl + id);
+			}
+			OutputStream os = new FileOutputStream(new File(jobDir, DESCRIPTION));
+			try {
+				description.storeToXML(os, null, "UTF-8");
+			}
+			finally {
+				os.close();
+			}
+			Job job = new Job(id, jobDir, System.currentTimeMillis());
+			job.fileName = fileName;
+			job.outputMimeType = path.getOutputDataType().getMimeType();
+			job.callback = callback;
+			job.location = jobsUrl == null ? null : jobsUrl + id;
+			synchronized (this) {
+				// job exists when its record is on disk
+				append(R_SUBMITTED, job, job.submitted, null);
+				jobs.put(id, job);
+			}
+			execute(job);
+			LOGGER.debug("Job " + id + " submitted : " + path);
+			return id;
+		}
+		catch (IOException ex) {
+			EGEIOUtils.deleteDirectory(jobDir);
+			throw ex;
+		}
+	}
+
+
+	/**
+	 * Returns job with selected identifier or 'null'.
+	 */
+	public synchronized Job getJob(String id)
+	{
+		return jobs.get(id);
+	}
+
+
+	/**
+	 * Removes job with its data and result; running job is cancelled.
+	 *
+	 * @return 'false' if there is no such job
+	 */
+	public boolean remove(String id)
+	{
+		Job job;
+		synchronized (this) {
+			job = jobs.remove(id);
+			if (job == null) {
+				return false;
+			}
+			job.removed = true;
+			try {
+				append(R_REMOVED, job, System.currentTimeMillis(), null);
+			}
+			catch (IOException ex) {
+				LOGGER.error(ex.getMessage(), ex);
+			}
+		}
+		CancellationToken token = job.token;
+		if (token != null) {
+			token.cancel("Job removed.");
+		}
+		// waiting callback of job is dropped by CallbackDelivery
+		EGEIOUtils.deleteDirectory(job.dir);
+		return true;
+	}
+
+
+	/**
+	 * Returns numbers of jobs by status.
+	 */
+	public synchronized Map<String, Integer> getCounts()
+	{
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (String status : new String[] { PENDING, RUNNING, COMPLETED, FAILED }) {
+			counts.put(status, Integer.valueOf(0));
+		}
+		for (Job job : jobs.values()) {
+			counts.put(job.status, Integer.valueOf(counts.get(job.status)
+					.intValue() + 1));
+		}
+		return counts;
+	}
+
+
+	/**
+	 * Stops performing of jobs; interrupted jobs are performed again after
+	 * restart.
+	 */
+	public void shutdown()
+	{
+		stopped = true;
+		List<Job> running = new ArrayList<Job>();
+		synchronized (this) {
+			running.addAll(jobs.values());
+		}
+		for (Job job : running) {
+			CancellationToken token = job.token;
+			if (token != null) {
+				token.cancel("Service stopped.");
+			}
+		}
+		executor.shutdownNow();
+		CallbackDelivery.getInstance().shutdown();
+		synchronized (this) {
+			closeLog();
+		}
+	}
+
+
+	/**
+	 * Records, that callback of job is delivered or abandoned - called by
+	 * {@link CallbackDelivery}.
+	 */
+	synchronized void callbackFinished(Job job)
+	{
+		if (job.removed || job.notified) {
+			return;
+		}
+		job.notified = true;
+		try {
+			append(R_NOTIFIED, job, System.currentTimeMillis(), null);
+		}
+		catch (IOException ex) {
+			LOGGER.error(ex.getMessage(), ex);
+		}
+	}
+
+
+	/*
+	 * Schedules callback of finished job, unless it is already delivered.
+	 */
+	private void notify(Job job)
+	{
+		if (job.callback != null && !job.notified) {
+			CallbackDelivery.getInstance().deliver(job);
+		}
+	}
+
+
+	private void execute(final Job job)
+	{
+		executor.execute(new Runnable() {
+			public void run()
+			{
+				perform(job);
+			}
+		});
+	}
+
+
+	/*
+	 * Performs job from its spooled input.
+	 */
+	private void perform(Job job)
+	{
+		CancellationToken token = new CancellationToken(
+				EGEImpl.CONVERSION_TIMEOUT);
+		synchronized (this) {
+			if (job.removed || stopped) {
+				return;
+			}
+			try {
+				append(R_STARTED, job, System.currentTimeMillis(), null);
+			}
+			catch (IOException ex) {
+				LOGGER.error(ex.getMessage(), ex);
+			}
+			job.status = RUNNING;
+			job.token = token;
+		}
+		File result = new File(job.dir, RESULT);
+		File temp = new File(job.dir, RESULT + ".tmp");
+		String error = null;
+		// progress of job is published under identifier of job
+		ConversionProgress progress = ConversionProgress.create(job.id);
+		progress.bind();
+		try {
+			EGEImpl ege = new EGEImpl();
+			Properties description = new Properties();
+			InputStream is = new FileInputStream(new File(job.dir, DESCRIPTION));
+			try {
+				description.loadFromXML(is);
+			}
+			finally {
+				is.close();
+			}
+			ConversionsPath path = JobQueue.resolve(ege, description);
+			if (path == null) {
+				throw new EGEException("Conversions path of job is not available.");
+			}
+			is = new FileInputStream(new File(job.dir, INPUT));
+			try {
+				OutputStream os = new FileOutputStream(temp);
+				try {
+					ege.performConversion(is, os, path, token);
+				}
+				finally {
+					os.close();
+				}
+			}
+			finally {
+				is.close();
+			}
+			if (!temp.renameTo(result)) {
+				throw new IOException("Could not store result of job.");
+			}
+		}
+		catch (Exception ex) {
+			error = ex.getMessage() == null ? ex.toString() : ex.getMessage();
+			temp.delete();
+		}
+		finally {
+			token.close();
+			ConversionProgress.unbind();
+		}
+		try {
+			synchronized (this) {
+				job.token = null;
+				if (job.removed) {
+					return;
+				}
+				if (stopped) {
+					// job is performed again after restart
+					job.status = PENDING;
+					return;
+				}
+				job.finish(error == null ? COMPLETED : FAILED, error);
+				try {
+					append(error == null ? R_COMPLETED : R_FAILED, job,
+						job.completed, error);
+				}
+				catch (IOException ex) {
+					LOGGER.error(ex.getMessage(), ex);
+				}
+			}
+		}
+		finally {
+			progress.finish(error);
+		}
+		new File(job.dir, INPUT).delete();
+		notify(job);
+		LOGGER.debug("Job " + job.id + " " + job.status
+				+ (error == null ? "" : " : " + error));
+	}
+
+
+	/*
+	 * Removes jobs finished before retention time.
+	 */
+	private void purge()
+	{
+		List<Job> expired = new ArrayList<Job>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (retention <= 0 || now - lastPurge < PURGE_INTERVAL) {
+				return;
+			}
+			lastPurge = now;
+			for (Job job : jobs.values()) {
+				if (job.completed > 0 && now - job.completed > retention) {
+					expired.add(job);
+				}
+			}
+		}
+		for (Job job : expired) {
+			remove(job.id);
+		}
+		if (!expired.isEmpty()) {
+			synchronized (this) {
+				try {
+					compact();
+				}
+				catch (IOException ex) {
+					LOGGER.error("Could not compact journal : "
+							+ ex.getMessage(), ex);
+				}
+			}
+		}
+	}
+
+
+	/*
+	 * Reads states of jobs from log; malformed (e.g. partially written)
+	 * records are skipped.
+	 */
+	private void replay(File file)
+		throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] record = line.split(" ", 4);
+				if (record.length < 3) {
+					continue;
+				}
+				long time;
+				try {
+					time = Long.parseLong(record[0]);
+				}
+				catch (NumberFormatException ex) {
+					continue;
+				}
+				String id = record[2];
+				String message = record.length > 3 ? unescape(record[3]) : null;
+				Job job = jobs.get(id);
+				if (R_SUBMITTED.equals(record[1])) {
+					job = new Job(id, new File(dir, id), time);
+					if (readDescription(job)) {
+						jobs.put(id, job);
+					}
+				}
+				else if (job == null) {
+					continue;
+				}
+				else if (R_STARTED.equals(record[1])) {
+					job.status = RUNNING;
+				}
+				else if (R_COMPLETED.equals(record[1])) {
+					job.finish(COMPLETED, null);
+					job.completed = time;
+				}
+				else if (R_FAILED.equals(record[1])) {
+					job.finish(FAILED, message);
+					job.completed = time;
+				}
+				else if (R_REMOVED.equals(record[1])) {
+					jobs.remove(id);
+				}
+				else if (R_NOTIFIED.equals(record[1])) {
+					job.notified = true;
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		// results of completed jobs have to exist
+		Iterator<Job> it = jobs.values().iterator();
+		while (it.hasNext()) {
+			Job job = it.next();
+			if (job.status.equals(COMPLETED)
+					&& !new File(job.dir, RESULT).exists()) {
+				LOGGER.warn("Result of job " + job.id + " is lost.");
+				it.remove();
+			}
+		}
+	}
+
+
+	private boolean readDescription(Job job)
+	{
+		Properties description = new Properties();
+		try {
+			InputStream is = new FileInputStream(new File(job.dir, DESCRIPTION));
+			try {
+				description.loadFromXML(is);
+			}
+			finally {
+				is.close();
+			}
+		}
+		catch (IOException ex) {
+			LOGGER.warn("Job " + job.id + " is lost : " + ex.getMessage());
+			return false;
+		}
+		job.fileName = description.getProperty(FILE_NAME);
+		job.outputMimeType = description.getProperty(OUTPUT_MIME);
+		job.callback = description.getProperty(CALLBACK);
+		job.location = description.getProperty(LOCATION);
+		return true;
+	}
+
+
+	/*
+	 * Rewrites log with current states of jobs only.
+	 */
+	private void compact()
+		throws IOException
+	{
+		closeLog();
+		File temp = new File(dir, LOG + ".tmp");
+		log = new FileOutputStream(temp);
+		try {
+			for (Job job : jobs.values()) {
+				append(R_SUBMITTED, job, job.submitted, null);
+				if (job.status.equals(COMPLETED)) {
+					append(R_COMPLETED, job, job.completed, null);
+				}
+				else if (job.status.equals(FAILED)) {
+					append(R_FAILED, job, job.completed, job.error);
+				}
+				if (job.notified) {
+					append(R_NOTIFIED, job, job.completed, null);
+				}
+			}
+		}
+		finally {
+			closeLog();
+		}
+		File file = new File(dir, LOG);
+		if (!temp.renameTo(file)) {
+			// renaming over existing file is not atomic on every system
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		}
+	}
+
+
+	/*
+	 * Appends record to log - called with lock of journal.
+	 */
+	private void append(String record, Job job, long time, String message)
+		throws IOException
+	{
+		if (log == null) {
+			log = new FileOutputStream(new File(dir, LOG), true);
+		}
+		String line = time + " " + record + " " + job.id
+				+ (message == null ? "" : " " + escape(message)) + "\n";
+		log.write(line.getBytes("UTF-8"));
+		log.flush();
+		if (sync) {
+			((FileOutputStream) log).getFD().sync();
+		}
+	}
+
+
+	private void closeLog()
+	{
+		if (log != null) {
+			try {
+				log.close();
+			}
+			catch (IOException ex) {
+				LOGGER.error(ex.getMessage(), ex);
+			}
+			log = null;
+		}
+	}
+
+
+	/*
+	 * Records of log are single lines.
+	 */
+	private static String escape(String message)
+	{
+		return message.replace("\\", "\\\\").replace("\n", "\\n").replace(
+			"\r", "");
+	}
+
+
+	private static String unescape(String message)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if (c == '\\' && i + 1 < message.length()) {
+				i++;
+				sb.append(message.charAt(i) == 'n' ? '\n' : message.charAt(i));
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Asynchronous conversion job.
+	 */
+	public static class Job
+	{
+
+		private final String id;
+
+		private final File dir;
+
+		private final long submitted;
+
+		private volatile String status = PENDING;
+
+		private volatile long completed = 0;
+
+		private volatile String error = null;
+
+		private String fileName;
+
+		private String outputMimeType;
+
+		private String callback;
+
+		private String location;
+
+		private volatile boolean notified = false;
+
+		private volatile CancellationToken token = null;
+
+		private volatile boolean removed = false;
+
+
+		Job(String id, File dir, long submitted)
+		{
+			this.id = id;
+			this.dir = dir;
+			this.submitted = submitted;
+		}
+
+
+		private void finish(String status, String error)
+		{
+			this.error = error;
+			this.completed = System.currentTimeMillis();
+			this.status = status;
+		}
+
+
+		/**
+		 * Returns identifier of job.
+		 */
+		public String getId()
+		{
+			return id;
+		}
+
+
+		/**
+		 * Returns status of job : pending, running, completed or failed.
+		 */
+		public String getStatus()
+		{
+			return status;
+		}
+
+
+		/**
+		 * Returns time of submission.
+		 */
+		public long getSubmitted()
+		{
+			return submitted;
+		}
+
+
+		/**
+		 * Returns time of completion or 0 if job is not finished.
+		 */
+		public long getCompleted()
+		{
+			return completed;
+		}
+
+
+		/**
+		 * Returns message of error of failed job.
+		 */
+		public String getError()
+		{
+			return error;
+		}
+
+
+		/**
+		 * Returns name of converted document (without extension).
+		 */
+		public String getFileName()
+		{
+			return fileName;
+		}
+
+
+		/**
+		 * Returns mime type of output data type of conversions path.
+		 */
+		public String getOutputMimeType()
+		{
+			return outputMimeType;
+		}
+
+
+		/**
+		 * Returns URL, which receives data of finished job, or 'null'.
+		 */
+		public String getCallback()
+		{
+			return callback;
+		}
+
+
+		/**
+		 * Returns location of job served to clients or 'null'.
+		 */
+		public String getLocation()
+		{
+			return location;
+		}
+
+
+		/**
+		 * Returns result of completed job (zip archive - like output of EGE)
+		 * or 'null'.
+		 */
+		public File getResult()
+		{
+			return COMPLETED.equals(status) ? new File(dir, RESULT) : null;
+		}
+
+	}
+
+}
@@ -0,0 +1,584 @@
+package pl.psnc.dl.ege;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.exception.ConverterException;
+import pl.psnc.dl.ege.exception.EGEException;
+import pl.psnc.dl.ege.types.ConversionAction;
+import pl.psnc.dl.ege.types.ConversionsPath;
+import pl.psnc.dl.ege.types.DataType;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+
+/**
+ * Shared queue of conversion jobs performed by worker processes.<br/><br/>
+ *
+ * If <i>jobQueue</i> is set to 'true' (oxgarage.properties) EGE does not
+ * perform conversions itself : every conversion is stored as a job in
+ * directory <i>jobQueueDir</i> (default : OXGARAGE/queue) shared with
+ * worker processes (see {@link ConversionWorker}) and its result is read
+ * back from that directory, so nodes of workers can be added without any
+ * change of the service.<br/><br/>
+ *
+ * Job is a directory with input data and description of conversions path;
+ * state of job is given by its parent directory :
+ * <ul>
+ * <li>incoming - job is being written,</li>
+ * <li>pending - job waits for a worker,</li>
+ * <li>running - job is performed by a worker,</li>
+ * <li>done - job has its result or error.</li>
+ * </ul>
+ * Jobs change their state by renaming of their directories, which is atomic
+ * within one filesystem, so every job is claimed by exactly one worker.<br/>
+ * Running job not touched by its worker for <i>jobQueueStaleTimeout</i>
+ * milliseconds (default : 300000) is returned to pending jobs; results not
+ * collected within <i>jobQueueRetention</i> milliseconds (default : 3600000)
+ * are removed. Queue is polled every <i>jobQueuePollInterval</i>
+ * milliseconds (default : 200).<br/>
+ *
+ * Implemented as Singleton.
+ */
+public final class JobQueue
+{
+
+	private static final Logger LOGGER = Logger.getLogger(JobQueue.class);
+
+	public static final String INCOMING = "incoming";
+
+	public static final String PENDING = "pending";
+
+	public static final String RUNNING = "running";
+
+	public static final String DONE = "done";
+
+	private static final String INPUT = "input";
+
+	private static final String RESULT = "result";
+
+	private static final String DESCRIPTION = "job.xml";
+
+	private static final String ERROR = "error.xml";
+
+	private static final String CANCEL = "cancel";
+
+	private static final String T_CONVERTER = "converter";
+
+	/*
+	 * Oldest jobs are claimed first.
+	 */
+	private static final Comparator<File> BY_AGE = new Comparator<File>() {
+		public int compare(File f1, File f2)
+		{
+			long m1 = f1.lastModified();
+			long m2 = f2.lastModified();
+			return m1 < m2 ? -1 : m1 > m2 ? 1 : f1.getName().compareTo(
+				f2.getName());
+		}
+	};
+
+	private final boolean enabled;
+
+	private final File root;
+
+	private final long pollInterval;
+
+	private final long staleTimeout;
+
+	private final long retention;
+
+	private static class JobQueueHolder
+	{
+		private static final JobQueue INSTANCE = new JobQueue();
+	}
+
+
+	private JobQueue()
+	{
+		this(EGEConstants.getBooleanProperty("jobQueue", false), new File(
+			EGEConstants.JOB_QUEUE_PATH), EGEConstants.getLongProperty(
+			"jobQueuePollInterval", 200), EGEConstants.getLongProperty(
+			"jobQueueStaleTimeout", 300000), EGEConstants.getLongProperty(
+			"jobQueueRetention", 3600000));
+	}
+
+
+	/*
+	 * Constructor with explicit configuration (e.g. for tests).
+	 */
+	JobQueue(boolean enabled, File root, long pollInterval, long staleTimeout,
+			long retention)
+	{
+		this.enabled = enabled;
+		this.root = root;
+		this.pollInterval = Math.max(10, pollInterval);
+		this.staleTimeout = staleTimeout;
+		this.retention = retention;
+	}
+
+
+	/**
+	 * Method returns instance of JobQueue.
+	 *
+	 * @return
+	 */
+	public static JobQueue getInstance()
+	{
+		return JobQueueHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Returns 'true' if conversions are performed by workers.
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+
+	/**
+	 * Returns interval of polling of queue in milliseconds.
+	 */
+	public long getPollInterval()
+	{
+		return pollInterval;
+	}
+
+
+	/**
+	 * Performs conversion by worker : stores job in queue, waits for its
+	 * result and writes the result to output stream. Cancelled conversion is
+	 * removed from queue or cancelled by its worker.
+	 *
+	 * @throws ConverterException
+	 *             if conversion failed in converter
+	 * @throws EGEException
+	 *             if conversion failed or was cancelled
+	 * @throws IOException
+	 */
+	public void perform(InputStream inputStream, OutputStream outputStream,
+			ConversionsPath path, CancellationToken token)
+		throws ConverterException, EGEException, IOException
+	{
+		token.check();
+		String id = submit(inputStream, path);
+		File done = new File(getDir(DONE), id);
+		try {
+			while (!done.isDirectory()) {
+				if (token.isCancelled()) {
+					cancel(id);
+					token.check();
+				}
+				try {
+					Thread.sleep(pollInterval);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					cancel(id);
+					throw new EGEException("Conversion interrupted.");
+				}
+			}
+			File error = new File(done, ERROR);
+			if (error.exists()) {
+				Properties props = load(error);
+				String message = props.getProperty("message");
+				if (T_CONVERTER.equals(props.getProperty("type"))) {
+					throw new ConverterException(message);
+				}
+				throw new EGEException(message);
+			}
+			InputStream is = new FileInputStream(new File(done, RESULT));
+			try {
+				EGEIOUtils.copyStream(is, outputStream);
+			}
+			finally {
+				is.close();
+			}
+		}
+		finally {
+			if (done.exists()) {
+				EGEIOUtils.deleteDirectory(done);
+			}
+		}
+	}
+
+
+	/**
+	 * Stores conversion job in queue.
+	 *
+	 * @return identifier of job
+	 * @throws IOException
+	 */
+	public String submit(InputStream inputStream, ConversionsPath path)
+		throws IOException
+	{
+		String id = UUID.randomUUID().toString();
+		File job = new File(getDir(INCOMING), id);
+		if (!job.mkdir()) {
+			throw new IOException("Could not create job " + job);
+		}
+		try {
+			OutputStream os = new FileOutputStream(new File(job, INPUT));
+			try {
+				EGEIOUtils.copyStream(inputStream, os);
+			}
+			finally {
+				os.close();
+			}
+			store(describe(path), new File(job, DESCRIPTION));
+			if (move(job, PENDING) == null) {
+				throw new IOException("Could not queue job " + id);
+			}
+		}
+		catch (IOException ex) {
+			EGEIOUtils.deleteDirectory(job);
+			throw ex;
+		}
+		LOGGER.debug("Job " + id + " queued : " + path);
+		return id;
+	}
+
+
+	/**
+	 * Cancels job : pending job is removed, running job is cancelled by its
+	 * worker.
+	 */
+	public void cancel(String id)
+	{
+		File done = move(new File(getDir(PENDING), id), DONE);
+		if (done != null) {
+			EGEIOUtils.deleteDirectory(done);
+			return;
+		}
+		File running = new File(getDir(RUNNING), id);
+		if (running.isDirectory()) {
+			try {
+				new File(running, CANCEL).createNewFile();
+			}
+			catch (IOException ex) {
+				LOGGER.warn("Could not cancel job " + id + " : "
+						+ ex.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Claims the oldest pending job for worker; returns 'null' if there are
+	 * no pending jobs.
+	 */
+	public Job claim()
+	{
+		File[] jobs = getDir(PENDING).listFiles();
+		if (jobs == null || jobs.length == 0) {
+			return null;
+		}
+		Arrays.sort(jobs, BY_AGE);
+		for (File job : jobs) {
+			// other worker may claim the same job first
+			File running = move(job, RUNNING);
+			if (running != null) {
+				Job claimed = new Job(running);
+				claimed.touch();
+				return claimed;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Finishes job of worker with its result or error.
+	 *
+	 * @param job
+	 * @param error
+	 *            error of conversion or 'null' if job succeeded
+	 * @return 'false' if job was taken from worker (e.g. returned to queue as
+	 *         stale)
+	 */
+	public boolean complete(Job job, Exception error)
+	{
+		if (job.isCancelled()) {
+			// nobody waits for result of cancelled job
+			return EGEIOUtils.deleteDirectory(job.dir);
+		}
+		try {
+			if (error != null) {
+				Properties props = new Properties();
+				props.setProperty("type",
+					error instanceof ConverterException ? T_CONVERTER : "ege");
+				props.setProperty("message", String.valueOf(error.getMessage()));
+				store(props, new File(job.dir, ERROR));
+				job.getResult().delete();
+			}
+		}
+		catch (IOException ex) {
+			LOGGER.error(ex.getMessage(), ex);
+		}
+		job.getInput().delete();
+		return move(job.dir, DONE) != null;
+	}
+
+
+	/**
+	 * Returns job of stopped worker to pending jobs.
+	 */
+	public boolean release(Job job)
+	{
+		job.getResult().delete();
+		return move(job.dir, PENDING) != null;
+	}
+
+
+	/**
+	 * Returns stale running jobs (of lost workers) to queue and removes
+	 * results, which were not collected.
+	 */
+	public void maintain()
+	{
+		long now = System.currentTimeMillis();
+		File[] running = getDir(RUNNING).listFiles();
+		if (running != null && staleTimeout > 0) {
+			for (File job : running) {
+				if (now - job.lastModified() > staleTimeout
+						&& move(job, PENDING) != null) {
+					LOGGER.warn("Job " + job.getName()
+							+ " of lost worker returned to queue.");
+				}
+			}
+		}
+		for (String state : new String[] { INCOMING, DONE }) {
+			File[] jobs = getDir(state).listFiles();
+			if (jobs == null || retention <= 0) {
+				continue;
+			}
+			for (File job : jobs) {
+				if (now - job.lastModified() > retention) {
+					LOGGER.debug("Job " + job.getName() + " expired.");
+					EGEIOUtils.deleteDirectory(job);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns number of jobs in selected state.
+	 */
+	public int getCount(String state)
+	{
+		String[] jobs = getDir(state).list();
+		return jobs == null ? 0 : jobs.length;
+	}
+
+
+	/**
+	 * Returns description of conversions path, which can be resolved by EGE
+	 * of other process (with the same converters).
+	 */
+	public static Properties describe(ConversionsPath path)
+	{
+		Properties props = new Properties();
+		props.setProperty("input.format", path.getInputDataType().getFormat());
+		props.setProperty("input.mime", path.getInputDataType().getMimeType());
+		props.setProperty("steps", String.valueOf(path.getPath().size()));
+		for (int i = 0; i < path.getPath().size(); i++) {
+			ConversionAction ca = path.getPath().get(i);
+			String prefix = "step." + i + ".";
+			props.setProperty(prefix + "action", ca.toString());
+			for (Map.Entry<String, String> entry : ca
+					.getConversionActionArguments().getProperties().entrySet()) {
+				if (entry.getValue() != null) {
+					props.setProperty(prefix + "property." + entry.getKey(),
+						entry.getValue());
+				}
+			}
+		}
+		return props;
+	}
+
+
+	/**
+	 * Finds conversions path described by properties (see
+	 * {@link #describe(ConversionsPath)}) and sets its conversion parameters;
+	 * returns 'null' if path is not available.
+	 */
+	public static ConversionsPath resolve(EGE ege, Properties description)
+	{
+		DataType input = new DataType(description.getProperty("input.format"),
+				description.getProperty("input.mime"));
+		int steps;
+		try {
+			steps = Integer.parseInt(description.getProperty("steps", "0"));
+		}
+		catch (NumberFormatException ex) {
+			return null;
+		}
+		for (ConversionsPath path : ege.findConversionPaths(input)) {
+			if (path.getPath().size() != steps) {
+				continue;
+			}
+			boolean found = true;
+			for (int i = 0; i < steps && found; i++) {
+				found = path.getPath().get(i).toString().equals(
+					description.getProperty("step." + i + ".action"));
+			}
+			if (!found) {
+				continue;
+			}
+			ConversionsPath copy = path.copy();
+			for (int i = 0; i < steps; i++) {
+				String prefix = "step." + i + ".property.";
+				Map<String, String> props = new LinkedHashMap<String, String>();
+				for (String key : new TreeSet<String>(description
+						.stringPropertyNames())) {
+					if (key.startsWith(prefix)) {
+						props.put(key.substring(prefix.length()), description
+								.getProperty(key));
+					}
+				}
+				copy.getPath().get(i).getConversionActionArguments()
+						.setProperties(props.isEmpty() ? null : props);
+			}
+			return copy;
+		}
+		return null;
+	}
+
+
+	private File getDir(String state)
+	{
+		File dir = new File(root, state);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			LOGGER.error("Could not create dir " + dir);
+		}
+		return dir;
+	}
+
+
+	/*
+	 * Moves job to selected state; returns new location of job or 'null' if
+	 * job was not moved.
+	 */
+	private File move(File job, String state)
+	{
+		File target = new File(getDir(state), job.getName());
+		return job.renameTo(target) ? target : null;
+	}
+
+
+	private static Properties load(File file)
+		throws IOException
+	{
+		Properties props = new Properties();
+		InputStream is = new FileInputStream(file);
+		try {
+			props.loadFromXML(is);
+		}
+		finally {
+			is.close();
+		}
+		return props;
+	}
+
+
+	private static void store(Properties props, File file)
+		throws IOException
+	{
+		OutputStream os = new FileOutputStream(file);
+		try {
+			props.storeToXML(os, null, "UTF-8");
+		}
+		finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Job claimed by worker.
+	 */
+	public static class Job
+	{
+
+		private final File dir;
+
+
+		Job(File dir)
+		{
+			this.dir = dir;
+		}
+
+
+		/**
+		 * Returns identifier of job.
+		 */
+		public String getId()
+		{
+			return dir.getName();
+		}
+
+
+		/**
+		 * Returns file with input data.
+		 */
+		public File getInput()
+		{
+			return new File(dir, INPUT);
+		}
+
+
+		/**
+		 * Returns file for result of conversion.
+		 */
+		public File getResult()
+		{
+			return new File(dir, RESULT);
+		}
+
+
+		/**
+		 * Returns description of conversions path of job.
+		 *
+		 * @throws IOException
+		 */
+		public Properties getDescription()
+			throws IOException
+		{
+			return load(new File(dir, DESCRIPTION));
+		}
+
+
+		/**
+		 * Marks job as alive, so it is not returned to queue.
+		 */
+		public void touch()
+		{
+			dir.setLastModified(System.currentTimeMillis());
+		}
+
+
+		/**
+		 * Returns 'true' if client cancelled the job.
+		 */
+		public boolean isCancelled()
+		{
+			return new File(dir, CANCEL).exists();
+		}
+
+	}
+
+}
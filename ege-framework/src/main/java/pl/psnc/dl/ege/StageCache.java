@@ -0,0 +1,594 @@
+package pl.psnc.dl.ege;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.types.ConversionAction;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+
+/**
+ * Disk cache of intermediate results of conversions paths.<br/><br/>
+ *
+ * Result of every conversion of a path, except the last one, is stored in
+ * the cache under key computed from digest of input data of the path and
+ * from converters and properties of all conversions leading to the result.
+ * Conversion of a path starts from the longest cached intermediate result,
+ * so e.g. DOCX to TEI conversion of a document converted to ePub is not
+ * repeated, when the same document is converted to XHTML.<br/>
+ * Converters are expected to give the same result for the same data and
+ * properties; cache is cleared when converters are reloaded or their
+ * stylesheets change, and results of conversions started before are not
+ * stored.<br/><br/>
+ *
+ * Size of cache is limited by its own budget (oxgarage.properties :
+ * <i>stageCacheSize</i>, bytes, 0 - cache disabled); least recently used
+ * results are removed when budget is exceeded. Cache is stored in
+ * {@link EGEConstants#STAGE_CACHE_PATH} and cleared at startup.<br/>
+ *
+ * Implemented as Singleton.
+ */
+public final class StageCache
+{
+
+	private static final Logger LOGGER = Logger.getLogger(StageCache.class);
+
+	private static final String DIGEST = "SHA-1";
+
+	private static final String TEMP_PREFIX = "tmp-";
+
+	private final File dir;
+
+	private final long budget;
+
+	/*
+	 * Cached results in order of access - guarded by 'this'.
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private long bytes = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/*
+	 * Incremented by clear() - results of older lookups are not stored.
+	 */
+	private long generation = 0;
+
+	/*
+	 * Thread-safe singleton.
+	 */
+	private static class StageCacheHolder
+	{
+		private static final StageCache INSTANCE = new StageCache();
+	}
+
+
+	private StageCache()
+	{
+		dir = new File(EGEConstants.STAGE_CACHE_PATH);
+		budget = EGEConstants.getLongProperty("stageCacheSize", 0);
+		if (dir.exists()) {
+			EGEIOUtils.deleteDirectory(dir);
+		}
+		if (budget > 0 && !dir.mkdirs()) {
+			LOGGER.error("Could not create dir " + dir);
+		}
+	}
+
+
+	/**
+	 * Method returns instance of StageCache.
+	 *
+	 * @return
+	 */
+	public static StageCache getInstance()
+	{
+		return StageCacheHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Returns 'true' if intermediate results are cached.
+	 */
+	public boolean isEnabled()
+	{
+		return budget > 0;
+	}
+
+
+	/**
+	 * Returns budget of cache in bytes.
+	 */
+	public long getBudget()
+	{
+		return budget;
+	}
+
+
+	/**
+	 * Returns size of cached results in bytes.
+	 */
+	public synchronized long getSize()
+	{
+		return bytes;
+	}
+
+
+	/**
+	 * Returns number of cached results.
+	 */
+	public synchronized int getCount()
+	{
+		return entries.size();
+	}
+
+
+	/**
+	 * Returns number of conversions, which started from a cached result.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+
+	/**
+	 * Returns number of conversions, which found no cached result.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+
+	/**
+	 * Removes all cached results, e.g. when converters or their stylesheets
+	 * change; results of conversions in progress are not stored.
+	 */
+	public synchronized void clear()
+	{
+		generation++;
+		for (Entry entry : entries.values()) {
+			entry.file.delete();
+		}
+		entries.clear();
+		bytes = 0;
+	}
+
+
+	/*
+	 * Reads input of conversions path and finds the longest cached
+	 * intermediate result of the path.
+	 */
+	Lookup lookup(InputStream input, List<ConversionAction> actions)
+		throws IOException
+	{
+		File spooled = createTempFile();
+		String digest;
+		try {
+			digest = spool(input, spooled);
+		}
+		catch (IOException ex) {
+			spooled.delete();
+			throw ex;
+		}
+		return lookup(spooled, digest, actions, true);
+	}
+
+
+	/*
+	 * Finds the longest cached intermediate result of conversions path, which
+	 * input is already stored in a file (file is not removed by the cache).
+	 */
+	Lookup lookup(File input, String digest, List<ConversionAction> actions)
+		throws IOException
+	{
+		return lookup(input, digest, actions, false);
+	}
+
+
+	private Lookup lookup(File spooled, String digest,
+			List<ConversionAction> actions, boolean owned)
+		throws IOException
+	{
+		String[] keys = new String[actions.size() - 1];
+		String key = digest;
+		for (int i = 0; i < keys.length; i++) {
+			key = createKey(key, actions.get(i));
+			keys[i] = key;
+		}
+		long current;
+		synchronized (this) {
+			current = generation;
+			for (int i = keys.length - 1; i >= 0; i--) {
+				Entry entry = entries.get(keys[i]);
+				if (entry == null) {
+					continue;
+				}
+				try {
+					// opened file can be read even if entry is evicted
+					InputStream cached = new FileInputStream(entry.file);
+					hits++;
+					if (owned) {
+						spooled.delete();
+					}
+					LOGGER.debug("Conversion starts from cached result of : "
+							+ actions.get(i));
+					return new Lookup(keys, cached, i + 1, null, current);
+				}
+				catch (IOException ex) {
+					remove(keys[i]);
+				}
+			}
+			misses++;
+		}
+		return new Lookup(keys, new FileInputStream(spooled), 0, owned ? spooled
+				: null, current);
+	}
+
+
+	/*
+	 * Copies data to file and returns hex digest of the data.
+	 */
+	static String spool(InputStream input, File file)
+		throws IOException
+	{
+		MessageDigest digest = createDigest();
+		InputStream is = new DigestInputStream(input, digest);
+		OutputStream os = new FileOutputStream(file);
+		try {
+			EGEIOUtils.copyStream(is, os);
+		}
+		finally {
+			os.close();
+		}
+		return toHex(digest.digest());
+	}
+
+
+	/*
+	 * Adds result of conversion to cache and removes least recently used
+	 * results exceeding budget.
+	 */
+	private synchronized void put(String key, File file, long lookupGeneration)
+	{
+		long size = file.length();
+		if (lookupGeneration != generation || size > budget
+				|| entries.containsKey(key)) {
+			file.delete();
+			return;
+		}
+		File target = new File(dir, key);
+		if (!file.renameTo(target)) {
+			file.delete();
+			return;
+		}
+		entries.put(key, new Entry(target, size));
+		bytes += size;
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (bytes > budget && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			eldest.file.delete();
+			bytes -= eldest.size;
+		}
+	}
+
+
+	private synchronized void remove(String key)
+	{
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			entry.file.delete();
+			bytes -= entry.size;
+		}
+	}
+
+
+	private File createTempFile()
+	{
+		return new File(dir, TEMP_PREFIX + UUID.randomUUID().toString());
+	}
+
+
+	/*
+	 * Key of conversion result : digest of key of conversion input, converter
+	 * and properties of conversion.
+	 */
+	static String createKey(String inputKey, ConversionAction ca)
+		throws IOException
+	{
+		StringBuffer sb = new StringBuffer(inputKey);
+		sb.append('\n').append(ca.getConverter().getClass().getName());
+		sb.append('\n').append(ca.toString());
+		Map<String, String> properties = ca.getConversionActionArguments()
+				.getProperties();
+		if (properties != null) {
+			sb.append('\n').append(new TreeMap<String, String>(properties));
+		}
+		return toHex(createDigest().digest(sb.toString().getBytes("UTF-8")));
+	}
+
+
+	private static MessageDigest createDigest()
+		throws IOException
+	{
+		try {
+			return MessageDigest.getInstance(DIGEST);
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IOException(ex.getMessage());
+		}
+	}
+
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuffer sb = new StringBuffer();
+		for (byte b : bytes) {
+			sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Cached result.
+	 */
+	private static class Entry
+	{
+
+		private final File file;
+
+		private final long size;
+
+
+		public Entry(File file, long size)
+		{
+			this.file = file;
+			this.size = size;
+		}
+
+	}
+
+	/*
+	 * Result of lookup : input of the remaining conversions of path and
+	 * storage of their intermediate results.
+	 */
+	class Lookup
+	{
+
+		private final String[] keys;
+
+		private final InputStream input;
+
+		private final int start;
+
+		private final File spooled;
+
+		private final long generation;
+
+		private final List<CachingOutputStream> outputs = new ArrayList<CachingOutputStream>();
+
+
+		private Lookup(String[] keys, InputStream input, int start,
+				File spooled, long generation)
+		{
+			this.keys = keys;
+			this.input = input;
+			this.start = start;
+			this.spooled = spooled;
+			this.generation = generation;
+		}
+
+
+		/*
+		 * Input of the first conversion, which has to be performed.
+		 */
+		public InputStream getInputStream()
+		{
+			return input;
+		}
+
+
+		/*
+		 * Index of the first conversion, which has to be performed.
+		 */
+		public int getStart()
+		{
+			return start;
+		}
+
+
+		/*
+		 * Returns output stream of conversion of selected index, which
+		 * stores result of the conversion for the cache.
+		 */
+		public OutputStream wrap(int index, OutputStream os)
+		{
+			if (index >= keys.length) {
+				return os;
+			}
+			try {
+				CachingOutputStream cos = new CachingOutputStream(os,
+						keys[index], createTempFile());
+				outputs.add(cos);
+				return cos;
+			}
+			catch (IOException ex) {
+				LOGGER.warn("Result will not be cached : " + ex.getMessage());
+				return os;
+			}
+		}
+
+
+		/*
+		 * Adds results of successful conversions to the cache.
+		 */
+		public void commit()
+		{
+			for (CachingOutputStream cos : outputs) {
+				if (cos.isComplete()) {
+					put(cos.key, cos.file, generation);
+				}
+			}
+			outputs.clear();
+		}
+
+
+		/*
+		 * Releases input and not committed results.
+		 */
+		public void close()
+		{
+			try {
+				input.close();
+			}
+			catch (IOException ex) {
+				LOGGER.error(ex.getMessage());
+			}
+			if (spooled != null) {
+				spooled.delete();
+			}
+			for (CachingOutputStream cos : outputs) {
+				cos.discard();
+			}
+		}
+
+	}
+
+	/*
+	 * Output stream copying data to file of cached result; failure of cache
+	 * file does not break the conversion.
+	 */
+	private static class CachingOutputStream
+		extends OutputStream
+	{
+
+		private final OutputStream os;
+
+		private final String key;
+
+		private final File file;
+
+		private OutputStream cos;
+
+		private volatile boolean closed = false;
+
+		private volatile boolean broken = false;
+
+
+		public CachingOutputStream(OutputStream os, String key, File file)
+			throws IOException
+		{
+			this.os = os;
+			this.key = key;
+			this.file = file;
+			this.cos = new FileOutputStream(file);
+		}
+
+
+		@Override
+		public void write(int b)
+			throws IOException
+		{
+			os.write(b);
+			if (!broken) {
+				try {
+					cos.write(b);
+				}
+				catch (IOException ex) {
+					fail(ex);
+				}
+			}
+		}
+
+
+		@Override
+		public void write(byte[] b, int off, int len)
+			throws IOException
+		{
+			os.write(b, off, len);
+			if (!broken) {
+				try {
+					cos.write(b, off, len);
+				}
+				catch (IOException ex) {
+					fail(ex);
+				}
+			}
+		}
+
+
+		@Override
+		public void flush()
+			throws IOException
+		{
+			os.flush();
+		}
+
+
+		@Override
+		public void close()
+			throws IOException
+		{
+			if (!closed) {
+				closed = true;
+				try {
+					cos.close();
+				}
+				catch (IOException ex) {
+					fail(ex);
+				}
+			}
+			os.close();
+		}
+
+
+		public boolean isComplete()
+		{
+			return closed && !broken;
+		}
+
+
+		public void discard()
+		{
+			broken = true;
+			try {
+				cos.close();
+			}
+			catch (IOException ex) {
+				// ignore
+			}
+			file.delete();
+		}
+
+
+		private void fail(IOException ex)
+		{
+			LOGGER.warn("Result will not be cached : " + ex.getMessage());
+			broken = true;
+		}
+
+	}
+
+}
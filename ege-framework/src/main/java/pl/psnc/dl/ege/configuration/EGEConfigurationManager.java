@@ -11,11 +11,17 @@ import java.util.Collection;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -44,12 +50,17 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
+import pl.psnc.dl.ege.ConversionGraph;
+import pl.psnc.dl.ege.StageCache;
 import pl.psnc.dl.ege.component.ConfigurableConverter;
 import pl.psnc.dl.ege.component.Converter;
 import pl.psnc.dl.ege.component.NamedConverter;
 import pl.psnc.dl.ege.component.Recognizer;
 import pl.psnc.dl.ege.component.Validator;
+import pl.psnc.dl.ege.component.WarmableConverter;
 import pl.psnc.dl.ege.exception.EGEException;
+import pl.psnc.dl.ege.types.ConversionAction;
+import pl.psnc.dl.ege.types.ConversionActionArguments;
 import pl.psnc.dl.ege.utils.EGEIOUtils;
 import pl.psnc.dl.ege.utils.IOResolver;
 import pl.psnc.dl.ege.utils.ZipIOResolver;
@@ -76,6 +87,22 @@ public class EGEConfigurationManager
 	private final static Logger LOGGER = Logger.getLogger(EGEConfigurationManager.class.getName());
 	
 	private final IOResolver ioResolver;
+
+	/*
+	 * Configured converters - created once and shared by EGE instances.
+	 */
+	private List<Converter> converters;
+
+	/*
+	 * Configured converters, which can be warmed up.
+	 */
+	private List<WarmableConverter> warmableConverters;
+
+	/*
+	 * Graph of conversions of configured converters - built once and shared
+	 * by EGE instances.
+	 */
+	private ConversionGraph conversionGraph;
 	
 	private static class EGEConfigurationManagerHolder { 
 		private static final EGEConfigurationManager INSTANCE = new EGEConfigurationManager();
@@ -238,13 +265,126 @@ public class EGEConfigurationManager
 
 
 	/**
-	 * Returns list of all available converters.
+	 * Returns list of all available converters.<br/>
+	 * Converters are instantiated and configured with the first call of
+	 * method; following calls return the same (shared) instances, so
+	 * converters can keep prepared resources, e.g. compiled stylesheets.
 	 * 
 	 * @return list of converters.
 	 */
-	public List<Converter> getAvailableConverters()
+	public synchronized List<Converter> getAvailableConverters()
+	{
+		if (converters == null) {
+			converters = loadConverters();
+		}
+		return new ArrayList<Converter>(converters);
+	}
+
+
+	/**
+	 * Returns graph of conversions possible with available converters.<br/>
+	 * Graph is built with the first call of method and again after
+	 * converters are reloaded or their possible conversions change (see
+	 * {@link #conversionsChanged()}).
+	 * 
+	 * @return graph of conversion actions
+	 */
+	public synchronized ConversionGraph getConversionGraph()
+	{
+		if (conversionGraph == null) {
+			Set<ConversionAction> nodes = new HashSet<ConversionAction>();
+			for (Converter conv : getAvailableConverters()) {
+				for (ConversionActionArguments ac : conv.getPossibleConversions()) {
+					nodes.add(new ConversionAction(ac, conv));
+				}
+			}
+			conversionGraph = new ConversionGraph(nodes);
+		}
+		return conversionGraph;
+	}
+
+
+	/**
+	 * Drops graph of conversions, e.g. when converter publishes new list of
+	 * possible conversions : next call of {@link #getConversionGraph()} builds
+	 * it again.
+	 */
+	public synchronized void conversionsChanged()
+	{
+		conversionGraph = null;
+	}
+
+
+	/**
+	 * Drops configured converters : next call of
+	 * {@link #getAvailableConverters()} instantiates and configures them again.
+	 * Cached intermediate results of conversions are cleared.
+	 */
+	public synchronized void reloadConverters()
+	{
+		converters = null;
+		warmableConverters = null;
+		conversionGraph = null;
+		StageCache.getInstance().clear();
+	}
+
+
+	/**
+	 * Runs warm-up tasks of all converters implementing
+	 * {@link WarmableConverter}, in parallel on all available processors.
+	 * Method returns when all tasks are finished.
+	 * 
+	 * @param sampleTransform if 'true' converters perform sample conversions
+	 * @return 'false' if any of the tasks failed
+	 */
+	public boolean warmUp(boolean sampleTransform)
+	{
+		List<WarmableConverter> targets;
+		synchronized (this) {
+			getAvailableConverters();
+			targets = new ArrayList<WarmableConverter>(warmableConverters);
+		}
+		long start = System.currentTimeMillis();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (WarmableConverter wc : targets) {
+			tasks.addAll(wc.getWarmUpTasks(sampleTransform));
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (Runnable task : tasks) {
+			results.add(pool.submit(task));
+		}
+		boolean success = true;
+		try {
+			for (Future<?> result : results) {
+				try {
+					result.get();
+				}
+				catch (ExecutionException ex) {
+					LOGGER.warn("Warm-up task failed : "
+							+ ex.getCause().getMessage());
+					success = false;
+				}
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			success = false;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		LOGGER.info("Warm-up of " + tasks.size() + " tasks finished in "
+				+ (System.currentTimeMillis() - start) + " ms.");
+		return success;
+	}
+
+
+	private List<Converter> loadConverters()
 	{
 		List<Converter> convs = new ArrayList<Converter>();
+		warmableConverters = new ArrayList<WarmableConverter>();
 		ExtensionPoint ep = pluginManager.getRegistry().getExtensionPoint(
 			EXTENSION_POINT_ID, "Converter");
 		ExtensionPoint ep2 = pluginManager.getRegistry().getExtensionPoint(
@@ -253,10 +393,14 @@ public class EGEConfigurationManager
 		plugs.addAll(getAllComponents(ep2));
 		for (PluginWrapper e : plugs) {
 			try {
+				if (e.getPlugin() instanceof WarmableConverter) {
+					warmableConverters.add((WarmableConverter) e.getPlugin());
+				}
 				NamedConverter nc;
 				Collection<Parameter> params = (Collection<Parameter>) e.getParams();
 				if (e.getPlugin() instanceof ConfigurableConverter) {
 					String name = DEFAULT_CONVERTER_NAME;
+					String pool = null;
 					Map<String, String> prms = new LinkedHashMap();
 					ConfigurableConverter cc = (ConfigurableConverter) e
 							.getPlugin();
@@ -264,29 +408,30 @@ public class EGEConfigurationManager
 						if (param.getId().equals("name")) {
 							name = param.valueAsString();
 						}
+						else if (param.getId().equals("pool")) {
+							pool = param.valueAsString();
+						}
 						prms.put(param.getId(), param
 								.valueAsString());
 					}
 					cc.configure(prms);
-					nc = new NamedConverter((Converter) cc, name);
+					nc = new NamedConverter((Converter) cc, name, pool);
 					convs.add(nc);
 				}
 				else {
-					boolean named = false;
+					String name = DEFAULT_CONVERTER_NAME;
+					String pool = null;
 					for (Parameter param : params) {
 						if (param.getId().equals("name")) {
-							nc = new NamedConverter((Converter) e.getPlugin(),
-									param.valueAsString());
-							named = true;
-							convs.add(nc);
-							break;
+							name = param.valueAsString();
+						}
+						else if (param.getId().equals("pool")) {
+							pool = param.valueAsString();
 						}
 					}
-					if (!named) {
-						nc = new NamedConverter((Converter) e.getPlugin(),
-								DEFAULT_CONVERTER_NAME);
-						convs.add(nc);
-					}
+					nc = new NamedConverter((Converter) e.getPlugin(), name,
+							pool);
+					convs.add(nc);
 				}
 			}
 			catch (ClassCastException ex) {
@@ -61,6 +61,28 @@ public final class  EGEConstants {
 	 */
 	public static final String BUFFER_TEMP_PATH = TEMP_PATH + File.separator + "buff";
 
+	/**
+	 * Directory of cached intermediate results of conversions
+	 */
+	public static final String STAGE_CACHE_PATH = OXGAPP + "stages";
+
+	/**
+	 * Directory of job queue shared with workers
+	 */
+	public static final String JOB_QUEUE_PATH = oxgProps.getProperty("jobQueueDir", OXGAPP + "queue");
+
+	/**
+	 * Directory of journal of asynchronous jobs
+	 */
+	public static final String JOB_JOURNAL_PATH = OXGAPP + "jobs";
+
+	/**
+	 * Single file results are sent to client while they are converted,
+	 * without temporary files.<br/>
+	 * oxgarage.properties : <i>streamSingleFiles</i>
+	 */
+	public static final boolean STREAM_SINGLE_FILES = getBooleanProperty("streamSingleFiles", false);
+
 	static {
 	    boolean success = (new File(BUFFER_TEMP_PATH)).mkdirs();
 	    if (!success) {
@@ -84,4 +106,42 @@ public final class  EGEConstants {
 		if(typeCode.equals(PRESENTATIONFAMILYCODE)) return PRESENTATIONFAMILY;
 		return DEFAULTFAMILY;
 	}
+
+	/**
+	 * Returns numeric value of property from oxgarage.properties or
+	 * 'defaultValue' if property is not set or malformed.
+	 */
+	public static long getLongProperty(String key, long defaultValue) {
+		String value = oxgProps.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException e) {
+			LOGGER.error("Malformed value of property " + key + " : " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns integer value of property from oxgarage.properties or
+	 * 'defaultValue' if property is not set or malformed.
+	 */
+	public static int getIntProperty(String key, int defaultValue) {
+		return (int) getLongProperty(key, defaultValue);
+	}
+
+	/**
+	 * Returns boolean value of property from oxgarage.properties or
+	 * 'defaultValue' if property is not set.
+	 */
+	public static boolean getBooleanProperty(String key, boolean defaultValue) {
+		String value = oxgProps.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.valueOf(value.trim());
+	}
 }
\ No newline at end of file
@@ -35,6 +35,53 @@ public final class EGEIOUtils {
 
 	private static final int BUFFER = 2048;
 
+	/**
+	 * Header id of zip extra field, which marks the only file of archive;
+	 * client of EGE may send such file while archive is still written (see
+	 * {@link SingleFileOutputStream}).
+	 */
+	public static final int SINGLE_FILE_EXTRA = 0x4547;
+
+	/**
+	 * Creates zip entry marked as the only file of archive (see
+	 * {@link #SINGLE_FILE_EXTRA}); converter has to write no other files
+	 * into the archive.
+	 * 
+	 * @param name
+	 *            name of entry
+	 * @return
+	 */
+	public static ZipEntry createSingleFileEntry(String name) {
+		ZipEntry entry = new ZipEntry(name);
+		// extra field : header id and size of data (none), little-endian
+		entry.setExtra(new byte[] { (byte) (SINGLE_FILE_EXTRA & 0xff),
+				(byte) (SINGLE_FILE_EXTRA >> 8), 0, 0 });
+		return entry;
+	}
+
+	/**
+	 * Returns 'true' if zip entry is marked as the only file of archive.
+	 * 
+	 * @param entry
+	 * @return
+	 */
+	public static boolean isSingleFileEntry(ZipEntry entry) {
+		byte[] extra = entry.getExtra();
+		if (extra == null || entry.isDirectory()) {
+			return false;
+		}
+		int i = 0;
+		while (i + 4 <= extra.length) {
+			int id = (extra[i] & 0xff) | ((extra[i + 1] & 0xff) << 8);
+			int size = (extra[i + 2] & 0xff) | ((extra[i + 3] & 0xff) << 8);
+			if (id == SINGLE_FILE_EXTRA) {
+				return true;
+			}
+			i += 4 + size;
+		}
+		return false;
+	}
+
 	/**
 	 * Construct zip file from specified dir location. Result is transfered into
 	 * ZipOutputStream.
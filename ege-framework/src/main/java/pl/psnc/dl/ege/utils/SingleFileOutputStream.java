@@ -0,0 +1,209 @@
+package pl.psnc.dl.ege.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Output stream for archives produced by EGE, which passes the only file of
+ * single file archive (see {@link EGEIOUtils#createSingleFileEntry(String)})
+ * to its target as soon as it is decompressed - client receives the result
+ * before conversion is finished and without temporary files.<br/>
+ * Other archives are written to spool stream and have to be read from it
+ * after the stream is closed ({@link #isStreamed()} returns 'false').
+ */
+public class SingleFileOutputStream
+	extends OutputStream
+{
+
+	private static final Logger LOGGER = Logger.getLogger(SingleFileOutputStream.class);
+
+	private static final int PIPE_SIZE = 64 * 1024;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Target of streamed file.
+	 */
+	public interface Target
+	{
+
+		/**
+		 * Opens stream for the only file of archive; called once, before the
+		 * first byte of file is written.
+		 *
+		 * @param name
+		 *            name of zip entry
+		 * @return
+		 * @throws IOException
+		 */
+		OutputStream open(String name)
+			throws IOException;
+
+	}
+
+	private final OutputStream spool;
+
+	private final Target target;
+
+	private final PipedOutputStream pipe;
+
+	private final PipedInputStream source;
+
+	private final Thread reader;
+
+	private volatile boolean streamed = false;
+
+	private volatile IOException error = null;
+
+	private boolean closed = false;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param spool
+	 *            stream for archives, which are not streamed (not closed by
+	 *            this stream)
+	 * @param target
+	 *            target of streamed file
+	 * @throws IOException
+	 */
+	public SingleFileOutputStream(OutputStream spool, Target target)
+		throws IOException
+	{
+		this.spool = spool;
+		this.target = target;
+		this.pipe = new PipedOutputStream();
+		this.source = new PipedInputStream(pipe, PIPE_SIZE);
+		this.reader = new Thread(new Runnable() {
+			public void run()
+			{
+				read();
+			}
+		}, "ege-single-file");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+
+	public void write(int b)
+		throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+
+	public void write(byte[] b, int off, int len)
+		throws IOException
+	{
+		if (!streamed) {
+			spool.write(b, off, len);
+		}
+		try {
+			pipe.write(b, off, len);
+		}
+		catch (IOException ex) {
+			// reader stopped e.g. after disconnection of client
+			throw error != null ? error : ex;
+		}
+	}
+
+
+	/**
+	 * Finishes archive and waits until the file is passed to its target.
+	 */
+	public void close()
+		throws IOException
+	{
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			pipe.close();
+		}
+		catch (IOException ex) {
+			// pipe of stopped reader
+		}
+		try {
+			reader.join();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for client.");
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+
+	/**
+	 * Returns 'true' if the only file of archive was passed to target;
+	 * otherwise the archive was written to spool stream.
+	 */
+	public boolean isStreamed()
+	{
+		return streamed;
+	}
+
+
+	/*
+	 * Reads archive from pipe : streams marked file or drains the pipe.
+	 */
+	private void read()
+	{
+		ZipInputStream zis = new ZipInputStream(source);
+		try {
+			ZipEntry entry = null;
+			try {
+				entry = zis.getNextEntry();
+			}
+			catch (IOException ex) {
+				// malformed archive is passed to spool stream as it is
+				LOGGER.debug("Archive not streamed : " + ex.getMessage());
+			}
+			if (entry != null && EGEIOUtils.isSingleFileEntry(entry)) {
+				streamed = true;
+				OutputStream os = target.open(entry.getName());
+				byte[] buf = new byte[BUFFER_SIZE];
+				int b;
+				while ((b = zis.read(buf)) != -1) {
+					os.write(buf, 0, b);
+					// client receives data as soon as it is converted
+					os.flush();
+				}
+			}
+			// remaining data : end of archive or archive written to spool
+			drain(source);
+		}
+		catch (IOException ex) {
+			error = ex;
+		}
+		finally {
+			try {
+				source.close();
+			}
+			catch (IOException ex) {
+				// do nothing
+			}
+		}
+	}
+
+
+	private static void drain(InputStream is)
+		throws IOException
+	{
+		byte[] buf = new byte[BUFFER_SIZE];
+		while (is.read(buf) != -1) {
+		}
+	}
+
+}
@@ -0,0 +1,591 @@
+package pl.psnc.dl.ege.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.CancellationToken;
+import pl.psnc.dl.ege.configuration.EGEConstants;
+
+/**
+ * Manages temporary working space of EGE components.<br/><br/>
+ *
+ * Each component, that needs a working directory, leases it from manager by
+ * {@link #createTempDir()} and returns it by {@link #release(File)}. Before
+ * lease is granted global quota of temporary space is checked - if it is
+ * exhausted, caller waits for released space or gets an IOException. Every
+ * lease is charged with estimated size (<i>tempLeaseEstimate</i> or size
+ * reserved by {@link #reserve(File, long)}) until it is measured larger, so
+ * burst of new leases is limited before their data is written.<br/><br/>
+ *
+ * Directory is owned by conversion, which leased it : by cancellation token
+ * passed to {@link #createTempDir(CancellationToken)} or bound to leasing
+ * thread (see {@link CancellationToken#bound()}). Background sweeper
+ * periodically measures leased directories, removes directories which were
+ * never released (not modified within lease timeout, while their conversion
+ * is finished or they have no owner) and clears old items of data buffer
+ * directory. Directories of running conversions are never removed, whatever
+ * their age. Directories outside of temporary space (e.g. memory backed
+ * workspaces) may be registered by {@link #register(File)} - they are swept
+ * the same way, but they are not charged against the quota; remains in
+ * their parent directory are removed, if it is added by
+ * {@link #addSweptRoot(File)}.<br/><br/>
+ *
+ * Configured by oxgarage.properties: <i>tempQuota</i>,
+ * <i>tempLeaseEstimate</i> (bytes), <i>tempMinFree</i> (bytes of free disk
+ * space to preserve), <i>tempLeaseTimeout</i>, <i>tempSweepInterval</i> and
+ * <i>tempAdmissionWait</i> (milliseconds).<br/>
+ *
+ * Implemented as Singleton.
+ */
+public final class TempSpaceManager
+{
+
+	private static final Logger LOGGER = Logger.getLogger(TempSpaceManager.class);
+
+	/**
+	 * Default quota of temporary space : 2GB.
+	 */
+	public static final long DEFAULT_QUOTA = 2L * 1024 * 1024 * 1024;
+
+	/**
+	 * Default amount of free disk space that has to be preserved : 100MB.
+	 */
+	public static final long DEFAULT_MIN_FREE = 100L * 1024 * 1024;
+
+	/**
+	 * Default estimated size of new lease : 16MB.
+	 */
+	public static final long DEFAULT_LEASE_ESTIMATE = 16L * 1024 * 1024;
+
+	/**
+	 * Default time after which abandoned directory is reclaimed : 2 hours.
+	 */
+	public static final long DEFAULT_LEASE_TIMEOUT = 2L * 60 * 60 * 1000;
+
+	/**
+	 * Default interval between sweeps : 1 minute.
+	 */
+	public static final long DEFAULT_SWEEP_INTERVAL = 60L * 1000;
+
+	/**
+	 * Default time of waiting for free space : 30 seconds.
+	 */
+	public static final long DEFAULT_ADMISSION_WAIT = 30L * 1000;
+
+	private final File root;
+
+	private final File bufferRoot;
+
+	private final long quota;
+
+	private final long minFree;
+
+	private final long leaseEstimate;
+
+	private final long leaseTimeout;
+
+	private final long admissionWait;
+
+	/*
+	 * Leased directories - guarded by 'this'.
+	 */
+	private final Map<String, Lease> leases = new HashMap<String, Lease>();
+
+	/*
+	 * Swept directories outside of temporary space - guarded by 'this'.
+	 */
+	private final Set<File> externalRoots = new HashSet<File>();
+
+	/*
+	 * Sum of charges of leased directories - guarded by 'this'.
+	 */
+	private long bytesInUse = 0;
+
+	private long reclaimedBytes = 0;
+
+	private long reclaimedDirs = 0;
+
+	private final ScheduledExecutorService sweeper;
+
+	/*
+	 * Thread-safe singleton.
+	 */
+	private static class TempSpaceManagerHolder
+	{
+		private static final TempSpaceManager INSTANCE = new TempSpaceManager();
+	}
+
+
+	private TempSpaceManager()
+	{
+		root = new File(EGEConstants.TEMP_PATH);
+		bufferRoot = new File(EGEConstants.BUFFER_TEMP_PATH);
+		quota = EGEConstants.getLongProperty("tempQuota", DEFAULT_QUOTA);
+		minFree = EGEConstants.getLongProperty("tempMinFree", DEFAULT_MIN_FREE);
+		leaseEstimate = Math.max(0, EGEConstants.getLongProperty(
+			"tempLeaseEstimate", DEFAULT_LEASE_ESTIMATE));
+		leaseTimeout = EGEConstants.getLongProperty("tempLeaseTimeout",
+			DEFAULT_LEASE_TIMEOUT);
+		admissionWait = EGEConstants.getLongProperty("tempAdmissionWait",
+			DEFAULT_ADMISSION_WAIT);
+		long interval = EGEConstants.getLongProperty("tempSweepInterval",
+			DEFAULT_SWEEP_INTERVAL);
+		if (!root.exists()) {
+			root.mkdirs();
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "ege-temp-sweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				try {
+					sweep();
+				}
+				catch (Throwable t) {
+					LOGGER.error("Temporary space sweep failed", t);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Method returns instance of TempSpaceManager.
+	 *
+	 * @return
+	 */
+	public static TempSpaceManager getInstance()
+	{
+		return TempSpaceManagerHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Creates new temporary directory with UUID random name.<br/>
+	 * If quota of temporary space is exhausted method waits for released space;
+	 * when space is not released in configured time IOException is thrown.
+	 *
+	 * @return leased directory
+	 * @throws IOException
+	 */
+	public File createTempDir()
+		throws IOException
+	{
+		return createTempDir(root, CancellationToken.bound());
+	}
+
+
+	/**
+	 * Creates new temporary directory owned by conversion with selected
+	 * token.
+	 *
+	 * @param owner
+	 *            cancellation token of conversion ('null' - no owner)
+	 * @return leased directory
+	 * @throws IOException
+	 */
+	public File createTempDir(CancellationToken owner)
+		throws IOException
+	{
+		return createTempDir(root, owner);
+	}
+
+
+	/**
+	 * Creates new leased temporary directory with UUID random name inside
+	 * selected parent directory.
+	 *
+	 * @param parent
+	 * @return leased directory
+	 * @throws IOException
+	 */
+	public File createTempDir(File parent)
+		throws IOException
+	{
+		return createTempDir(parent, CancellationToken.bound());
+	}
+
+
+	private File createTempDir(File parent, CancellationToken owner)
+		throws IOException
+	{
+		File dir = new File(parent, UUID.randomUUID().toString());
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + admissionWait;
+			while (!hasCapacity()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new IOException(
+						"Temporary space quota exceeded, could not create working directory.");
+				}
+				try {
+					wait(remaining);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException(
+						"Interrupted while waiting for temporary space.");
+				}
+			}
+			if (!dir.mkdirs()) {
+				throw new IOException("Could not create temporary directory : "
+						+ dir.getAbsolutePath());
+			}
+			Lease lease = new Lease(dir, owner, leaseEstimate, false);
+			leases.put(dir.getAbsolutePath(), lease);
+			bytesInUse += lease.charged;
+		}
+		return dir;
+	}
+
+
+	/**
+	 * Registers existing directory outside of temporary space (e.g. memory
+	 * backed workspace) owned by conversion bound to current thread. The
+	 * directory is not charged against the quota, but it is removed by
+	 * sweeper if it is abandoned. Registered directory is returned by
+	 * {@link #release(File)}.
+	 *
+	 * @param dir
+	 */
+	public synchronized void register(File dir)
+	{
+		Lease lease = new Lease(dir, CancellationToken.bound(), 0, true);
+		leases.put(dir.getAbsolutePath(), lease);
+	}
+
+
+	/**
+	 * Adds directory outside of temporary space, whose entries not
+	 * registered by {@link #register(File)} are removed by sweeper when they
+	 * are older than lease timeout (e.g. remains of killed process).
+	 *
+	 * @param parent
+	 */
+	public synchronized void addSweptRoot(File parent)
+	{
+		externalRoots.add(parent.getAbsoluteFile());
+	}
+
+
+	/**
+	 * Raises estimated size of leased directory (e.g. to size of its input,
+	 * when it is known) - the size is charged until directory is measured
+	 * larger.
+	 *
+	 * @param dir
+	 *            leased directory
+	 * @param bytes
+	 *            expected size of data in the directory
+	 */
+	public synchronized void reserve(File dir, long bytes)
+	{
+		Lease lease = leases.get(dir.getAbsolutePath());
+		if (lease == null || bytes <= lease.estimate) {
+			return;
+		}
+		lease.estimate = bytes;
+		charge(lease, lease.measured);
+	}
+
+
+	/**
+	 * Deletes leased directory and returns its space to the quota.
+	 * Method accepts 'null' and already removed directories.
+	 *
+	 * @param dir
+	 */
+	public void release(File dir)
+	{
+		if (dir == null) {
+			return;
+		}
+		Lease lease;
+		synchronized (this) {
+			lease = leases.remove(dir.getAbsolutePath());
+			if (lease != null) {
+				bytesInUse -= lease.charged;
+			}
+			notifyAll();
+		}
+		if (dir.exists()) {
+			EGEIOUtils.deleteDirectory(dir);
+		}
+	}
+
+
+	/**
+	 * Returns 'true' if quota and disk space allow to lease another directory.
+	 */
+	public synchronized boolean hasCapacity()
+	{
+		return bytesInUse < quota && root.getUsableSpace() > minFree;
+	}
+
+
+	/**
+	 * Returns number of bytes charged for leased directories : measured size
+	 * or, if it is larger, estimated size of each directory.
+	 */
+	public synchronized long getBytesInUse()
+	{
+		return bytesInUse;
+	}
+
+
+	/**
+	 * Returns configured quota of temporary space.
+	 */
+	public long getQuota()
+	{
+		return quota;
+	}
+
+
+	/**
+	 * Returns number of currently leased directories.
+	 */
+	public synchronized int getActiveLeases()
+	{
+		return leases.size();
+	}
+
+
+	/**
+	 * Returns number of bytes reclaimed by background sweeper.
+	 */
+	public synchronized long getReclaimedBytes()
+	{
+		return reclaimedBytes;
+	}
+
+
+	/**
+	 * Returns number of files and directories reclaimed by background sweeper.
+	 */
+	public synchronized long getReclaimedDirs()
+	{
+		return reclaimedDirs;
+	}
+
+
+	/*
+	 * Measures leased directories, reclaims abandoned leases and removes not
+	 * leased remains of previous work.
+	 */
+	void sweep()
+	{
+		long now = System.currentTimeMillis();
+		List<Lease> current;
+		synchronized (this) {
+			current = new ArrayList<Lease>(leases.values());
+		}
+		long[] sizes = new long[current.size()];
+		long[] modified = new long[current.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			long[] usage = new long[2];
+			measure(current.get(i).dir, usage);
+			sizes[i] = usage[0];
+			modified[i] = usage[1];
+		}
+		List<Lease> expired = new ArrayList<Lease>();
+		synchronized (this) {
+			for (int i = 0; i < sizes.length; i++) {
+				Lease lease = current.get(i);
+				if (leases.get(lease.dir.getAbsolutePath()) != lease) {
+					// released during measurement
+					continue;
+				}
+				charge(lease, sizes[i]);
+				lease.active = Math.max(lease.active, modified[i]);
+				if (lease.isRunning()) {
+					lease.active = now;
+				}
+				if (now - lease.active > leaseTimeout) {
+					leases.remove(lease.dir.getAbsolutePath());
+					bytesInUse -= lease.charged;
+					expired.add(lease);
+				}
+			}
+			notifyAll();
+		}
+		for (Lease lease : expired) {
+			LOGGER.warn("Reclaiming abandoned temporary directory : " + lease.dir);
+			reclaim(lease.dir, lease.measured);
+		}
+		reclaimOrphans(root, now);
+		reclaimOrphans(bufferRoot, now);
+		List<File> external;
+		synchronized (this) {
+			external = new ArrayList<File>(externalRoots);
+		}
+		for (File parent : external) {
+			reclaimOrphans(parent, now);
+		}
+	}
+
+
+	/*
+	 * Updates charge of lease with its measured size - caller holds 'this'.
+	 */
+	private void charge(Lease lease, long measured)
+	{
+		lease.measured = measured;
+		if (lease.external) {
+			return;
+		}
+		long charged = Math.max(lease.estimate, measured);
+		bytesInUse += charged - lease.charged;
+		lease.charged = charged;
+	}
+
+
+	/*
+	 * Removes not leased entries older than lease timeout.
+	 */
+	private void reclaimOrphans(File parent, long now)
+	{
+		File[] entries = parent.listFiles();
+		if (entries == null) {
+			return;
+		}
+		for (File entry : entries) {
+			if (entry.equals(bufferRoot)
+					|| now - entry.lastModified() <= leaseTimeout) {
+				continue;
+			}
+			synchronized (this) {
+				if (leases.containsKey(entry.getAbsolutePath())) {
+					continue;
+				}
+			}
+			LOGGER.debug("Reclaiming orphaned temporary data : " + entry);
+			reclaim(entry, sizeOf(entry));
+		}
+	}
+
+
+	private void reclaim(File entry, long size)
+	{
+		if (entry.isDirectory()) {
+			EGEIOUtils.deleteDirectory(entry);
+		}
+		else {
+			entry.delete();
+		}
+		synchronized (this) {
+			reclaimedBytes += size;
+			reclaimedDirs++;
+		}
+	}
+
+
+	/*
+	 * Adds size of file to usage[0] and sets usage[1] to the latest
+	 * modification time.
+	 */
+	private static void measure(File file, long[] usage)
+	{
+		usage[1] = Math.max(usage[1], file.lastModified());
+		if (!file.isDirectory()) {
+			usage[0] += file.length();
+			return;
+		}
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				measure(child, usage);
+			}
+		}
+	}
+
+
+	private static long sizeOf(File file)
+	{
+		if (!file.isDirectory()) {
+			return file.length();
+		}
+		long size = 0;
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				size += sizeOf(child);
+			}
+		}
+		return size;
+	}
+
+	/*
+	 * Inner class : single leased directory; fields except 'dir' and 'owner'
+	 * are guarded by manager.
+	 */
+	private static class Lease
+	{
+
+		private final File dir;
+
+		/*
+		 * Token of conversion, which leased the directory ('null' if none) -
+		 * lease is not reclaimed while the conversion is running.
+		 */
+		private final CancellationToken owner;
+
+		/*
+		 * Directory outside of temporary space, which is not charged.
+		 */
+		private final boolean external;
+
+		/*
+		 * Time of creation or of the latest modification found by sweeper.
+		 */
+		private long active;
+
+		private long estimate;
+
+		private long measured = 0;
+
+		private long charged;
+
+
+		public Lease(File dir, CancellationToken owner, long estimate,
+				boolean external)
+		{
+			this.dir = dir;
+			this.owner = owner;
+			this.external = external;
+			this.active = System.currentTimeMillis();
+			this.estimate = estimate;
+			this.charged = estimate;
+		}
+
+
+		/*
+		 * Returns 'true' if conversion owning the lease is not finished.
+		 */
+		public boolean isRunning()
+		{
+			return owner != null && !owner.isClosed() && !owner.isCancelled();
+		}
+
+	}
+
+}
@@ -0,0 +1,236 @@
+package pl.psnc.dl.ege.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+
+/**
+ * Working space of a single conversion.<br/><br/>
+ *
+ * Workspace reads the beginning of converted data; if whole input fits in
+ * configured threshold, directories of the conversion are created in a
+ * memory backed directory (e.g. tmpfs mounted at /dev/shm), otherwise
+ * they are leased from {@link TempSpaceManager} on disk.<br/><br/>
+ *
+ * Memory backed space is configured by oxgarage.properties:
+ * <i>ramWorkspace</i> (directory, default: /dev/shm/oxgarage),
+ * <i>ramWorkspaceThreshold</i> (max size of input in bytes, 0 - disabled,
+ * default) and <i>ramWorkspaceQuota</i> (bytes reserved for all memory
+ * backed workspaces, default: 256MB). Each memory backed workspace reserves
+ * {@link #EXPANSION_FACTOR} times size of its input - the reservation is an
+ * estimate, it does not limit data written to the workspace. Threshold is
+ * limited to quota divided by the factor.<br/>
+ * Memory backed directories are registered with {@link TempSpaceManager},
+ * which removes abandoned directories and remains of previous processes.<br/><br/>
+ *
+ * Instances are not thread-safe : workspace belongs to single conversion.
+ */
+public class Workspace
+{
+
+	private static final Logger LOGGER = Logger.getLogger(Workspace.class);
+
+	/**
+	 * Expected ratio between size of data unpacked in workspace and size of
+	 * (compressed) input.
+	 */
+	public static final int EXPANSION_FACTOR = 8;
+
+	private static final File RAM_ROOT = new File(EGEConstants.oxgProps
+			.getProperty("ramWorkspace", "/dev/shm/oxgarage"));
+
+	private static final long RAM_QUOTA = EGEConstants.getLongProperty(
+		"ramWorkspaceQuota", 256L * 1024 * 1024);
+
+	/*
+	 * Larger input could not fit in quota; the limit keeps buffer of the
+	 * beginning of input within int range.
+	 */
+	private static final int THRESHOLD = (int) Math.max(0, Math.min(
+		EGEConstants.getLongProperty("ramWorkspaceThreshold", 0), Math.min(
+			RAM_QUOTA / EXPANSION_FACTOR, Integer.MAX_VALUE - 1)));
+
+	/*
+	 * Bytes reserved by open memory backed workspaces.
+	 */
+	private static long ramReserved = 0;
+
+	private static boolean ramAvailable;
+
+	static {
+		ramAvailable = THRESHOLD > 0
+				&& (RAM_ROOT.isDirectory() || RAM_ROOT.mkdirs())
+				&& RAM_ROOT.canWrite();
+		if (THRESHOLD > 0 && !ramAvailable) {
+			LOGGER.warn("Memory backed workspace is not available at : "
+					+ RAM_ROOT);
+		}
+		if (ramAvailable) {
+			// memory is not returned after crash or kill of the process
+			TempSpaceManager.getInstance().addSweptRoot(RAM_ROOT);
+		}
+	}
+
+	private final InputStream inputStream;
+
+	private final File ramDir;
+
+	private long reserved;
+
+	private final List<File> dirs = new ArrayList<File>();
+
+
+	private Workspace(InputStream inputStream, File ramDir, long reserved)
+	{
+		this.inputStream = inputStream;
+		this.ramDir = ramDir;
+		this.reserved = reserved;
+	}
+
+
+	/**
+	 * Opens workspace for conversion of specified input data.<br/>
+	 * Method reads at most threshold + 1 bytes to decide where directories
+	 * of the workspace are kept; remaining data is not buffered.
+	 *
+	 * @param inputStream converted data
+	 * @return workspace
+	 * @throws IOException
+	 */
+	public static Workspace open(InputStream inputStream)
+		throws IOException
+	{
+		if (!ramAvailable) {
+			return new Workspace(inputStream, null, 0);
+		}
+		byte[] head = new byte[THRESHOLD + 1];
+		int read = 0;
+		int b;
+		while (read < head.length
+				&& (b = inputStream.read(head, read, head.length - read)) != -1) {
+			read += b;
+		}
+		InputStream replay = new ByteArrayInputStream(head, 0, read);
+		if (read > THRESHOLD) {
+			return new Workspace(new SequenceInputStream(replay, inputStream),
+					null, 0);
+		}
+		long reserve = Math.max(read, 1) * (long) EXPANSION_FACTOR;
+		if (!reserve(reserve)) {
+			return new Workspace(replay, null, 0);
+		}
+		File ramDir = new File(RAM_ROOT, UUID.randomUUID().toString());
+		if (!ramDir.mkdir()) {
+			unreserve(reserve);
+			return new Workspace(replay, null, 0);
+		}
+		TempSpaceManager.getInstance().register(ramDir);
+		return new Workspace(replay, ramDir, reserve);
+	}
+
+
+	/**
+	 * Returns input data of the workspace; stream has to be used instead of
+	 * the stream workspace was opened with.
+	 */
+	public InputStream getInputStream()
+	{
+		return inputStream;
+	}
+
+
+	/**
+	 * Returns 'true' if directories of workspace are kept in memory.
+	 */
+	public boolean isInMemory()
+	{
+		return ramDir != null;
+	}
+
+
+	/**
+	 * Creates new directory in workspace.
+	 *
+	 * @return created directory
+	 * @throws IOException
+	 */
+	public File createDir()
+		throws IOException
+	{
+		File dir;
+		if (ramDir != null) {
+			dir = new File(ramDir, UUID.randomUUID().toString());
+			if (!dir.mkdir()) {
+				throw new IOException("Could not create directory : " + dir);
+			}
+		}
+		else {
+			dir = TempSpaceManager.getInstance().createTempDir();
+		}
+		dirs.add(dir);
+		return dir;
+	}
+
+
+	/**
+	 * Deletes directory created in workspace. Method accepts 'null'.
+	 *
+	 * @param dir
+	 */
+	public void release(File dir)
+	{
+		if (dir == null) {
+			return;
+		}
+		dirs.remove(dir);
+		if (ramDir != null) {
+			EGEIOUtils.deleteDirectory(dir);
+		}
+		else {
+			TempSpaceManager.getInstance().release(dir);
+		}
+	}
+
+
+	/**
+	 * Deletes all directories of workspace and returns reserved memory;
+	 * subsequent calls have no effect.
+	 */
+	public void close()
+	{
+		for (File dir : new ArrayList<File>(dirs)) {
+			release(dir);
+		}
+		if (ramDir != null) {
+			TempSpaceManager.getInstance().release(ramDir);
+		}
+		unreserve(reserved);
+		reserved = 0;
+	}
+
+
+	private static synchronized boolean reserve(long bytes)
+	{
+		if (ramReserved + bytes > RAM_QUOTA) {
+			return false;
+		}
+		ramReserved += bytes;
+		return true;
+	}
+
+
+	private static synchronized void unreserve(long bytes)
+	{
+		ramReserved -= bytes;
+	}
+
+}
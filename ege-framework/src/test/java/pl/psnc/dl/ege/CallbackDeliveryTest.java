@@ -0,0 +1,301 @@
+package pl.psnc.dl.ege;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of {@link CallbackDelivery} sending callbacks to a local HTTP server.
+ */
+public class CallbackDeliveryTest
+	extends TestCase
+{
+
+	private static final long RETRY_DELAY = 100;
+
+	private HttpServer server;
+
+	private String url;
+
+	/*
+	 * Codes of the next responses - 200 when empty.
+	 */
+	private final LinkedList<Integer> codes = new LinkedList<Integer>();
+
+	/*
+	 * Received requests : times and bodies.
+	 */
+	private final List<Long> times = Collections
+			.synchronizedList(new ArrayList<Long>());
+
+	private final List<String> bodies = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private volatile CountDownLatch blocked = null;
+
+	private CallbackDelivery delivery;
+
+
+	protected void setUp()
+		throws Exception
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/callback", new HttpHandler() {
+			public void handle(HttpExchange exchange)
+				throws IOException
+			{
+				times.add(Long.valueOf(System.currentTimeMillis()));
+				bodies.add(read(exchange.getRequestBody()));
+				CountDownLatch latch = blocked;
+				if (latch != null) {
+					try {
+						latch.await(10, TimeUnit.SECONDS);
+					}
+					catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				int code;
+				synchronized (codes) {
+					code = codes.isEmpty() ? 200 : codes.removeFirst().intValue();
+				}
+				exchange.sendResponseHeaders(code, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/callback";
+	}
+
+
+	protected void tearDown()
+		throws Exception
+	{
+		if (delivery != null) {
+			delivery.shutdown();
+		}
+		server.stop(0);
+	}
+
+
+	public void testDelivery()
+		throws Exception
+	{
+		delivery = create(1, 10, 3);
+		Result result = new Result();
+		assertTrue(delivery.deliver("job", url, "<job/>", result));
+		assertEquals(Boolean.TRUE, result.await());
+		assertEquals(1, times.size());
+		assertEquals("<job/>", bodies.get(0));
+		waitForPending(0);
+	}
+
+
+	public void testRetryWithBackoff()
+		throws Exception
+	{
+		delivery = create(1, 10, 3);
+		respond(503, 500);
+		Result result = new Result();
+		delivery.deliver("job", url, "<job/>", result);
+		assertEquals(Boolean.TRUE, result.await());
+		assertEquals(3, times.size());
+		// delay is doubled with every attempt
+		long first = times.get(1).longValue() - times.get(0).longValue();
+		long second = times.get(2).longValue() - times.get(1).longValue();
+		assertTrue("first delay " + first, first >= RETRY_DELAY);
+		assertTrue("second delay " + second, second >= 2 * RETRY_DELAY);
+		waitForPending(0);
+	}
+
+
+	public void testRetriesExhausted()
+		throws Exception
+	{
+		delivery = create(1, 10, 2);
+		respond(503, 503, 503, 503);
+		Result result = new Result();
+		delivery.deliver("job", url, "<job/>", result);
+		assertEquals(Boolean.FALSE, result.await());
+		assertEquals(3, times.size());
+	}
+
+
+	public void testClientErrorNotRetried()
+		throws Exception
+	{
+		delivery = create(1, 10, 3);
+		respond(404);
+		Result result = new Result();
+		delivery.deliver("job", url, "<job/>", result);
+		assertEquals(Boolean.FALSE, result.await());
+		// wait for possible retry
+		Thread.sleep(3 * RETRY_DELAY);
+		assertEquals(1, times.size());
+	}
+
+
+	public void testTooManyRequestsRetried()
+		throws Exception
+	{
+		delivery = create(1, 10, 3);
+		respond(429);
+		Result result = new Result();
+		delivery.deliver("job", url, "<job/>", result);
+		assertEquals(Boolean.TRUE, result.await());
+		assertEquals(2, times.size());
+	}
+
+
+	public void testQueueBound()
+		throws Exception
+	{
+		delivery = create(1, 2, 0);
+		blocked = new CountDownLatch(1);
+		Result first = new Result();
+		Result second = new Result();
+		assertTrue(delivery.deliver("1", url, "<job/>", first));
+		assertTrue(delivery.deliver("2", url, "<job/>", second));
+		assertFalse(delivery.deliver("3", url, "<job/>", new Result()));
+		assertEquals(2, delivery.getPending());
+
+		blocked.countDown();
+		assertEquals(Boolean.TRUE, first.await());
+		assertEquals(Boolean.TRUE, second.await());
+		waitForPending(0);
+		// queue accepts callbacks again
+		Result third = new Result();
+		assertTrue(delivery.deliver("3", url, "<job/>", third));
+		assertEquals(Boolean.TRUE, third.await());
+	}
+
+
+	public void testInactiveCallbackDropped()
+		throws Exception
+	{
+		delivery = create(1, 10, 3);
+		Result result = new Result();
+		result.active = false;
+		delivery.deliver("job", url, "<job/>", result);
+		waitForPending(0);
+		assertEquals(0, times.size());
+		assertNull(result.delivered);
+	}
+
+
+	public void testLocalAddressRefused()
+		throws Exception
+	{
+		// without list of hosts only public addresses are accepted
+		delivery = new CallbackDelivery(1, 10, 3, RETRY_DELAY, 5000,
+				new HashSet<String>());
+		assertFalse(delivery.accepts(url));
+		assertFalse(delivery.accepts("http://localhost/callback"));
+		assertFalse(delivery.accepts("http://169.254.169.254/latest"));
+		assertFalse(delivery.accepts("http://10.0.0.1/callback"));
+		assertFalse(delivery.accepts("http://[::1]/callback"));
+		assertFalse(delivery.accepts("ftp://127.0.0.1/callback"));
+		Result result = new Result();
+		delivery.deliver("job", url, "<job/>", result);
+		assertEquals(Boolean.FALSE, result.await());
+		assertEquals(0, times.size());
+	}
+
+
+	private CallbackDelivery create(int threads, int queueSize, int retries)
+	{
+		Set<String> hosts = new HashSet<String>();
+		hosts.add("127.0.0.1");
+		return new CallbackDelivery(threads, queueSize, retries, RETRY_DELAY,
+				5000, hosts);
+	}
+
+
+	private void respond(int... responses)
+	{
+		synchronized (codes) {
+			for (int code : responses) {
+				codes.add(Integer.valueOf(code));
+			}
+		}
+	}
+
+
+	private void waitForPending(int expected)
+		throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (delivery.getPending() != expected
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, delivery.getPending());
+	}
+
+
+	private static String read(InputStream is)
+		throws IOException
+	{
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int b;
+		while ((b = is.read(buf)) != -1) {
+			os.write(buf, 0, b);
+		}
+		is.close();
+		return os.toString("UTF-8");
+	}
+
+	/*
+	 * Listener recording result of delivery.
+	 */
+	private static class Result
+		implements CallbackDelivery.Listener
+	{
+
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		private volatile boolean active = true;
+
+		private volatile Boolean delivered = null;
+
+
+		public boolean isActive()
+		{
+			return active;
+		}
+
+
+		public void finished(boolean delivered)
+		{
+			this.delivered = Boolean.valueOf(delivered);
+			finished.countDown();
+		}
+
+
+		public Boolean await()
+			throws InterruptedException
+		{
+			assertTrue("delivery not finished", finished.await(10,
+				TimeUnit.SECONDS));
+			return delivered;
+		}
+
+	}
+
+}
@@ -0,0 +1,323 @@
+package pl.psnc.dl.ege;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.psnc.dl.ege.component.Converter;
+import pl.psnc.dl.ege.exception.ConverterException;
+import pl.psnc.dl.ege.types.ConversionAction;
+import pl.psnc.dl.ege.types.ConversionActionArguments;
+import pl.psnc.dl.ege.types.ConversionsPath;
+import pl.psnc.dl.ege.types.DataType;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+
+/**
+ * Tests of {@link JobQueue} working in a temporary directory.
+ */
+public class JobQueueTest
+	extends TestCase
+{
+
+	private static final long STALE_TIMEOUT = 60000;
+
+	private static final long RETENTION = 60000;
+
+	private File root;
+
+	private JobQueue queue;
+
+	private ConversionsPath path;
+
+
+	protected void setUp()
+		throws Exception
+	{
+		root = File.createTempFile("jobqueue", "");
+		root.delete();
+		assertTrue(root.mkdirs());
+		queue = new JobQueue(true, root, 10, STALE_TIMEOUT, RETENTION);
+		List<ConversionAction> actions = new ArrayList<ConversionAction>();
+		actions.add(new ConversionAction(new ConversionActionArguments(
+				new DataType("A", "text/a"), new DataType("B", "text/b")),
+				new Converter() {
+					public void convert(InputStream inputStream,
+							OutputStream outputStream,
+							ConversionActionArguments conversionDataTypes)
+					{
+					}
+
+
+					public List<ConversionActionArguments> getPossibleConversions()
+					{
+						return Collections.emptyList();
+					}
+				}));
+		path = new ConversionsPath(actions);
+	}
+
+
+	protected void tearDown()
+		throws Exception
+	{
+		EGEIOUtils.deleteDirectory(root);
+	}
+
+
+	public void testSubmitAndClaim()
+		throws Exception
+	{
+		String id = queue.submit(input("data"), path);
+		assertEquals(1, queue.getCount(JobQueue.PENDING));
+		assertEquals(0, queue.getCount(JobQueue.INCOMING));
+
+		JobQueue.Job job = queue.claim();
+		assertNotNull(job);
+		assertEquals(id, job.getId());
+		assertEquals("data", read(job.getInput()));
+		assertEquals("1", job.getDescription().getProperty("steps"));
+		assertEquals(0, queue.getCount(JobQueue.PENDING));
+		assertEquals(1, queue.getCount(JobQueue.RUNNING));
+		assertNull(queue.claim());
+	}
+
+
+	public void testOldestJobClaimedFirst()
+		throws Exception
+	{
+		String older = queue.submit(input("1"), path);
+		String newer = queue.submit(input("2"), path);
+		long now = System.currentTimeMillis();
+		pending(older).setLastModified(now - 20000);
+		pending(newer).setLastModified(now - 10000);
+
+		assertEquals(older, queue.claim().getId());
+		assertEquals(newer, queue.claim().getId());
+	}
+
+
+	public void testJobClaimedByOneWorker()
+		throws Exception
+	{
+		final int jobs = 50;
+		for (int i = 0; i < jobs; i++) {
+			queue.submit(input(String.valueOf(i)), path);
+		}
+		final List<String> claimed = Collections
+				.synchronizedList(new ArrayList<String>());
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			// every worker has its own queue, as in separate processes
+			final JobQueue workerQueue = new JobQueue(true, root, 10,
+					STALE_TIMEOUT, RETENTION);
+			Thread worker = new Thread() {
+				public void run()
+				{
+					JobQueue.Job job;
+					while ((job = workerQueue.claim()) != null) {
+						claimed.add(job.getId());
+					}
+				}
+			};
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals(jobs, claimed.size());
+		assertEquals(jobs, new HashSet<String>(claimed).size());
+		assertEquals(jobs, queue.getCount(JobQueue.RUNNING));
+	}
+
+
+	public void testStaleJobReturnedToQueue()
+		throws Exception
+	{
+		String staleId = queue.submit(input("1"), path);
+		JobQueue.Job stale = queue.claim();
+		String aliveId = queue.submit(input("2"), path);
+		JobQueue.Job alive = queue.claim();
+		assertEquals(staleId, stale.getId());
+		assertEquals(aliveId, alive.getId());
+		running(staleId).setLastModified(System.currentTimeMillis() - 2
+				* STALE_TIMEOUT);
+		alive.touch();
+
+		queue.maintain();
+		assertEquals(1, queue.getCount(JobQueue.PENDING));
+		assertEquals(1, queue.getCount(JobQueue.RUNNING));
+		assertTrue(running(aliveId).isDirectory());
+		// lost worker can not complete job taken from it
+		assertFalse(queue.complete(stale, null));
+
+		JobQueue.Job again = queue.claim();
+		assertEquals(staleId, again.getId());
+		assertEquals("1", read(again.getInput()));
+		assertTrue(queue.complete(again, null));
+	}
+
+
+	public void testCancelPendingJob()
+		throws Exception
+	{
+		String id = queue.submit(input("data"), path);
+		queue.cancel(id);
+		assertEquals(0, queue.getCount(JobQueue.PENDING));
+		assertEquals(0, queue.getCount(JobQueue.DONE));
+		assertNull(queue.claim());
+	}
+
+
+	public void testCancelRunningJob()
+		throws Exception
+	{
+		String id = queue.submit(input("data"), path);
+		JobQueue.Job job = queue.claim();
+		assertFalse(job.isCancelled());
+		queue.cancel(id);
+		assertTrue(job.isCancelled());
+
+		// result of cancelled job is not kept
+		assertTrue(queue.complete(job, null));
+		assertEquals(0, queue.getCount(JobQueue.RUNNING));
+		assertEquals(0, queue.getCount(JobQueue.DONE));
+	}
+
+
+	public void testPerformReturnsResult()
+		throws Exception
+	{
+		Thread worker = startWorker(null);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		queue.perform(input("data"), os, path, new CancellationToken());
+		worker.join();
+		assertEquals("DATA", os.toString("UTF-8"));
+		assertEquals(0, queue.getCount(JobQueue.DONE));
+	}
+
+
+	public void testPerformThrowsErrorOfWorker()
+		throws Exception
+	{
+		Thread worker = startWorker(new ConverterException("failed"));
+		try {
+			queue.perform(input("data"), new ByteArrayOutputStream(), path,
+				new CancellationToken());
+			fail("ConverterException expected");
+		}
+		catch (ConverterException ex) {
+			assertEquals("failed", ex.getMessage());
+		}
+		worker.join();
+		assertEquals(0, queue.getCount(JobQueue.DONE));
+	}
+
+
+	public void testRetentionOfUncollectedJobs()
+		throws Exception
+	{
+		String expiredId = queue.submit(input("1"), path);
+		queue.complete(queue.claim(), null);
+		String keptId = queue.submit(input("2"), path);
+		queue.complete(queue.claim(), null);
+		new File(new File(root, JobQueue.DONE), expiredId).setLastModified(System
+				.currentTimeMillis()
+				- 2 * RETENTION);
+		File incoming = new File(new File(root, JobQueue.INCOMING), "lost");
+		assertTrue(incoming.mkdirs());
+		incoming.setLastModified(System.currentTimeMillis() - 2 * RETENTION);
+
+		queue.maintain();
+		assertEquals(1, queue.getCount(JobQueue.DONE));
+		assertTrue(new File(new File(root, JobQueue.DONE), keptId).isDirectory());
+		assertEquals(0, queue.getCount(JobQueue.INCOMING));
+	}
+
+
+	/*
+	 * Worker claiming one job : result is upper-cased input or selected
+	 * error.
+	 */
+	private Thread startWorker(final Exception error)
+	{
+		Thread worker = new Thread() {
+			public void run()
+			{
+				try {
+					JobQueue.Job job;
+					while ((job = queue.claim()) == null) {
+						Thread.sleep(10);
+					}
+					if (error == null) {
+						write(job.getResult(), read(job.getInput()).toUpperCase());
+					}
+					queue.complete(job, error);
+				}
+				catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+		worker.start();
+		return worker;
+	}
+
+
+	private File pending(String id)
+	{
+		return new File(new File(root, JobQueue.PENDING), id);
+	}
+
+
+	private File running(String id)
+	{
+		return new File(new File(root, JobQueue.RUNNING), id);
+	}
+
+
+	private static InputStream input(String data)
+		throws IOException
+	{
+		return new ByteArrayInputStream(data.getBytes("UTF-8"));
+	}
+
+
+	private static String read(File file)
+		throws IOException
+	{
+		InputStream is = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			EGEIOUtils.copyStream(is, os);
+			return os.toString("UTF-8");
+		}
+		finally {
+			is.close();
+		}
+	}
+
+
+	private static void write(File file, String data)
+		throws IOException
+	{
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data.getBytes("UTF-8"));
+		}
+		finally {
+			os.close();
+		}
+	}
+
+}
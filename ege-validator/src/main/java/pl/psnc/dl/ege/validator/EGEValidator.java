@@ -6,7 +6,6 @@ import java.io.InputStream;
 import java.util.List;
 
 import org.apache.log4j.Logger;
-import org.jdom.JDOMException;
 import org.xml.sax.SAXParseException;
 
 import pl.psnc.dl.ege.component.Validator;
@@ -42,23 +41,38 @@ public class EGEValidator
 	public ValidationResult validate(InputStream inputData,
 			DataType inputDataType)
 		throws IOException, ValidatorException, EGEException
+	{	
+		return validate(inputData, inputDataType, new StandardErrorHandler());
+	}
+
+
+	public ValidationResult validate(InputStream inputData,
+			DataType inputDataType, int errorLimit)
+		throws IOException, ValidatorException, EGEException
+	{
+		return validate(inputData, inputDataType, new StandardErrorHandler(errorLimit));
+	}
+
+
+	private ValidationResult validate(InputStream inputData,
+			DataType inputDataType, StandardErrorHandler seh)
+		throws IOException, ValidatorException, EGEException
 	{	
 		checkIfSupported(inputDataType);
 		XmlValidator validator = (XmlValidator)provider.getValidator(inputDataType);
 		try {
-			StandardErrorHandler seh = new StandardErrorHandler();
 			validator.validateXml(inputData,seh);
 			return seh.getValidationResult();
 		}
+		catch (ValidationAbortedException ex) {
+			LOGGER.debug(ex.getMessage());
+			return seh.getValidationResult();
+		}
 		catch (SAXParseException ex) {
 			return new ValidationResult(ValidationResult.Status.FATAL,
 					"Error in line (" + ex.getLineNumber() + "), column  ("
 							+ ex.getColumnNumber() + ") : " + ex.getMessage());
 		}
-		catch (JDOMException ex){
-			return new ValidationResult(ValidationResult.Status.FATAL,
-				"Unexpected JDOM parse error occured : " + ex.getMessage());
-		}
 		catch (FileNotFoundException ex){
 			return new ValidationResult(ValidationResult.Status.FATAL,
 				"Probably because relative (not absolute) reference to a resource :" + ex.getMessage());
@@ -15,7 +15,11 @@ import pl.psnc.dl.ege.types.ValidationResult;
  * status of validation result is changed.<br/>
  * 
  * After validation, validation result instance can be retrieved in order
- * to read status and contained messages.   
+ * to read status and contained messages.<br/>
+ * 
+ * In fail-fast mode handler aborts validation, by throwing
+ * {@link ValidationAbortedException}, on the first fatal error or when
+ * number of errors reaches the limit.   
  * 
  * @author mariuszs
  *
@@ -26,11 +30,17 @@ public class StandardErrorHandler
 	
 	private final ValidationResult valResult;
 	
+	private final boolean failFast;
+	
+	private final int errorLimit;
+	
+	private int errors = 0;
+	
 	/**
 	 * Constructs error handler with validation result of SUCCESS status. 
 	 */
 	public StandardErrorHandler(){
-		valResult = new ValidationResult(ValidationResult.Status.SUCCESS);
+		this(null);
 	}
 	
 	/**
@@ -44,6 +54,21 @@ public class StandardErrorHandler
 			valResult = new ValidationResult(ValidationResult.Status.SUCCESS);
 		}
 		this.valResult = valResult;
+		this.failFast = false;
+		this.errorLimit = 0;
+	}
+	
+	/**
+	 * Constructs fail-fast error handler with validation result of SUCCESS status.
+	 * Validation is aborted on the first fatal error or when number of errors
+	 * reaches errorLimit (values lower than 1 abort only on fatal errors).
+	 * 
+	 * @param errorLimit
+	 */
+	public StandardErrorHandler(int errorLimit){
+		this.valResult = new ValidationResult(ValidationResult.Status.SUCCESS);
+		this.failFast = true;
+		this.errorLimit = errorLimit;
 	}
 	
 	public void error(SAXParseException exception)
@@ -56,6 +81,10 @@ public class StandardErrorHandler
 		if(!valResult.getStatus().equals(ValidationResult.Status.FATAL)){
 			valResult.setStatus(ValidationResult.Status.ERROR);
 		}
+		errors++;
+		if(failFast && errorLimit > 0 && errors >= errorLimit){
+			throw new ValidationAbortedException("Validation aborted after " + errors + " error(s).");
+		}
 	}
 
 
@@ -67,6 +96,9 @@ public class StandardErrorHandler
 					+ "), column  (" + exception.getColumnNumber() + ") : "
 					+ exception.getMessage());
 		valResult.setStatus(ValidationResult.Status.FATAL);
+		if(failFast){
+			throw new ValidationAbortedException("Validation aborted on fatal error.");
+		}
 	}
 
 	
@@ -0,0 +1,22 @@
+package pl.psnc.dl.ege.validator;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Thrown by {@link StandardErrorHandler} in fail-fast mode to stop parsing
+ * of validated data; messages reported until then are kept in validation
+ * result of the handler.
+ */
+public class ValidationAbortedException
+	extends SAXException
+{
+
+	private static final long serialVersionUID = 1L;
+
+
+	public ValidationAbortedException(String message)
+	{
+		super(message);
+	}
+
+}
@@ -118,6 +118,12 @@ public class XmlValidatorsProvider extends DefaultHandler {
 		} catch (Exception ex) {
 			logger.error(ex.getMessage(), ex);
 		}
+		// DTDs are shared by all validations - read them once, up front
+		for (XmlValidator val : xmlValidators.values()) {
+			if (val instanceof DTDValidator) {
+				((DTDValidator) val).preload();
+			}
+		}
 	}
 
 	/*
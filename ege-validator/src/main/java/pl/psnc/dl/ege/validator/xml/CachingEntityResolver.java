@@ -0,0 +1,88 @@
+package pl.psnc.dl.ege.validator.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Resolves DTDs and external entities of configured grammars from memory.<br/><br/>
+ *
+ * Entities, which system ids start with base URI of the resolver (usually
+ * directory of configured DTD packed in .jar file), are read once and kept in
+ * a cache shared by all resolvers and threads; other entities are resolved by
+ * the parser as usual.
+ */
+class CachingEntityResolver
+	implements EntityResolver
+{
+
+	private static final Logger LOGGER = Logger.getLogger(CachingEntityResolver.class);
+
+	/*
+	 * Contents of resolved entities by system id.
+	 */
+	private static final ConcurrentMap<String, byte[]> CACHE = new ConcurrentHashMap<String, byte[]>();
+
+	private final String base;
+
+
+	/**
+	 * Constructs resolver caching entities placed in the same directory as
+	 * selected grammar (or in its subdirectories).
+	 *
+	 * @param grammarUri system id of main grammar file
+	 */
+	public CachingEntityResolver(String grammarUri)
+	{
+		this.base = grammarUri.substring(0, grammarUri.lastIndexOf('/') + 1);
+	}
+
+
+	public InputSource resolveEntity(String publicId, String systemId)
+		throws SAXException, IOException
+	{
+		if (systemId == null || !systemId.startsWith(base)) {
+			return null;
+		}
+		byte[] content = CACHE.get(systemId);
+		if (content == null) {
+			InputStream is = new URL(systemId).openStream();
+			try {
+				content = IOUtils.toByteArray(is);
+			}
+			finally {
+				is.close();
+			}
+			byte[] previous = CACHE.putIfAbsent(systemId, content);
+			if (previous != null) {
+				content = previous;
+			}
+			else {
+				LOGGER.debug("Cached entity : " + systemId);
+			}
+		}
+		InputSource source = new InputSource(new ByteArrayInputStream(content));
+		source.setPublicId(publicId);
+		source.setSystemId(systemId);
+		return source;
+	}
+
+
+	/**
+	 * Returns number of cached entities.
+	 */
+	public static int size()
+	{
+		return CACHE.size();
+	}
+
+}
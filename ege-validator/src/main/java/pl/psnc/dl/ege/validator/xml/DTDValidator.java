@@ -1,37 +1,34 @@
 package pl.psnc.dl.ege.validator.xml;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.log4j.Logger;
-import org.jdom.DocType;
-import org.jdom.Document;
-import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
-import org.jdom.output.XMLOutputter;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
-import pl.psnc.dl.ege.ExceptionListener;
 import pl.psnc.dl.ege.validator.StandardErrorHandler;
 
 /**
  * Validates XML data against referenced external DTD.<br/><br/>
- *  
+ *
  * If streamed XML data has no !DOCTYPE declaration, validator adds it by default
- * with specified external reference to DTD and root element.<br/><br/>   
- *  
+ * with specified external reference to DTD and root element.<br/>
+ * Declaration is added to the prolog of the stream by {@link DoctypeInjector},
+ * so data is validated in a single streaming pass.<br/>
+ * DTD and its entity modules are read through {@link CachingEntityResolver},
+ * shared by all validations.<br/><br/>
+ *
  * @author mariuszs
  */
 public class DTDValidator
@@ -40,8 +37,15 @@ public class DTDValidator
 
 	private static final Logger LOGGER = Logger.getLogger(DTDValidator.class);
 
+	private static final SAXParserFactory FACTORY = SAXParserFactory.newInstance();
+
+	static {
+		FACTORY.setValidating(true);
+		FACTORY.setNamespaceAware(true);
+	}
+
 	/*
-	 * DTD declaration systemId 
+	 * DTD declaration systemId
 	 */
 	private final String mainDTD;
 
@@ -50,10 +54,12 @@ public class DTDValidator
 	 */
 	private final String root;
 
+	private final CachingEntityResolver resolver;
+
 
 	/**
 	 * Default constructor.
-	 * 
+	 *
 	 * @param systemId - "systemId" of !DOCTYPE declaration
 	 * @param root - root-element of !DOCTYPE declaration
 	 */
@@ -64,106 +70,53 @@ public class DTDValidator
 		}
 		this.root = root;
 		this.mainDTD = systemId;
+		this.resolver = new CachingEntityResolver(systemId);
+	}
+
+
+	/**
+	 * Loads DTD and its entity modules into the shared cache by
+	 * validation of an empty root element.
+	 */
+	public void preload()
+	{
+		try {
+			validateXml(new ByteArrayInputStream(("<" + root + "/>")
+					.getBytes("UTF-8")), new DefaultHandler());
+		}
+		catch (Exception ex) {
+			LOGGER.warn("Could not preload DTD " + mainDTD + " : "
+					+ ex.getMessage());
+		}
 	}
 
 	/**
 	 * Performs XML stream validation.<br/>
 	 * Validation results can be stored within {@link ErrorHandler} implementation
 	 * ({@link StandardErrorHandler} by default).
-	 * 
+	 *
 	 * @param inputData - streamed XML data.
 	 */
 	public void validateXml(InputStream inputData, ErrorHandler errorHandler)
 		throws SAXException, FileNotFoundException, IOException, Exception
 	{
-		PipedOutputStream os = new PipedOutputStream();
-		PipedInputStream is = new PipedInputStream(os);
-		ExceptionListenerImpl el = new ExceptionListenerImpl();
-		DoctypeFilter filter = new DoctypeFilter(inputData, os, el, errorHandler);
-		filter.start();
-		SAXParserFactory factory = SAXParserFactory.newInstance();
-		factory.setValidating(true);
-		factory.setNamespaceAware(true);
 		try {
-			SAXParser parser = factory.newSAXParser();
+			SAXParser parser;
+			synchronized (FACTORY) {
+				parser = FACTORY.newSAXParser();
+			}
 			XMLReader reader = parser.getXMLReader();
+			reader.setEntityResolver(resolver);
 			reader.setErrorHandler(errorHandler);
-			reader.parse(new InputSource(is));
+			reader.parse(new InputSource(DoctypeInjector.addDoctype(inputData,
+				root, mainDTD)));
 		}
 		catch (ParserConfigurationException ex) {
 			throw new SAXException(ex.getMessage());
-		}catch (SAXParseException ex){
-			filter.join();
-			Exception exe = el.throwException();
-			if(exe != null){
-				throw exe;
-			}
-		}
-	}
-
-	/*
-	 * Adds !DOCTYPE declaration to XML stream (if it does not exists)
-	 * with validation DTD.
-	 */
-	private class DoctypeFilter
-		extends Thread
-	{
-
-		private final InputStream inputStream;
-
-		private final OutputStream outputStream;
-
-		private final ExceptionListener el;
-		
-		private final ErrorHandler eh;
-
-		public DoctypeFilter(InputStream is, OutputStream os,
-				ExceptionListener el, ErrorHandler eh)
-		{
-			super();
-			inputStream = is;
-			outputStream = os;
-			this.el = el;
-			this.eh = eh;
 		}
-
-
-		@Override
-		public void run()
-		{
-			try {
-				SAXBuilder sb = new SAXBuilder();
-				Document doc = sb.build(inputStream);
-				if (doc.getDocType() == null) {
-					doc.setDocType(new DocType(root, mainDTD));
-				}
-				XMLOutputter outp = new XMLOutputter();
-				outp.output(doc, outputStream);
-				outputStream.flush();
-			}
-			catch(FileNotFoundException ex){
-				el.catchException(ex);
-			}
-			catch (JDOMException ex) {
-				el.catchException(ex);
-			}
-			catch (IOException ex) {
-				LOGGER.error(ex.getMessage(), ex);
-				el.catchException(ex);
-			}
-			finally {
-				if (outputStream != null) {
-					try {
-						outputStream.close();
-					}
-					catch (IOException ex) {
-						LOGGER.error(ex.getMessage());
-					}
-				}
-			}
-
+		catch (SAXParseException ex) {
+			// fatal error was already reported to error handler
 		}
-
 	}
 
 }
@@ -0,0 +1,167 @@
+package pl.psnc.dl.ege.validator.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Adds !DOCTYPE declaration to streamed XML data, which has none.<br/><br/>
+ *
+ * Only prolog of the document (XML declaration, comments, processing
+ * instructions) is read and kept in memory; if it contains no !DOCTYPE
+ * declaration, declaration is inserted before the root element. The rest of
+ * the document is streamed unchanged.<br/>
+ * Prolog is scanned in encoding detected from its first bytes : UTF-16 (with or
+ * without byte order mark) or any ASCII compatible encoding.
+ */
+final class DoctypeInjector
+{
+
+	/*
+	 * Max size of scanned prolog - longer prologs are passed unchanged.
+	 */
+	private static final int MAX_PROLOG = 64 * 1024;
+
+	private static final int CHUNK = 4096;
+
+	private static final int NEED_MORE = 0;
+
+	private static final int DONE = 1;
+
+	private static final Pattern ENCODING = Pattern
+			.compile("encoding\\s*=\\s*[\"']([A-Za-z0-9._:\\-]+)[\"']");
+
+
+	private DoctypeInjector()
+	{
+
+	}
+
+
+	/**
+	 * Returns stream of XML data with !DOCTYPE declaration.
+	 *
+	 * @param in XML data
+	 * @param root root element of declaration
+	 * @param systemId system id of declared DTD
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream addDoctype(InputStream in, String root,
+			String systemId)
+		throws IOException
+	{
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		byte[] chunk = new byte[CHUNK];
+		while (head.size() < MAX_PROLOG) {
+			int read = in.read(chunk);
+			if (read == -1) {
+				break;
+			}
+			head.write(chunk, 0, read);
+			if (scan(head.toByteArray(), root, systemId, head) == DONE) {
+				break;
+			}
+		}
+		return new SequenceInputStream(
+			new ByteArrayInputStream(head.toByteArray()), in);
+	}
+
+	/*
+	 * Scans prolog of buffered bytes; when root element is found and
+	 * document has no declaration, buffer is replaced with rewritten bytes.
+	 */
+	private static int scan(byte[] bytes, String root, String systemId,
+			ByteArrayOutputStream head)
+		throws UnsupportedEncodingException
+	{
+		int bom = 0;
+		String charset = null;
+		if (bytes.length < 4) {
+			return NEED_MORE;
+		}
+		if ((bytes[0] & 0xFF) == 0xFE && (bytes[1] & 0xFF) == 0xFF) {
+			bom = 2;
+			charset = "UTF-16BE";
+		}
+		else if ((bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xFE) {
+			bom = 2;
+			charset = "UTF-16LE";
+		}
+		else if (bytes[0] == 0 && bytes[1] == '<') {
+			charset = "UTF-16BE";
+		}
+		else if (bytes[0] == '<' && bytes[1] == 0) {
+			charset = "UTF-16LE";
+		}
+		else if ((bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB
+				&& (bytes[2] & 0xFF) == 0xBF) {
+			bom = 3;
+		}
+		int unit = charset == null ? 1 : 2;
+		// ASCII compatible prolog is scanned byte by byte
+		String prolog = new String(bytes, bom, (bytes.length - bom) / unit * unit,
+				charset == null ? "ISO-8859-1" : charset);
+		int pos = 0;
+		int length = prolog.length();
+		while (true) {
+			while (pos < length && Character.isWhitespace(prolog.charAt(pos))) {
+				pos++;
+			}
+			if (pos + 2 > length) {
+				return NEED_MORE;
+			}
+			int end;
+			if (prolog.charAt(pos) != '<') {
+				// not well-formed : left to the parser
+				return DONE;
+			}
+			else if (prolog.startsWith("<?", pos)) {
+				end = prolog.indexOf("?>", pos);
+				if (end == -1) {
+					return NEED_MORE;
+				}
+				pos = end + 2;
+			}
+			else if (prolog.startsWith("<!", pos)) {
+				if (pos + 4 > length) {
+					return NEED_MORE;
+				}
+				if (!prolog.startsWith("<!--", pos)) {
+					// !DOCTYPE declaration is present
+					return DONE;
+				}
+				end = prolog.indexOf("-->", pos);
+				if (end == -1) {
+					return NEED_MORE;
+				}
+				pos = end + 3;
+			}
+			else {
+				break;
+			}
+		}
+		if (charset == null) {
+			Matcher m = ENCODING.matcher(prolog.substring(0, pos));
+			charset = m.find() ? m.group(1) : "UTF-8";
+			if (!Charset.isSupported(charset)) {
+				charset = "UTF-8";
+			}
+		}
+		int offset = bom + pos * unit;
+		byte[] doctype = ("<!DOCTYPE " + root + " SYSTEM \"" + systemId + "\">")
+				.getBytes(charset);
+		head.reset();
+		head.write(bytes, 0, offset);
+		head.write(doctype, 0, doctype.length);
+		head.write(bytes, offset, bytes.length - offset);
+		return DONE;
+	}
+
+}
@@ -35,6 +35,11 @@ public class SchemaValidator implements XmlValidator
 	
 	private String defaultUrl = null;
 	
+	/*
+	 * Compiled schema - thread-safe, shared by all validations.
+	 */
+	private volatile Schema schema = null;
+	
 	/**
 	 * Default constructor.<br> 
 	 * Sets {@link StandardErrorHandler} as default error handler.
@@ -70,6 +75,32 @@ public class SchemaValidator implements XmlValidator
 		spf.setValidating(false);
 		spf.setNamespaceAware(true);
 		try {
+			spf.setSchema(getSchema());
+			SAXParser parser = spf.newSAXParser();
+			XMLReader reader = parser.getXMLReader();
+			reader.setErrorHandler(errorHandler);
+			reader.parse(new InputSource(inputData));
+		}
+		catch (ParserConfigurationException e) {
+			throw new SAXException(e);
+		}
+	}
+	
+	
+	/*
+	 * Compiles schema on first use; failed compilation is repeated
+	 * by next validation.
+	 */
+	private Schema getSchema() throws SAXException, IOException
+	{
+		Schema result = schema;
+		if (result != null) {
+			return result;
+		}
+		synchronized (this) {
+			if (schema != null) {
+				return schema;
+			}
 			SchemaFactory schemaFactory = SchemaFactory
 			.newInstance("http://www.w3.org/2001/XMLSchema");
 			URL schemaURL = new URL(schemeUrl);
@@ -87,16 +118,13 @@ public class SchemaValidator implements XmlValidator
 				}
 			}
 			LOGGER.debug("Uses schema url : " + schemaURL);
-			StreamSource sss = new StreamSource(urlStream);
-			Schema schema =  schemaFactory.newSchema(sss);
-			spf.setSchema(schema);
-			SAXParser parser = spf.newSAXParser();
-			XMLReader reader = parser.getXMLReader();
-			reader.setErrorHandler(errorHandler);
-			reader.parse(new InputSource(inputData));
-		}
-		catch (ParserConfigurationException e) {
-			throw new SAXException(e);
+			try {
+				schema = schemaFactory.newSchema(new StreamSource(urlStream));
+			}
+			finally {
+				urlStream.close();
+			}
+			return schema;
 		}
 	}
 	
@@ -4,17 +4,29 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import pl.psnc.dl.ege.JobJournal;
+import pl.psnc.dl.ege.configuration.EGEConfigurationManager;
+import pl.psnc.dl.ege.configuration.EGEConstants;
+
 
 public class PreConfig implements ServletContextListener
 {
 	public static final String MIME_EXTENSION_PROVIDER = "mimeExtProv";
 	
 	public static final String LABEL_PROVIDER = "labelProvider";
+
+	/**
+	 * Context attribute : Boolean.TRUE when converters are warmed up (at
+	 * once, if warm-up is disabled) - until then StatusServlet responds with
+	 * 503.
+	 */
+	public static final String READY = "ready";
 	
 	@Override
 	public void contextDestroyed(ServletContextEvent arg0)
 	{
-		
+		// interrupted jobs are performed again after restart
+		JobJournal.getInstance().shutdown();
 	}
 	
 	@Override
@@ -31,5 +43,37 @@ public class PreConfig implements ServletContextListener
 
 		context.setAttribute("EGEConstants", "pl.psnc.dl.ege.configuration.EGEConstants;");
 
+		// precompiles stylesheets in background (oxgarage.properties : warmUp, warmUpSample);
+		// load balancers wait for readiness reported by StatusServlet
+		if (EGEConstants.getBooleanProperty("warmUp", false)) {
+			context.setAttribute(READY, Boolean.FALSE);
+			startWarmUp(context);
+		}
+		else {
+			context.setAttribute(READY, Boolean.TRUE);
+		}
+
+		// resumes asynchronous jobs, which were not finished before restart
+		JobJournal.getInstance().recover();
+
+	}
+
+
+	private void startWarmUp(final ServletContext context)
+	{
+		Thread warmUp = new Thread(new Runnable() {
+			public void run()
+			{
+				try {
+					EGEConfigurationManager.getInstance().warmUp(
+						EGEConstants.getBooleanProperty("warmUpSample", false));
+				}
+				finally {
+					context.setAttribute(READY, Boolean.TRUE);
+				}
+			}
+		}, "ege-warm-up");
+		warmUp.setDaemon(true);
+		warmUp.start();
 	}
 }
@@ -20,6 +20,11 @@ public class ConversionRequestResolver extends RequestResolver
 
 	private static final String EN = "en";
 
+	/**
+	 * Name of parameter with additional target of conversion.
+	 */
+	public static final String TARGET = "target";
+
 
 	public ConversionRequestResolver(HttpServletRequest request, Method method)
 		throws RequestResolvingException
@@ -122,6 +127,53 @@ public class ConversionRequestResolver extends RequestResolver
 		}
 	}
 
+	/**
+	 * Reads additional targets of conversion (parameters 'target') : every
+	 * target is a sequence of encoded output data types separated by slashes
+	 * - in the same form as in URL of conversion.<br/>
+	 * Returned path frames start with input data type of the request.
+	 * 
+	 * @return list of path frames (empty if there are no additional targets)
+	 * @throws RequestResolvingException
+	 */
+	public List<List<DataType>> getTargets()
+		throws RequestResolvingException
+	{
+		List<List<DataType>> targets = new ArrayList<List<DataType>>();
+		String[] values = request.getParameterValues(TARGET);
+		if (values == null) {
+			return targets;
+		}
+		DataType iDataType = ((List<DataType>) data).get(0);
+		for (String value : values) {
+			List<DataType> pathFrame = new ArrayList<DataType>();
+			pathFrame.add(iDataType);
+			for (String query : value.split(SLASH)) {
+				if (query.trim().length() == 0) {
+					continue;
+				}
+				DataType dt = null;
+				try {
+					dt = decodeDataType(query);
+				}
+				catch (ArrayIndexOutOfBoundsException ex) {
+					// not an encoded data type
+				}
+				if (dt == null) {
+					throw new RequestResolvingException(
+							RequestResolvingException.Status.BAD_REQUEST);
+				}
+				pathFrame.add(dt);
+			}
+			if (pathFrame.size() < 2) {
+				throw new RequestResolvingException(
+						RequestResolvingException.Status.BAD_REQUEST);
+			}
+			targets.add(pathFrame);
+		}
+		return targets;
+	}
+
 	/*
 	 * TODO : local names mechanism 
 	 */
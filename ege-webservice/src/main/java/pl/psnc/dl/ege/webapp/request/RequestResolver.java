@@ -29,6 +29,28 @@ public abstract class RequestResolver
 
 	public static final String SEMICOLON = ";";
 
+	/**
+	 * Request parameter : batch operation over many documents.
+	 */
+	public static final String BATCH = "batch";
+
+	/**
+	 * Request parameter : asynchronous operation, which is performed as a job.
+	 */
+	public static final String ASYNC = "async";
+
+	/**
+	 * Request parameter : identifier of progress of operation, chosen by
+	 * client (letters, digits, '-' and '_', up to 64 characters).
+	 */
+	public static final String PROGRESS = "progress";
+
+	/**
+	 * Request parameter : URL notified about completion of asynchronous
+	 * operation.
+	 */
+	public static final String CALLBACK = "callback";
+
 	protected Method method;
 	
 	protected HttpServletRequest request;
@@ -57,6 +79,54 @@ public abstract class RequestResolver
 		return data;
 	}
 	
+	/**
+	 * Returns 'true' if request asks for batch operation (parameter
+	 * 'batch=true'), performed over many documents sent in single request.
+	 * 
+	 * @return
+	 */
+	public boolean isBatch(){
+		return "true".equalsIgnoreCase(request.getParameter(BATCH));
+	}
+	
+	/**
+	 * Returns 'true' if request asks for asynchronous operation (parameter
+	 * 'async=true') : request is answered at once with location of the job.
+	 * 
+	 * @return
+	 */
+	public boolean isAsync(){
+		return "true".equalsIgnoreCase(request.getParameter(ASYNC));
+	}
+	
+	/**
+	 * Returns identifier of progress of operation (parameter 'progress') or
+	 * 'null' if it is not sent or malformed.
+	 * 
+	 * @return
+	 */
+	public String getProgressId(){
+		String id = request.getParameter(PROGRESS);
+		if(id == null || !id.matches("[A-Za-z0-9_-]{1,64}")){
+			return null;
+		}
+		return id;
+	}
+	
+	/**
+	 * Returns URL, which receives result of asynchronous operation
+	 * (parameter 'callback'), or 'null' if it is not sent.
+	 * 
+	 * @return
+	 */
+	public String getCallback(){
+		String callback = request.getParameter(CALLBACK);
+		if(callback == null || callback.trim().length() == 0){
+			return null;
+		}
+		return callback.trim();
+	}
+	
 	/**
 	 * Returns reference to request. 
 	 * 
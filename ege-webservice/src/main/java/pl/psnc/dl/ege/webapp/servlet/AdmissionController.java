@@ -0,0 +1,268 @@
+package pl.psnc.dl.ege.webapp.servlet;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.ConversionScheduler;
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.types.ConversionAction;
+import pl.psnc.dl.ege.types.ConversionsPath;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
+
+/**
+ * Admission control of conversion and validation requests.<br/><br/>
+ *
+ * Request is admitted before its data is read, when :
+ * <ul>
+ * <li>number of admitted requests in progress is lower than
+ * <i>admissionMaxRequests</i> (oxgarage.properties, 0 - unlimited),</li>
+ * <li>queues of pools of converters used by request are not full,</li>
+ * <li>temporary space has capacity (see {@link TempSpaceManager}),</li>
+ * <li>at least <i>admissionMinFreeHeap</i> percent of heap (default : 10)
+ * was free after the last garbage collection.</li>
+ * </ul>
+ * Other requests are rejected with 503 (Service Unavailable) and
+ * Retry-After header : <i>admissionRetryAfter</i> seconds (default : 10) or
+ * average time of waiting in full pool, if longer.<br/>
+ *
+ * Implemented as Singleton.
+ */
+final class AdmissionController
+{
+
+	private static final Logger LOGGER = Logger.getLogger(AdmissionController.class);
+
+	public static final String R_REQUESTS = "requests";
+
+	public static final String R_POOL = "pool";
+
+	public static final String R_TEMP_SPACE = "temp-space";
+
+	public static final String R_HEAP = "heap";
+
+	private final int maxRequests;
+
+	private final int minFreeHeap;
+
+	private final int retryAfter;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicLong accepted = new AtomicLong();
+
+	/*
+	 * Number of rejected requests by reason - guarded by 'this'.
+	 */
+	private final Map<String, Long> rejections = new TreeMap<String, Long>();
+
+	private static class AdmissionControllerHolder
+	{
+		private static final AdmissionController INSTANCE = new AdmissionController();
+	}
+
+
+	private AdmissionController()
+	{
+		maxRequests = EGEConstants.getIntProperty("admissionMaxRequests", 0);
+		minFreeHeap = EGEConstants.getIntProperty("admissionMinFreeHeap", 10);
+		retryAfter = Math.max(1, EGEConstants.getIntProperty(
+			"admissionRetryAfter", 10));
+	}
+
+
+	public static AdmissionController getInstance()
+	{
+		return AdmissionControllerHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Admits request of conversion along selected path.
+	 */
+	public Admission admit(ConversionsPath path)
+	{
+		TreeSet<String> pools = new TreeSet<String>();
+		pools.add(ConversionScheduler.VALIDATION);
+		for (ConversionAction ca : path.getPath()) {
+			pools.add(ConversionScheduler.getInstance().getPoolName(ca));
+		}
+		return admit(pools);
+	}
+
+
+	/**
+	 * Admits request, which uses selected pools. Admitted request has to be
+	 * released after it is served.
+	 */
+	public Admission admit(Collection<String> pools)
+	{
+		if (inFlight.incrementAndGet() > maxRequests && maxRequests > 0) {
+			inFlight.decrementAndGet();
+			return reject(R_REQUESTS, "Too many requests in progress.",
+				retryAfter);
+		}
+		Map<String, ConversionScheduler.Pool> all = ConversionScheduler
+				.getInstance().getPools();
+		for (String name : pools) {
+			ConversionScheduler.Pool pool = all.get(name);
+			if (pool != null && pool.getQueueLimit() > 0
+					&& pool.getWaiting() >= pool.getQueueLimit()) {
+				inFlight.decrementAndGet();
+				int wait = (int) Math.ceil(pool.getAverageWait() / 1000);
+				return reject(R_POOL, "Queue of pool '" + name + "' is full.",
+					Math.max(retryAfter, wait));
+			}
+		}
+		if (!TempSpaceManager.getInstance().hasCapacity()) {
+			inFlight.decrementAndGet();
+			return reject(R_TEMP_SPACE, "No temporary space available.",
+				retryAfter);
+		}
+		if (getFreeHeap() < minFreeHeap) {
+			inFlight.decrementAndGet();
+			return reject(R_HEAP, "Not enough free memory.", retryAfter);
+		}
+		accepted.incrementAndGet();
+		return new Admission(null, 0);
+	}
+
+
+	private Admission reject(String reason, String message, int retry)
+	{
+		synchronized (this) {
+			Long count = rejections.get(reason);
+			rejections.put(reason, Long.valueOf(count == null ? 1 : count
+					.longValue() + 1));
+		}
+		LOGGER.warn("Request rejected : " + message);
+		return new Admission(message, retry);
+	}
+
+
+	/**
+	 * Returns percent of heap, which was free after the last garbage
+	 * collection (or is free now, if collections are not reported).
+	 */
+	public int getFreeHeap()
+	{
+		long max = Runtime.getRuntime().maxMemory();
+		long used = 0;
+		boolean collected = false;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP) {
+				continue;
+			}
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null) {
+				used += usage.getUsed();
+				collected = true;
+			}
+		}
+		if (!collected) {
+			used = Runtime.getRuntime().totalMemory()
+					- Runtime.getRuntime().freeMemory();
+		}
+		return max <= 0 ? 100 : (int) ((max - Math.min(used, max)) * 100 / max);
+	}
+
+
+	/**
+	 * Returns number of admitted requests in progress.
+	 */
+	public int getInFlight()
+	{
+		return inFlight.get();
+	}
+
+
+	/**
+	 * Returns number of admitted requests.
+	 */
+	public long getAccepted()
+	{
+		return accepted.get();
+	}
+
+
+	/**
+	 * Returns numbers of rejected requests by reason of rejection.
+	 */
+	public synchronized Map<String, Long> getRejections()
+	{
+		return new TreeMap<String, Long>(rejections);
+	}
+
+
+	/**
+	 * Returns limit of requests in progress (0 - unlimited).
+	 */
+	public int getMaxRequests()
+	{
+		return maxRequests;
+	}
+
+	/**
+	 * Result of admission.
+	 */
+	class Admission
+	{
+
+		private final String reason;
+
+		private final int retry;
+
+		private boolean released = false;
+
+
+		private Admission(String reason, int retry)
+		{
+			this.reason = reason;
+			this.retry = retry;
+		}
+
+
+		public boolean isAccepted()
+		{
+			return reason == null;
+		}
+
+
+		/**
+		 * Sends 503 response to rejected request.
+		 */
+		public void reject(HttpServletResponse response)
+			throws IOException
+		{
+			response.setHeader("Retry-After", String.valueOf(retry));
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				reason);
+		}
+
+
+		/**
+		 * Ends admitted request.
+		 */
+		public synchronized void release()
+		{
+			if (isAccepted() && !released) {
+				released = true;
+				inFlight.decrementAndGet();
+			}
+		}
+
+	}
+
+}
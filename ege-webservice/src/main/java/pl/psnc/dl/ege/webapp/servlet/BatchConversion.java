@@ -0,0 +1,425 @@
+package pl.psnc.dl.ege.webapp.servlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.CancellationToken;
+import pl.psnc.dl.ege.EGE;
+import pl.psnc.dl.ege.EGEImpl;
+import pl.psnc.dl.ege.configuration.EGEConfigurationManager;
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.types.ConversionsPath;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+import pl.psnc.dl.ege.utils.IOResolver;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
+
+/**
+ * Batch conversion : every document packed in zip archive is converted with
+ * the same conversions path.<br/><br/>
+ *
+ * Documents are converted concurrently by a pool of threads shared by all
+ * batch requests (oxgarage.properties : <i>batchThreads</i>, default : number
+ * of processors). Converted documents are written to output zip archive as
+ * soon as they are ready; result of every document - including errors, which
+ * do not stop the batch - is listed in {@link #MANIFEST} placed at the end of
+ * output archive. Every document has its own deadline of conversion; failed
+ * write of output (e.g. client is gone) cancels all conversions of the batch.
+ */
+class BatchConversion
+{
+
+	private static final Logger LOGGER = Logger.getLogger(BatchConversion.class);
+
+	/**
+	 * Name of manifest entry of output archive.
+	 */
+	public static final String MANIFEST = "manifest.xml";
+
+	private static final String ARCHIVE = "batch.zip";
+
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+		EGEConstants.getIntProperty("batchThreads", Runtime.getRuntime()
+				.availableProcessors()), new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "ege-batch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private final ConversionServlet servlet;
+
+	private final EGE ege;
+
+	private final ConversionsPath cpath;
+
+	private final String properties;
+
+	private File workDir;
+
+	private ZipFile archive;
+
+	/*
+	 * Cancels conversions of all documents of the batch.
+	 */
+	private final CancellationToken token = new CancellationToken();
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param servlet servlet serving the request
+	 * @param ege
+	 * @param cpath path used for every document
+	 * @param properties conversion properties sent with request
+	 */
+	public BatchConversion(ConversionServlet servlet, EGE ege,
+			ConversionsPath cpath, String properties)
+	{
+		this.servlet = servlet;
+		this.ege = ege;
+		this.cpath = cpath;
+		this.properties = properties;
+	}
+
+
+	/**
+	 * Saves uploaded zip archive in working directory of the batch.
+	 *
+	 * @param is uploaded archive
+	 * @throws IOException
+	 * @throws java.util.zip.ZipException if data is not a zip archive
+	 */
+	public void readArchive(InputStream is)
+		throws IOException
+	{
+		workDir = TempSpaceManager.getInstance().createTempDir(token);
+		File file = new File(workDir, ARCHIVE);
+		OutputStream os = new FileOutputStream(file);
+		try {
+			EGEIOUtils.copyStream(is, os);
+		}
+		finally {
+			os.close();
+			is.close();
+		}
+		// output archive is written next to the input archive
+		TempSpaceManager.getInstance().reserve(workDir, 2 * file.length());
+		archive = new ZipFile(file);
+	}
+
+
+	/**
+	 * Converts all documents of the archive and writes output archive to
+	 * selected stream.
+	 *
+	 * @param os
+	 * @throws IOException
+	 */
+	public void convert(OutputStream os)
+		throws IOException
+	{
+		CompletionService<Result> completion = new ExecutorCompletionService<Result>(
+				EXECUTOR);
+		List<Future<Result>> tasks = new ArrayList<Future<Result>>();
+		Enumeration<? extends ZipEntry> entries = archive.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			if (!entry.isDirectory()) {
+				tasks.add(completion.submit(new DocumentConversion(entry, tasks
+						.size())));
+			}
+		}
+		ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(os));
+		List<Result> results = new ArrayList<Result>();
+		Set<String> names = new HashSet<String>();
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				Result result = completion.take().get();
+				if (result.output != null) {
+					result.outputName = uniqueName(result.outputName, names);
+					zos.putNextEntry(new ZipEntry(result.outputName));
+					InputStream is = new FileInputStream(result.output);
+					try {
+						EGEIOUtils.copyStream(is, zos);
+					}
+					finally {
+						is.close();
+					}
+					zos.closeEntry();
+				}
+				results.add(result);
+			}
+			zos.putNextEntry(new ZipEntry(MANIFEST));
+			zos.write(createManifest(results).getBytes("UTF-8"));
+			zos.closeEntry();
+			zos.finish();
+			zos.flush();
+		}
+		catch (InterruptedException ex) {
+			token.cancel("Batch conversion interrupted.");
+			cancel(tasks);
+			Thread.currentThread().interrupt();
+			throw new IOException("Batch conversion interrupted.");
+		}
+		catch (ExecutionException ex) {
+			token.cancel(ex.getMessage());
+			cancel(tasks);
+			throw new IOException(ex.getMessage());
+		}
+		catch (IOException ex) {
+			// e.g. client is gone - remaining documents are not needed
+			token.cancel("Client disconnected.");
+			cancel(tasks);
+			throw ex;
+		}
+	}
+
+
+	/**
+	 * Releases working directory of the batch.
+	 */
+	public void close()
+	{
+		token.close();
+		if (archive != null) {
+			try {
+				archive.close();
+			}
+			catch (IOException ex) {
+				LOGGER.error(ex.getMessage());
+			}
+		}
+		TempSpaceManager.getInstance().release(workDir);
+	}
+
+
+	/**
+	 * Returns name of file without path and extension.
+	 *
+	 * @param name
+	 * @return
+	 */
+	static String baseName(String name)
+	{
+		if (name == null) {
+			return "";
+		}
+		String base = name.substring(Math.max(name.lastIndexOf('/'), name
+				.lastIndexOf('\\')) + 1);
+		int dotIndex = base.lastIndexOf('.');
+		return dotIndex > 0 ? base.substring(0, dotIndex) : base;
+	}
+
+
+	private static void cancel(List<Future<Result>> tasks)
+	{
+		for (Future<Result> task : tasks) {
+			task.cancel(true);
+		}
+	}
+
+
+	/*
+	 * Returns name not present in set of names (and adds it to the set).
+	 */
+	static String uniqueName(String name, Set<String> names)
+	{
+		String unique = name;
+		int dotIndex = name.lastIndexOf('.');
+		for (int i = 1; names.contains(unique); i++) {
+			unique = dotIndex > 0 ? name.substring(0, dotIndex) + "-" + i
+					+ name.substring(dotIndex) : name + "-" + i;
+		}
+		names.add(unique);
+		return unique;
+	}
+
+
+	private String createManifest(List<Result> results)
+	{
+		int failed = 0;
+		for (Result result : results) {
+			if (result.error != null) {
+				failed++;
+			}
+		}
+		StringBuffer sb = new StringBuffer();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<batch-conversion path=\"" + escape(cpath.toString())
+				+ "\" documents=\"" + results.size() + "\" failed=\"" + failed
+				+ "\">\n");
+		for (Result result : results) {
+			sb.append("<document name=\"" + escape(result.name) + "\"");
+			if (result.error == null) {
+				sb.append(" output=\"" + escape(result.outputName)
+						+ "\" status=\"converted\"/>\n");
+			}
+			else {
+				sb.append(" status=\"failed\"><error>" + escape(result.error)
+						+ "</error></document>\n");
+			}
+		}
+		sb.append("</batch-conversion>\n");
+		return sb.toString();
+	}
+
+
+	/*
+	 * Escapes text placed in XML attributes and elements.
+	 */
+	static String escape(String text)
+	{
+		if (text == null) {
+			return "";
+		}
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">",
+			"&gt;").replace("\"", "&quot;");
+	}
+
+	/*
+	 * Conversion of single document of the archive.
+	 */
+	private class DocumentConversion
+		implements Callable<Result>
+	{
+
+		private final ZipEntry entry;
+
+		private final int index;
+
+
+		public DocumentConversion(ZipEntry entry, int index)
+		{
+			this.entry = entry;
+			this.index = index;
+		}
+
+
+		public Result call()
+		{
+			String name = entry.getName();
+			try {
+				File dir = new File(workDir, String.valueOf(index));
+				File inputDir = new File(dir, "input");
+				inputDir.mkdirs();
+				// input of conversion is zipped directory with the document
+				File input = new File(inputDir, name.substring(name
+						.lastIndexOf('/') + 1));
+				copy(archive.getInputStream(entry), new FileOutputStream(input));
+				IOResolver ior = EGEConfigurationManager.getInstance()
+						.getStandardIOResolver();
+				File packed = new File(dir, "input.ezp");
+				OutputStream pos = new FileOutputStream(packed);
+				try {
+					ior.compressData(inputDir, pos);
+				}
+				finally {
+					pos.close();
+				}
+				File converted = new File(dir, "output.zip");
+				// every document has its own conversion properties
+				ConversionsPath path = cpath.copy();
+				ConversionServlet.applyConversionsProperties(properties, path,
+					baseName(name));
+				InputStream is = new FileInputStream(packed);
+				OutputStream os = new FileOutputStream(converted);
+				CancellationToken document = new CancellationToken(token,
+						EGEImpl.CONVERSION_TIMEOUT);
+				try {
+					ege.performConversion(is, os, path, document);
+				}
+				finally {
+					document.close();
+					os.close();
+					is.close();
+				}
+				boolean isComplex = EGEIOUtils.isComplexZip(converted);
+				String outputName = baseName(name)
+						+ servlet.getOutputExtension(cpath, isComplex);
+				if (isComplex) {
+					return new Result(name, outputName, converted, null);
+				}
+				File output = new File(dir, "output");
+				OutputStream oos = new FileOutputStream(output);
+				try {
+					EGEIOUtils.unzipSingleFile(new ZipFile(converted), oos);
+				}
+				finally {
+					oos.close();
+				}
+				return new Result(name, outputName, output, null);
+			}
+			catch (Exception ex) {
+				LOGGER.warn("Batch conversion of " + name + " failed : "
+						+ ex.getMessage());
+				return new Result(name, null, null, ex.getMessage() == null ? ex
+						.getClass().getName() : ex.getMessage());
+			}
+		}
+
+
+		private void copy(InputStream is, OutputStream os)
+			throws IOException
+		{
+			try {
+				EGEIOUtils.copyStream(is, os);
+			}
+			finally {
+				is.close();
+				os.close();
+			}
+		}
+
+	}
+
+	/*
+	 * Result of conversion of single document.
+	 */
+	private static class Result
+	{
+
+		private final String name;
+
+		private String outputName;
+
+		private final File output;
+
+		private final String error;
+
+
+		public Result(String name, String outputName, File output, String error)
+		{
+			this.name = name;
+			this.outputName = outputName;
+			this.output = output;
+			this.error = error;
+		}
+
+	}
+
+}
@@ -0,0 +1,321 @@
+package pl.psnc.dl.ege.webapp.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.EGE;
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.exception.ValidatorException;
+import pl.psnc.dl.ege.types.DataType;
+import pl.psnc.dl.ege.types.ValidationResult;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
+
+/**
+ * Batch validation : every document sent in request is validated against
+ * the same data type.<br/><br/>
+ *
+ * Documents can be sent as separate parts of multipart request or packed in
+ * zip archive(s) - every file of an archive is validated as a separate
+ * document. Validation of a document starts as soon as its part is received;
+ * documents are validated concurrently by a pool of threads shared by all
+ * batch requests (oxgarage.properties : <i>validationThreads</i>, default :
+ * number of processors). Validators - with their compiled schemas and DTDs -
+ * are shared by all validations.<br/>
+ * Results are printed in order of completion.
+ */
+class BatchValidation
+{
+
+	private static final Logger LOGGER = Logger.getLogger(BatchValidation.class);
+
+	private static final String ZIP_EXT = ".zip";
+
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+		EGEConstants.getIntProperty("validationThreads", Runtime.getRuntime()
+				.availableProcessors()), new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "ege-validation");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private final EGE ege;
+
+	private final DataType dataType;
+
+	private final CompletionService<Result> completion = new ExecutorCompletionService<Result>(
+			EXECUTOR);
+
+	private final List<Future<Result>> tasks = new ArrayList<Future<Result>>();
+
+	private final List<ZipFile> archives = new ArrayList<ZipFile>();
+
+	private File workDir;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ege
+	 * @param dataType data type of validated documents
+	 */
+	public BatchValidation(EGE ege, DataType dataType)
+	{
+		this.ege = ege;
+		this.dataType = dataType;
+	}
+
+
+	/**
+	 * Receives document (or zip archive of documents) and starts its
+	 * validation.
+	 *
+	 * @param name name of uploaded file
+	 * @param is content of uploaded file
+	 * @throws IOException
+	 */
+	public void addDocument(String name, InputStream is)
+		throws IOException
+	{
+		if (workDir == null) {
+			workDir = TempSpaceManager.getInstance().createTempDir();
+		}
+		File file = new File(workDir, String.valueOf(tasks.size() + archives
+				.size()));
+		OutputStream os = new FileOutputStream(file);
+		try {
+			EGEIOUtils.copyStream(is, os);
+		}
+		finally {
+			os.close();
+			is.close();
+		}
+		if (name != null && name.toLowerCase().endsWith(ZIP_EXT)) {
+			ZipFile archive = new ZipFile(file);
+			archives.add(archive);
+			Enumeration<? extends ZipEntry> entries = archive.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory()) {
+					tasks.add(completion.submit(new DocumentValidation(entry
+							.getName(), null, archive, entry)));
+				}
+			}
+		}
+		else {
+			tasks.add(completion.submit(new DocumentValidation(name, file,
+					null, null)));
+		}
+	}
+
+
+	/**
+	 * Returns number of documents sent for validation.
+	 */
+	public int size()
+	{
+		return tasks.size();
+	}
+
+
+	/**
+	 * Prints results of validation of all received documents; every result
+	 * is printed (and flushed) as soon as document is validated.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void printResults(PrintWriter out)
+		throws IOException
+	{
+		int[] counts = new int[ValidationResult.Status.values().length];
+		int failed = 0;
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		out.println("<batch-validation data-type=\""
+				+ escape(dataType.toString()) + "\">");
+		out.flush();
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				Result result = completion.take().get();
+				if (result.result != null) {
+					counts[result.result.getStatus().ordinal()]++;
+					ValidationServlet.printResultElement(out, result.result,
+						escape(result.name));
+				}
+				else {
+					failed++;
+					out.println("<validation-result name=\""
+							+ escape(result.name) + "\">");
+					out.println("<status>FAILED</status>");
+					out.println("<messages>");
+					out.println("<message><![CDATA[" + result.error
+							+ "]]></message>");
+					out.println("</messages>");
+					out.println("</validation-result>");
+				}
+				out.flush();
+				if (out.checkError()) {
+					throw new IOException("Client connection closed.");
+				}
+			}
+		}
+		catch (InterruptedException ex) {
+			cancel();
+			Thread.currentThread().interrupt();
+			throw new IOException("Batch validation interrupted.");
+		}
+		catch (ExecutionException ex) {
+			cancel();
+			throw new IOException(ex.getMessage());
+		}
+		catch (IOException ex) {
+			cancel();
+			throw ex;
+		}
+		StringBuffer summary = new StringBuffer("<summary documents=\""
+				+ tasks.size() + "\"");
+		for (ValidationResult.Status status : ValidationResult.Status.values()) {
+			summary.append(" " + status.toString().toLowerCase() + "=\""
+					+ counts[status.ordinal()] + "\"");
+		}
+		summary.append(" failed=\"" + failed + "\"/>");
+		out.println(summary.toString());
+		out.println("</batch-validation>");
+		out.flush();
+	}
+
+
+	/**
+	 * Cancels pending validations and releases working directory.
+	 */
+	public void close()
+	{
+		cancel();
+		for (ZipFile archive : archives) {
+			try {
+				archive.close();
+			}
+			catch (IOException ex) {
+				LOGGER.error(ex.getMessage());
+			}
+		}
+		TempSpaceManager.getInstance().release(workDir);
+	}
+
+
+	private void cancel()
+	{
+		for (Future<Result> task : tasks) {
+			task.cancel(true);
+		}
+	}
+
+
+	private static String escape(String text)
+	{
+		if (text == null) {
+			return "";
+		}
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">",
+			"&gt;").replace("\"", "&quot;");
+	}
+
+	/*
+	 * Validation of single document : uploaded file or entry of uploaded
+	 * archive.
+	 */
+	private class DocumentValidation
+		implements Callable<Result>
+	{
+
+		private final String name;
+
+		private final File file;
+
+		private final ZipFile archive;
+
+		private final ZipEntry entry;
+
+
+		public DocumentValidation(String name, File file, ZipFile archive,
+				ZipEntry entry)
+		{
+			this.name = name;
+			this.file = file;
+			this.archive = archive;
+			this.entry = entry;
+		}
+
+
+		public Result call()
+		{
+			try {
+				InputStream is = file != null ? new FileInputStream(file)
+						: archive.getInputStream(entry);
+				try {
+					return new Result(name, ege.performValidation(is, dataType),
+							null);
+				}
+				finally {
+					is.close();
+				}
+			}
+			catch (ValidatorException ex) {
+				return new Result(name, null, ex.getMessage());
+			}
+			catch (Exception ex) {
+				LOGGER.warn("Batch validation of " + name + " failed : "
+						+ ex.getMessage());
+				return new Result(name, null, ex.getMessage() == null ? ex
+						.getClass().getName() : ex.getMessage());
+			}
+		}
+
+	}
+
+	/*
+	 * Result of validation of single document.
+	 */
+	private static class Result
+	{
+
+		private final String name;
+
+		private final ValidationResult result;
+
+		private final String error;
+
+
+		public Result(String name, ValidationResult result, String error)
+		{
+			this.name = name;
+			this.result = result;
+			this.error = error;
+		}
+
+	}
+
+}
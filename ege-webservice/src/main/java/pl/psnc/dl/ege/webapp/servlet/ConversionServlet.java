@@ -9,13 +9,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -29,8 +39,12 @@ import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.log4j.Logger;
 
+import pl.psnc.dl.ege.CallbackDelivery;
+import pl.psnc.dl.ege.CancellationToken;
+import pl.psnc.dl.ege.ConversionProgress;
 import pl.psnc.dl.ege.EGE;
 import pl.psnc.dl.ege.EGEImpl;
+import pl.psnc.dl.ege.JobJournal;
 import pl.psnc.dl.ege.configuration.EGEConfigurationManager;
 import pl.psnc.dl.ege.configuration.EGEConstants;
 import pl.psnc.dl.ege.exception.ConverterException;
@@ -43,6 +57,8 @@ import pl.psnc.dl.ege.types.ValidationResult;
 import pl.psnc.dl.ege.utils.DataBuffer;
 import pl.psnc.dl.ege.utils.EGEIOUtils;
 import pl.psnc.dl.ege.utils.IOResolver;
+import pl.psnc.dl.ege.utils.SingleFileOutputStream;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
 import pl.psnc.dl.ege.webapp.config.LabelProvider;
 import pl.psnc.dl.ege.webapp.config.MimeExtensionProvider;
 import pl.psnc.dl.ege.webapp.config.PreConfig;
@@ -103,6 +119,25 @@ public class ConversionServlet extends HttpServlet {
 
 	public static final String ODT_EXT = ".odt";
 
+	/*
+	 * Validation of input runs together with conversion, which is cancelled
+	 * when input is not well-formed (oxgarage.properties : concurrentValidation).
+	 */
+	private static final boolean CONCURRENT_VALIDATION = EGEConstants
+			.getBooleanProperty("concurrentValidation", false);
+
+	/*
+	 * Performs conversions checked by concurrent validation.
+	 */
+	private static final ExecutorService CONVERSION_EXECUTOR = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ege-conversion");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
 	/**
 	 * @see HttpServlet#HttpServlet()
 	 */
@@ -262,10 +297,28 @@ public class ConversionServlet extends HttpServlet {
 	protected void doPost(HttpServletRequest request,
 			HttpServletResponse response) throws ServletException, IOException {
 		try {
-			ConversionRequestResolver rr = new ConversionRequestResolver(
-					request, Method.POST);
-			List<DataType> pathFrame = (List<DataType>) rr.getData();
-			performConversion(response, rr, pathFrame);
+			// limits of client are checked before any work is scheduled
+			RateLimiter.Permit permit = RateLimiter.getInstance().acquire(
+					request);
+			if (!permit.isAccepted()) {
+				permit.reject(response);
+				return;
+			}
+			try {
+				// data of request is charged while it is read
+				ConversionRequestResolver rr = new ConversionRequestResolver(
+						permit.wrap(request), Method.POST);
+				List<DataType> pathFrame = (List<DataType>) rr.getData();
+				performConversion(response, rr, pathFrame);
+			} catch (Exception ex) {
+				if (permit.isExceeded() && !response.isCommitted()) {
+					permit.reject(response);
+					return;
+				}
+				throw ex;
+			} finally {
+				permit.release();
+			}
 		} catch (RequestResolvingException ex) {
 			if (ex.getStatus().equals(
 					RequestResolvingException.Status.BAD_REQUEST)) {
@@ -290,31 +343,50 @@ public class ConversionServlet extends HttpServlet {
 			ConverterException, RequestResolvingException {
 		EGE ege = new EGEImpl();
 		List<ConversionsPath> cp = ege.findConversionPaths(pathFrame.get(0));
-		ConversionsPath cpath = null;
-		boolean found = false;	
+		ConversionsPath cpath = findPath(cp, pathFrame);
+		if (cpath == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		// excess requests are rejected before their data is read
+		AdmissionController.Admission admission = AdmissionController
+				.getInstance().admit(cpath);
+		if (!admission.isAccepted()) {
+			admission.reject(response);
+			return;
+		}
+		try {
+			performAdmittedConversion(response, rr, ege, cp, cpath);
+		} finally {
+			admission.release();
+		}
+	}
+
+	/*
+	 * Performs admitted conversion.
+	 */
+	private void performAdmittedConversion(HttpServletResponse response,
+			ConversionRequestResolver rr, EGE ege, List<ConversionsPath> cp,
+			ConversionsPath cpath)
+			throws IOException, FileUploadException, EGEException,
+			ConverterException, RequestResolvingException {
 		InputStream is = null;
 		String fname;
-		for (ConversionsPath path : cp) {
-			if ((pathFrame.size() - 1) != path.getPath().size()) {
-				continue;
-			}
-			found = true;
-			int count = 1;
-			for (ConversionAction ca : path.getPath()) {
-				if (!ca.getConversionOutputType().equals(pathFrame.get(count))) {
-					found = false;
-					break;
+		List<List<DataType>> targets = rr.getTargets();
+		if (rr.isBatch()) {
+			performBatchConversion(response, rr, ege, cpath);
+		} else if (!targets.isEmpty()) {
+			List<ConversionsPath> paths = new ArrayList<ConversionsPath>();
+			paths.add(cpath);
+			for (List<DataType> target : targets) {
+				ConversionsPath path = findPath(cp, target);
+				if (path == null) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					return;
 				}
-				count++;
-			}
-			if (found) {
-				cpath = path;
-				break;
+				paths.add(path);
 			}
-		}
-		if (!found) {
-			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
-			return;
+			performMultiTargetConversion(response, rr, ege, paths);
 		} else {
 		if (ServletFileUpload.isMultipartContent(rr.getRequest())) { 
 		    ServletFileUpload upload = new ServletFileUpload();
@@ -332,10 +404,17 @@ public class ConversionServlet extends HttpServlet {
 				String alloc = buffer.allocate(is);
 				InputStream ins = buffer.getDataAsStream(alloc);
 				is.close();
+				File bDir = new File(buffer.getDataDir(alloc));
+				if (CONCURRENT_VALIDATION) {
+				    doConvert(response, rr, ege, cpath, ins, fname, iter, bDir,
+					      createValidation(ege, ins, cpath.getInputDataType()));
+				    buffer.clear(true);
+				    continue;
+				}
 				// input validation - print result if fatal error
-				// occurs.
+				// occurs : validation stops at first fatal error.
 				try {
-				    ValidationResult vRes = ege.performValidation(ins, cpath.getInputDataType());
+				    ValidationResult vRes = ege.performValidation(ins, cpath.getInputDataType(), 0);
 				    if (vRes.getStatus().equals(ValidationResult.Status.FATAL)) {
 					ValidationServlet valServ = new ValidationServlet();
 					valServ.printValidationResult(response, vRes);
@@ -355,8 +434,7 @@ public class ConversionServlet extends HttpServlet {
 					// do nothing
 				    }
 				}
-				File bDir = new File(buffer.getDataDir(alloc));
-				doConvert(response, rr, ege, cpath, ins, fname, iter, bDir);
+				doConvert(response, rr, ege, cpath, ins, fname, iter, bDir, null);
 				buffer.clear(true);
 			    }
 			}
@@ -376,13 +454,40 @@ public class ConversionServlet extends HttpServlet {
 			InputStream ins = buffer.getDataAsStream(alloc);
 			is.close();
 			File bDir = new File(buffer.getDataDir(alloc));
-			doConvert(response, rr, ege, cpath, ins, fname, iter, bDir);
+			doConvert(response, rr, ege, cpath, ins, fname, iter, bDir, null);
 			buffer.clear(true);
 		    }
 
 		}
 	}
 
+	/*
+	 * Finds conversions path matching path frame (input data type followed
+	 * by output data types of subsequent conversions); returns copy of the
+	 * path, which can take properties of the request, or 'null'.
+	 */
+	private ConversionsPath findPath(List<ConversionsPath> cp,
+			List<DataType> pathFrame) {
+		for (ConversionsPath path : cp) {
+			if ((pathFrame.size() - 1) != path.getPath().size()) {
+				continue;
+			}
+			boolean found = true;
+			int count = 1;
+			for (ConversionAction ca : path.getPath()) {
+				if (!ca.getConversionOutputType().equals(pathFrame.get(count))) {
+					found = false;
+					break;
+				}
+				count++;
+			}
+			if (found) {
+				return path.copy();
+			}
+		}
+		return null;
+	}
+
 	private void doConvert(HttpServletResponse response,
 			       ConversionRequestResolver rr, 
 			       EGE ege, 
@@ -390,7 +495,8 @@ public class ConversionServlet extends HttpServlet {
 			       InputStream ins, 
 			       String fname, 
 			       FileItemIterator iter, 
-			       File buffDir)
+			       File buffDir,
+			       Callable<ValidationResult> validation)
 			throws FileUploadException, IOException, RequestResolvingException,
 			EGEException, FileNotFoundException, ConverterException,
 			ZipException {
@@ -400,65 +506,69 @@ public class ConversionServlet extends HttpServlet {
 	    FileOutputStream fos = null;
 	    String newTemp = UUID.randomUUID().toString();
 	    IOResolver ior = EGEConfigurationManager.getInstance().getStandardIOResolver();
-	    // Check if there are any images to copy
-	    if(iter!=null && iter.hasNext()) {
-		// Create directory for images
-		File images = new File(buffDir + File.separator + imagesDirectory + File.separator);
-		images.mkdir();
-		File saveTo = null;
-		FileItemStream imageItem = null;
-		do { // Save all images to that directory
-		    imageItem = iter.next();
-		    // when input form for images is not empty, save images
-		    if(imageItem.getName()!=null && imageItem.getName().length()!=0) {
-			saveTo = new File(images + File.separator + imageItem.getName());
-			InputStream imgis = imageItem.openStream();
-			OutputStream imgos = new FileOutputStream(saveTo);
-			try {
-			    byte[] buf = new byte[1024];
-			    int len; 
-			    while ((len = imgis.read(buf)) > 0) { 
-				imgos.write(buf, 0, len); 
-			    } 
-			}
-			finally {
-			    imgis.close(); 
-			    imgos.close(); 
-			}
-		    }
-		} while(iter.hasNext());
-	    }
+	    saveImages(iter, buffDir);
 	    zipFile = new File(EGEConstants.BUFFER_TEMP_PATH
 			       + File.separator + newTemp + EZP_EXT);
 	    fos = new FileOutputStream(zipFile);
 	    ior.compressData(buffDir, fos);
+	    if (rr.isAsync()) {
+		submitJob(response, rr, cpath, zipFile, fname, validation);
+		return;
+	    }
 	    ins = new FileInputStream(zipFile);
 	    File szipFile = new File(EGEConstants.BUFFER_TEMP_PATH
 				     + File.separator + newTemp + ZIP_EXT);
 	    fos = new FileOutputStream(szipFile);
+	    CancellationToken token = new CancellationToken(
+		    EGEImpl.CONVERSION_TIMEOUT);
+	    // stages of conversion publish their events to waiting client
+	    ConversionProgress progress = createProgress(rr);
+	    String failure = "Conversion failed.";
+	    // result validated together with conversion is not sent before validation
+	    SingleFileOutputStream sfos = validation == null && EGEConstants.STREAM_SINGLE_FILES
+		    ? new SingleFileOutputStream(fos, createStreamTarget(response, cpath, fname))
+		    : null;
 	    try {
 		try {
-		    ege.performConversion(ins, fos, cpath);
+		    if (sfos != null) {
+			ege.performConversion(ins, sfos, cpath, token);
+			sfos.close();
+		    } else if (validation == null) {
+			ege.performConversion(ins, fos, cpath, token);
+		    } else if (!performValidatedConversion(response, ege, cpath,
+							   ins, fos, validation, token, progress)) {
+			failure = "Input is not well-formed.";
+			return;
+		    }
+		    failure = null;
+		} catch (EGEException ex) {
+		    failure = ex.getMessage();
+		    throw ex;
+		} catch (IOException ex) {
+		    failure = ex.getMessage();
+		    throw ex;
 		} finally {
+		    token.close();
+		    if (sfos != null) {
+			try {
+			    sfos.close();
+			} catch (IOException ex) {
+			    // error of conversion is reported
+			}
+		    }
 		    fos.close();
+		    progress.finish(failure);
+		    ConversionProgress.unbind();
+		}
+		if (sfos != null && sfos.isStreamed()) {
+		    // result is already sent
+		    return;
 		}
 		boolean isComplex = EGEIOUtils
 		    .isComplexZip(szipFile);
 		response.setContentType(APPLICATION_OCTET_STREAM);
+		String fileExt = getOutputExtension(cpath, isComplex);
 		if (isComplex) {
-		    String fileExt;
-		    if (cpath.getOutputDataType().getMimeType()
-			.equals(APPLICATION_MSWORD)) {
-			fileExt = DOCX_EXT;
-		    } else if (cpath.getOutputDataType().getMimeType()
-			       .equals(APPLICATION_EPUB)) {
-			fileExt = EPUB_EXT; 
-		    } else if (cpath.getOutputDataType().getMimeType()
-			       .equals(APPLICATION_ODT)) {
-			fileExt = ODT_EXT; 
-		    }else {
-			fileExt = ZIP_EXT;
-		    }
 		    response.setHeader("Content-Disposition",
 				       "attachment; filename=\"" + fname + fileExt + "\"");
 		    FileInputStream fis = new FileInputStream(
@@ -470,8 +580,6 @@ public class ConversionServlet extends HttpServlet {
 			fis.close();
 		    }
 		} else {
-		    String fileExt = getMimeExtensionProvider()
-			.getFileExtension(cpath.getOutputDataType().getMimeType());
 		    response.setHeader("Content-Disposition",
 				       "attachment; filename=\"" + fname + fileExt + "\"");
 		    os = response.getOutputStream();
@@ -490,7 +598,407 @@ public class ConversionServlet extends HttpServlet {
 	    }
 	}
 
-	private void applyConversionsProperties(String properties, ConversionsPath cP, String fileName) 
+	/*
+	 * Sends the only file of result, which is streamed during conversion.
+	 */
+	private SingleFileOutputStream.Target createStreamTarget(
+			final HttpServletResponse response, final ConversionsPath cpath,
+			final String fname) {
+		return new SingleFileOutputStream.Target() {
+			public OutputStream open(String name) throws IOException {
+				response.setContentType(APPLICATION_OCTET_STREAM);
+				response.setHeader("Content-Disposition",
+						"attachment; filename=\"" + fname
+								+ getOutputExtension(cpath, false) + "\"");
+				return response.getOutputStream();
+			}
+		};
+	}
+
+	/*
+	 * Creates progress of conversion, if client sent its identifier, and
+	 * binds it to current thread.
+	 */
+	private ConversionProgress createProgress(ConversionRequestResolver rr) {
+		String id = rr.getProgressId();
+		if (id == null) {
+			return ConversionProgress.current();
+		}
+		ConversionProgress progress = ConversionProgress.create(id);
+		progress.bind();
+		return progress;
+	}
+
+	/*
+	 * Stores conversion of packed input in job journal and responds with 202
+	 * (Accepted) and location of the job; input is validated first, when
+	 * validation runs together with conversion. Callback URL sent by client
+	 * has to be accepted by CallbackDelivery.
+	 */
+	private void submitJob(HttpServletResponse response,
+			ConversionRequestResolver rr, ConversionsPath cpath, File input,
+			String fname, Callable<ValidationResult> validation)
+			throws IOException, EGEException {
+		try {
+			String callback = rr.getCallback();
+			if (callback != null && !CallbackDelivery.isAllowed(callback)) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+						"Callback URL is not allowed.");
+				return;
+			}
+			if (validation != null) {
+				ValidationResult vRes;
+				try {
+					vRes = validation.call();
+				} catch (Exception ex) {
+					throw new EGEException(ex.getMessage());
+				}
+				if (vRes != null
+						&& vRes.getStatus().equals(ValidationResult.Status.FATAL)) {
+					ValidationServlet valServ = new ValidationServlet();
+					valServ.printValidationResult(response, vRes);
+					return;
+				}
+			}
+			String url = rr.getRequest().getRequestURL().toString();
+			String jobsUrl = url.substring(0, url.indexOf(CONVERSIONS_SLICE_BASE))
+					+ JobsServlet.JOBS_SLICE_BASE;
+			String id = JobJournal.getInstance().submit(input, cpath, fname,
+					callback, jobsUrl);
+			String href = jobsUrl + id;
+			response.setStatus(HttpServletResponse.SC_ACCEPTED);
+			response.setHeader("Location", href);
+			JobsServlet.printJob(response, JobJournal.getInstance().getJob(id),
+					href);
+		} finally {
+			// journal keeps its own copy of input
+			input.delete();
+		}
+	}
+
+	/*
+	 * Saves images sent after the document into media directory of buffer.
+	 */
+	private void saveImages(FileItemIterator iter, File buffDir)
+			throws FileUploadException, IOException {
+	    // Check if there are any images to copy
+	    if(iter!=null && iter.hasNext()) {
+		// Create directory for images
+		File images = new File(buffDir + File.separator + imagesDirectory + File.separator);
+		images.mkdir();
+		File saveTo = null;
+		FileItemStream imageItem = null;
+		do { // Save all images to that directory
+		    imageItem = iter.next();
+		    // when input form for images is not empty, save images
+		    if(imageItem.getName()!=null && imageItem.getName().length()!=0) {
+			saveTo = new File(images + File.separator + imageItem.getName());
+			InputStream imgis = imageItem.openStream();
+			OutputStream imgos = new FileOutputStream(saveTo);
+			try {
+			    byte[] buf = new byte[1024];
+			    int len; 
+			    while ((len = imgis.read(buf)) > 0) { 
+				imgos.write(buf, 0, len); 
+			    } 
+			}
+			finally {
+			    imgis.close(); 
+			    imgos.close(); 
+			}
+		    }
+		} while(iter.hasNext());
+	    }
+	}
+
+	/*
+	 * Creates fail-fast validation of buffered input; validation returns
+	 * 'null' if input type is not supported by validators.
+	 */
+	private Callable<ValidationResult> createValidation(final EGE ege,
+			final InputStream ins, final DataType inputType) {
+		return new Callable<ValidationResult>() {
+			public ValidationResult call() throws Exception {
+				try {
+					return ege.performValidation(ins, inputType, 0);
+				} catch (ValidatorException vex) {
+					LOGGER.debug(vex.getMessage());
+					return null;
+				} finally {
+					try {
+						ins.close();
+					} catch (Exception ex) {
+						// do nothing
+					}
+				}
+			}
+		};
+	}
+
+	/*
+	 * Starts conversion in background and validates input meanwhile;
+	 * if validation ends with fatal error, conversion is cancelled, validation
+	 * result is printed and method returns 'false'.
+	 */
+	private boolean performValidatedConversion(HttpServletResponse response,
+			final EGE ege, final ConversionsPath cpath, final InputStream ins,
+			final OutputStream os, Callable<ValidationResult> validation,
+			final CancellationToken token, final ConversionProgress progress)
+			throws IOException, EGEException, ConverterException {
+		Future<Void> conversion = CONVERSION_EXECUTOR
+				.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						progress.bind();
+						try {
+							ege.performConversion(ins, os, cpath, token);
+						} finally {
+							ConversionProgress.unbind();
+						}
+						return null;
+					}
+				});
+		try {
+			ValidationResult vRes = validation.call();
+			if (vRes != null
+					&& vRes.getStatus().equals(ValidationResult.Status.FATAL)) {
+				// cancelled conversion stops its stages and closes its pipes
+				token.cancel("Input is not well-formed.");
+				conversion.cancel(true);
+				ValidationServlet valServ = new ValidationServlet();
+				valServ.printValidationResult(response, vRes);
+				return false;
+			}
+			conversion.get();
+			return true;
+		} catch (InterruptedException ex) {
+			token.cancel("Conversion interrupted.");
+			conversion.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new EGEException("Conversion interrupted.");
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof ConverterException) {
+				throw (ConverterException) cause;
+			} else if (cause instanceof EGEException) {
+				throw (EGEException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new EGEException(cause.getMessage());
+		} catch (IOException ex) {
+			token.cancel(ex.getMessage());
+			conversion.cancel(true);
+			throw ex;
+		} catch (EGEException ex) {
+			token.cancel(ex.getMessage());
+			conversion.cancel(true);
+			throw ex;
+		} catch (Exception ex) {
+			token.cancel(ex.getMessage());
+			conversion.cancel(true);
+			throw new EGEException(ex.getMessage());
+		}
+	}
+
+	/*
+	 * Performs batch conversion of documents sent in zip archive.
+	 */
+	private void performBatchConversion(HttpServletResponse response,
+			ConversionRequestResolver rr, EGE ege, ConversionsPath cpath)
+			throws IOException, FileUploadException, RequestResolvingException {
+		if (!ServletFileUpload.isMultipartContent(rr.getRequest())) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		ServletFileUpload upload = new ServletFileUpload();
+		FileItemIterator iter = upload.getItemIterator(rr.getRequest());
+		while (iter.hasNext()) {
+			FileItemStream item = iter.next();
+			if (item.isFormField()) {
+				continue;
+			}
+			BatchConversion batch = new BatchConversion(this, ege, cpath,
+					rr.getConversionProperties());
+			try {
+				try {
+					batch.readArchive(item.openStream());
+				} catch (ZipException ex) {
+					LOGGER.debug(ex.getMessage());
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					return;
+				}
+				response.setContentType(APPLICATION_OCTET_STREAM);
+				response.setHeader("Content-Disposition", "attachment; filename=\""
+						+ BatchConversion.baseName(item.getName()) + ZIP_EXT + "\"");
+				OutputStream os = response.getOutputStream();
+				try {
+					batch.convert(os);
+				} finally {
+					os.flush();
+					os.close();
+				}
+			} finally {
+				batch.close();
+			}
+			return;
+		}
+		response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+	}
+
+	/*
+	 * Converts uploaded document (with its images) along all selected paths;
+	 * response is zip archive with results of all paths and manifest.
+	 */
+	private void performMultiTargetConversion(HttpServletResponse response,
+			ConversionRequestResolver rr, EGE ege, List<ConversionsPath> paths)
+			throws IOException, FileUploadException, EGEException,
+			RequestResolvingException {
+		if (!ServletFileUpload.isMultipartContent(rr.getRequest())) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		ServletFileUpload upload = new ServletFileUpload();
+		FileItemIterator iter = upload.getItemIterator(rr.getRequest());
+		FileItemStream item = null;
+		while (iter.hasNext()) {
+			item = iter.next();
+			if (!item.isFormField()) {
+				break;
+			}
+			item = null;
+		}
+		if (item == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		String fname = BatchConversion.baseName(item.getName());
+		DataBuffer buffer = new DataBuffer(0, EGEConstants.BUFFER_TEMP_PATH);
+		File workDir = TempSpaceManager.getInstance().createTempDir();
+		try {
+			InputStream is = item.openStream();
+			String alloc;
+			try {
+				alloc = buffer.allocate(is);
+			} finally {
+				is.close();
+			}
+			File bDir = new File(buffer.getDataDir(alloc));
+			saveImages(iter, bDir);
+			File zipFile = new File(workDir, "input" + EZP_EXT);
+			OutputStream fos = new FileOutputStream(zipFile);
+			try {
+				EGEConfigurationManager.getInstance().getStandardIOResolver()
+						.compressData(bDir, fos);
+			} finally {
+				fos.close();
+			}
+			List<File> results = new ArrayList<File>();
+			List<OutputStream> outputs = new ArrayList<OutputStream>();
+			for (ConversionsPath path : paths) {
+				applyConversionsProperties(rr.getConversionProperties(), path,
+						fname);
+				File result = new File(workDir, results.size() + ZIP_EXT);
+				results.add(result);
+				outputs.add(new FileOutputStream(result));
+			}
+			List<Exception> errors;
+			InputStream ins = new FileInputStream(zipFile);
+			try {
+				errors = ege.performConversions(ins, paths, outputs);
+			} finally {
+				ins.close();
+				for (OutputStream os : outputs) {
+					os.close();
+				}
+			}
+			response.setContentType(APPLICATION_OCTET_STREAM);
+			response.setHeader("Content-Disposition", "attachment; filename=\""
+					+ fname + ZIP_EXT + "\"");
+			ZipOutputStream zos = new ZipOutputStream(response
+					.getOutputStream());
+			StringBuffer manifest = new StringBuffer();
+			manifest.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			manifest.append("<multi-target-conversion name=\""
+					+ BatchConversion.escape(item.getName()) + "\">\n");
+			Set<String> names = new HashSet<String>();
+			for (int i = 0; i < paths.size(); i++) {
+				ConversionsPath path = paths.get(i);
+				manifest.append("<target path=\""
+						+ BatchConversion.escape(path.toString()) + "\"");
+				if (errors.get(i) != null) {
+					manifest.append(" status=\"failed\"><error>"
+							+ BatchConversion.escape(errors.get(i).getMessage())
+							+ "</error></target>\n");
+					continue;
+				}
+				boolean isComplex = EGEIOUtils.isComplexZip(results.get(i));
+				String name = BatchConversion.uniqueName(fname
+						+ getOutputExtension(path, isComplex), names);
+				zos.putNextEntry(new ZipEntry(name));
+				if (isComplex) {
+					InputStream fis = new FileInputStream(results.get(i));
+					try {
+						EGEIOUtils.copyStream(fis, zos);
+					} finally {
+						fis.close();
+					}
+				} else {
+					EGEIOUtils.unzipSingleFile(new ZipFile(results.get(i)), zos);
+				}
+				zos.closeEntry();
+				manifest.append(" output=\"" + BatchConversion.escape(name)
+						+ "\" status=\"converted\"/>\n");
+			}
+			manifest.append("</multi-target-conversion>\n");
+			zos.putNextEntry(new ZipEntry(BatchConversion.MANIFEST));
+			zos.write(manifest.toString().getBytes("UTF-8"));
+			zos.closeEntry();
+			zos.finish();
+			zos.flush();
+			zos.close();
+		} finally {
+			buffer.clear(true);
+			TempSpaceManager.getInstance().release(workDir);
+		}
+	}
+
+	/**
+	 * Returns file extension of conversion result : complex results
+	 * are packed in zip archive (or docx, epub, odt package).
+	 * 
+	 * @param cpath
+	 * @param isComplex
+	 * @return
+	 */
+	String getOutputExtension(ConversionsPath cpath, boolean isComplex) {
+		return getOutputExtension(getMimeExtensionProvider(), cpath
+				.getOutputDataType().getMimeType(), isComplex);
+	}
+
+	/**
+	 * Returns file extension of conversion result with selected mime type.
+	 * 
+	 * @param mep
+	 * @param mimeType
+	 * @param isComplex
+	 * @return
+	 */
+	static String getOutputExtension(MimeExtensionProvider mep,
+			String mimeType, boolean isComplex) {
+		if (!isComplex) {
+			return mep.getFileExtension(mimeType);
+		}
+		if (mimeType.equals(APPLICATION_MSWORD)) {
+			return DOCX_EXT;
+		} else if (mimeType.equals(APPLICATION_EPUB)) {
+			return EPUB_EXT;
+		} else if (mimeType.equals(APPLICATION_ODT)) {
+			return ODT_EXT;
+		}
+		return ZIP_EXT;
+	}
+
+	static void applyConversionsProperties(String properties, ConversionsPath cP, String fileName) 
 					throws RequestResolvingException {
 		if(properties!=null && properties.trim().length()!=0) {
 			StringBuffer sb = new StringBuffer();
@@ -0,0 +1,190 @@
+package pl.psnc.dl.ege.webapp.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.zip.ZipFile;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import pl.psnc.dl.ege.JobJournal;
+import pl.psnc.dl.ege.utils.EGEIOUtils;
+import pl.psnc.dl.ege.webapp.config.MimeExtensionProvider;
+import pl.psnc.dl.ege.webapp.config.PreConfig;
+
+/**
+ * Serves asynchronous conversion jobs (submitted with parameter
+ * 'async=true', see {@link JobJournal}) :
+ * <ul>
+ * <li>GET Jobs/&lt;id&gt; - status of job,</li>
+ * <li>GET Jobs/&lt;id&gt;/result - result of completed job,</li>
+ * <li>DELETE Jobs/&lt;id&gt; - cancels job and removes its result.</li>
+ * </ul>
+ * Instead of polling, client may send parameter 'callback' with URL, which
+ * receives data of finished job (see {@link pl.psnc.dl.ege.CallbackDelivery}).
+ */
+public class JobsServlet
+	extends HttpServlet
+{
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String JOBS_SLICE_BASE = "Jobs/";
+
+	private static final String RESULT = "result";
+
+	private static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
+
+
+	/**
+	 * @see HttpServlet#HttpServlet()
+	 */
+	public JobsServlet()
+	{
+		super();
+	}
+
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request,
+			HttpServletResponse response)
+		throws ServletException, IOException
+	{
+		String[] queries = resolveQueries(request);
+		JobJournal.Job job = queries.length == 0 ? null : JobJournal
+				.getInstance().getJob(queries[0]);
+		if (job == null || queries.length > 2
+				|| (queries.length == 2 && !RESULT.equals(queries[1]))) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (queries.length == 1) {
+			response.setHeader("Cache-Control", "no-cache");
+			String url = request.getRequestURL().toString();
+			printJob(response, job, url.endsWith("/") ? url.substring(0, url
+					.length() - 1) : url);
+			return;
+		}
+		File result = job.getResult();
+		if (result == null) {
+			response.sendError(HttpServletResponse.SC_CONFLICT,
+				"Job is " + job.getStatus() + ".");
+			return;
+		}
+		boolean isComplex = EGEIOUtils.isComplexZip(result);
+		String fname = job.getFileName() == null ? job.getId() : job
+				.getFileName();
+		response.setContentType(APPLICATION_OCTET_STREAM);
+		response.setHeader("Content-Disposition", "attachment; filename=\""
+				+ fname
+				+ ConversionServlet.getOutputExtension(
+					getMimeExtensionProvider(), job.getOutputMimeType(),
+					isComplex) + "\"");
+		OutputStream os = response.getOutputStream();
+		try {
+			if (isComplex) {
+				InputStream fis = new FileInputStream(result);
+				try {
+					EGEIOUtils.copyStream(fis, os);
+				}
+				finally {
+					fis.close();
+				}
+			}
+			else {
+				EGEIOUtils.unzipSingleFile(new ZipFile(result), os);
+			}
+		}
+		finally {
+			os.flush();
+			os.close();
+		}
+	}
+
+
+	/**
+	 * @see HttpServlet#doDelete(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doDelete(HttpServletRequest request,
+			HttpServletResponse response)
+		throws ServletException, IOException
+	{
+		String[] queries = resolveQueries(request);
+		if (queries.length != 1
+				|| !JobJournal.getInstance().remove(queries[0])) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+
+	/**
+	 * Sends in response xml data of job.
+	 */
+	static void printJob(HttpServletResponse response, JobJournal.Job job,
+			String href)
+		throws IOException
+	{
+		response.setContentType("text/xml");
+		PrintWriter out = response.getWriter();
+		try {
+			out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			out.println("<job xmlns:xlink=\"http://www.w3.org/1999/xlink\" id=\""
+					+ job.getId() + "\" status=\"" + job.getStatus()
+					+ "\" submitted=\"" + job.getSubmitted() + "\""
+					+ (job.getCompleted() > 0 ? " completed=\""
+							+ job.getCompleted() + "\"" : "")
+					+ " xlink:href=\"" + BatchConversion.escape(href) + "\">");
+			if (JobJournal.COMPLETED.equals(job.getStatus())) {
+				out.println("<result xlink:href=\""
+						+ BatchConversion.escape(href + "/" + RESULT) + "\" />");
+			}
+			else if (JobJournal.FAILED.equals(job.getStatus())) {
+				out.println("<error>" + BatchConversion.escape(job.getError())
+						+ "</error>");
+			}
+			out.println("</job>");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+	private String[] resolveQueries(HttpServletRequest request)
+	{
+		String path = request.getPathInfo();
+		if (path == null) {
+			return new String[0];
+		}
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		if (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path.length() == 0 ? new String[0] : path.split("/");
+	}
+
+
+	/**
+	 * Returns map that contains mapping of mime type to file extension.
+	 *
+	 * @return
+	 */
+	public MimeExtensionProvider getMimeExtensionProvider()
+	{
+		return (MimeExtensionProvider) this.getServletContext().getAttribute(
+			PreConfig.MIME_EXTENSION_PROVIDER);
+	}
+
+}
@@ -0,0 +1,234 @@
+package pl.psnc.dl.ege.webapp.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import pl.psnc.dl.ege.ConversionProgress;
+import pl.psnc.dl.ege.configuration.EGEConstants;
+
+/**
+ * Serves progress of conversions (see {@link ConversionProgress}) :
+ * <ul>
+ * <li>GET Progress/&lt;id&gt; - stream of server-sent events, which ends
+ * with completion or failure of conversion; reconnected stream starts after
+ * event sent in Last-Event-ID header,</li>
+ * <li>GET Progress/&lt;id&gt;?after=&lt;n&gt; - long polling : events after
+ * event n; waits for new events up to <i>progressPollTimeout</i>
+ * milliseconds (oxgarage.properties, default : 25000).</li>
+ * </ul>
+ * Identifier of progress is sent with conversion (parameter 'progress') or
+ * is identifier of asynchronous job; client may ask for progress before
+ * conversion starts.
+ */
+public class ProgressServlet
+	extends HttpServlet
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long POLL_TIMEOUT = EGEConstants.getLongProperty(
+		"progressPollTimeout", 25000);
+
+	/*
+	 * Interval of looking for progress of conversion, which has not started.
+	 */
+	private static final long LOOKUP_INTERVAL = 200;
+
+
+	/**
+	 * @see HttpServlet#HttpServlet()
+	 */
+	public ProgressServlet()
+	{
+		super();
+	}
+
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request,
+			HttpServletResponse response)
+		throws ServletException, IOException
+	{
+		String id = request.getPathInfo();
+		id = id == null ? "" : id.replace("/", "");
+		ConversionProgress progress;
+		try {
+			progress = lookup(id);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (progress == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		response.setHeader("Cache-Control", "no-cache");
+		try {
+			String after = request.getParameter("after");
+			if (after != null) {
+				poll(response, progress, parseSequence(after));
+			}
+			else {
+				stream(response, progress, parseSequence(request
+						.getHeader("Last-Event-ID")));
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/*
+	 * Waits for progress, which may be created after the request.
+	 */
+	private ConversionProgress lookup(String id)
+		throws InterruptedException
+	{
+		if (id.length() == 0) {
+			return null;
+		}
+		long deadline = System.currentTimeMillis() + POLL_TIMEOUT;
+		ConversionProgress progress = ConversionProgress.get(id);
+		while (progress == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(LOOKUP_INTERVAL);
+			progress = ConversionProgress.get(id);
+		}
+		return progress;
+	}
+
+
+	/*
+	 * Sends events as server-sent events until conversion is finished or
+	 * client is disconnected.
+	 */
+	private void stream(HttpServletResponse response,
+			ConversionProgress progress, long last)
+		throws IOException, InterruptedException
+	{
+		response.setContentType("text/event-stream; charset=UTF-8");
+		PrintWriter out = response.getWriter();
+		try {
+			out.print("retry: 1000\n\n");
+			out.flush();
+			while (!out.checkError()) {
+				List<ConversionProgress.Event> events = progress.getEvents(
+					last, POLL_TIMEOUT);
+				if (events.isEmpty()) {
+					if (progress.isFinished()) {
+						return;
+					}
+					// keeps connection open through proxies
+					out.print(": keep-alive\n\n");
+					out.flush();
+					continue;
+				}
+				for (ConversionProgress.Event event : events) {
+					out.print("id: " + event.getSequence() + "\nevent: "
+							+ event.getType() + "\ndata: " + toJSON(event)
+							+ "\n\n");
+					last = event.getSequence();
+				}
+				out.flush();
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+	/*
+	 * Sends events after selected event; waits for new events.
+	 */
+	private void poll(HttpServletResponse response,
+			ConversionProgress progress, long last)
+		throws IOException, InterruptedException
+	{
+		List<ConversionProgress.Event> events = progress.getEvents(last,
+			POLL_TIMEOUT);
+		response.setContentType("application/json; charset=UTF-8");
+		PrintWriter out = response.getWriter();
+		try {
+			StringBuffer sb = new StringBuffer();
+			sb.append("{\"id\":\"" + escape(progress.getId())
+					+ "\",\"finished\":" + progress.isFinished()
+					+ ",\"events\":[");
+			for (int i = 0; i < events.size(); i++) {
+				sb.append(i > 0 ? "," : "").append(toJSON(events.get(i)));
+			}
+			sb.append("]}");
+			out.print(sb.toString());
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+	private static long parseSequence(String value)
+	{
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		}
+		catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+
+	private static String toJSON(ConversionProgress.Event event)
+	{
+		StringBuffer sb = new StringBuffer();
+		sb.append("{\"sequence\":" + event.getSequence() + ",\"time\":"
+				+ event.getTime() + ",\"type\":\"" + event.getType() + "\"");
+		if (event.getStage() >= 0) {
+			sb.append(",\"stage\":" + event.getStage());
+		}
+		if (event.getName() != null) {
+			sb.append(",\"name\":\"" + escape(event.getName()) + "\"");
+		}
+		if (event.getValue() > 0 || event.getTotal() > 0) {
+			sb.append(",\"value\":" + event.getValue());
+		}
+		if (event.getTotal() > 0) {
+			sb.append(",\"total\":" + event.getTotal());
+		}
+		if (event.getMessage() != null) {
+			sb.append(",\"message\":\"" + escape(event.getMessage()) + "\"");
+		}
+		return sb.append("}").toString();
+	}
+
+
+	private static String escape(String text)
+	{
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,675 @@
+package pl.psnc.dl.ege.webapp.servlet;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+
+/**
+ * Per-client rate limiting of conversion and validation requests.<br/><br/>
+ *
+ * Client is identified by API key sent in header <i>rateLimitKeyHeader</i>
+ * (oxgarage.properties, default : X-API-Key) or by its IP address; only keys
+ * with configured limits (see below) are accepted, other keys are ignored.
+ * Every client has token buckets refilled every minute
+ * (oxgarage.properties) :
+ * <ul>
+ * <li><i>rateLimitRequests</i> - requests per minute,</li>
+ * <li><i>rateLimitBytes</i> - bytes of uploaded data per minute : declared
+ * Content-Length is charged when request is accepted, data of requests
+ * without Content-Length is charged while it is read and reading fails, when
+ * the bucket is exhausted,</li>
+ * </ul>
+ * and limit of requests in progress : <i>rateLimitConcurrent</i> (0 -
+ * unlimited for each of limits). Limits of single client may be changed by
+ * <i>rateLimit.&lt;API key or IP&gt;.requests</i>, <i>.bytes</i> and
+ * <i>.concurrent</i>.<br/>
+ * Requests exceeding limits are rejected with 429 (Too Many Requests) and
+ * Retry-After header before any work is scheduled.<br/><br/>
+ *
+ * Usage of clients (requests, bytes, rejections) is counted for clients
+ * active within the last hour.<br/>
+ *
+ * Implemented as Singleton.
+ */
+final class RateLimiter
+{
+
+	private static final Logger LOGGER = Logger.getLogger(RateLimiter.class);
+
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	private static final long MINUTE = 60L * 1000;
+
+	private static final long IDLE_TIMEOUT = 60L * MINUTE;
+
+	private static final String PREFIX = "rateLimit.";
+
+	private final String keyHeader;
+
+	private final long requests;
+
+	private final long bytes;
+
+	private final int concurrent;
+
+	/*
+	 * Clients by identifier - guarded by 'this'.
+	 */
+	private final Map<String, Client> clients = new HashMap<String, Client>();
+
+	private long lastCleanup = System.currentTimeMillis();
+
+	private static class RateLimiterHolder
+	{
+		private static final RateLimiter INSTANCE = new RateLimiter();
+	}
+
+
+	private RateLimiter()
+	{
+		keyHeader = EGEConstants.oxgProps.getProperty("rateLimitKeyHeader",
+			"X-API-Key").trim();
+		requests = EGEConstants.getLongProperty("rateLimitRequests", 0);
+		bytes = EGEConstants.getLongProperty("rateLimitBytes", 0);
+		concurrent = EGEConstants.getIntProperty("rateLimitConcurrent", 0);
+	}
+
+
+	public static RateLimiter getInstance()
+	{
+		return RateLimiterHolder.INSTANCE;
+	}
+
+
+	/**
+	 * Returns identifier of client of request : 'key:' followed by API key,
+	 * if limits of the key are configured, or 'ip:' followed by address of
+	 * client.
+	 */
+	public String getClientId(HttpServletRequest request)
+	{
+		String key = request.getHeader(keyHeader);
+		if (key != null && isKnownKey(key.trim())) {
+			return "key:" + key.trim();
+		}
+		return "ip:" + request.getRemoteAddr();
+	}
+
+
+	/**
+	 * Charges client of request for the request and its data. Accepted
+	 * request has to be released after it is served.
+	 */
+	public Permit acquire(HttpServletRequest request)
+	{
+		String id = getClientId(request);
+		// data of unknown length is charged while it is read (see Permit#wrap)
+		long size = Math.max(0, request.getContentLength());
+		long now = System.currentTimeMillis();
+		Client client;
+		synchronized (this) {
+			if (now - lastCleanup > MINUTE) {
+				cleanup(now);
+			}
+			client = clients.get(id);
+			if (client == null) {
+				client = new Client(id, getLimit(id, "requests", requests),
+						getLimit(id, "bytes", bytes), (int) getLimit(id,
+							"concurrent", concurrent), now);
+				clients.put(id, client);
+			}
+		}
+		String reason = client.acquire(size, now);
+		if (reason != null) {
+			LOGGER.warn("Request of " + id + " rejected : " + reason);
+			return new Permit(null, reason, client.getRetryAfter(size, now));
+		}
+		return new Permit(client, null, 0);
+	}
+
+
+	/**
+	 * Returns usage of clients sorted by uploaded bytes (descending).
+	 */
+	public List<Client> getClients()
+	{
+		List<Client> result;
+		synchronized (this) {
+			result = new ArrayList<Client>(clients.values());
+		}
+		Collections.sort(result, new Comparator<Client>() {
+			public int compare(Client c1, Client c2)
+			{
+				long b1 = c1.getBytes();
+				long b2 = c2.getBytes();
+				return b1 > b2 ? -1 : b1 < b2 ? 1 : c1.getId().compareTo(
+					c2.getId());
+			}
+		});
+		return result;
+	}
+
+
+	/*
+	 * Unknown keys would give every request its own limits.
+	 */
+	private boolean isKnownKey(String key)
+	{
+		if (key.length() == 0) {
+			return false;
+		}
+		for (String name : new String[] { "requests", "bytes", "concurrent" }) {
+			if (EGEConstants.oxgProps.getProperty(PREFIX + key + "." + name) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private long getLimit(String id, String name, long defaultValue)
+	{
+		return EGEConstants.getLongProperty(PREFIX
+				+ id.substring(id.indexOf(':') + 1) + "." + name, defaultValue);
+	}
+
+
+	/*
+	 * Forgets clients idle longer than IDLE_TIMEOUT.
+	 */
+	private void cleanup(long now)
+	{
+		lastCleanup = now;
+		Iterator<Client> it = clients.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isIdle(now)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Limits and usage of single client.
+	 */
+	public static class Client
+	{
+
+		private final String id;
+
+		private final TokenBucket requestBucket;
+
+		private final TokenBucket byteBucket;
+
+		private final int maxActive;
+
+		private int active = 0;
+
+		private long requestCount = 0;
+
+		private long byteCount = 0;
+
+		private long rejected = 0;
+
+		private long lastSeen;
+
+
+		Client(String id, long requests, long bytes, int concurrent, long now)
+		{
+			this.id = id;
+			this.requestBucket = requests > 0 ? new TokenBucket(requests, now)
+					: null;
+			this.byteBucket = bytes > 0 ? new TokenBucket(bytes, now) : null;
+			this.maxActive = concurrent;
+			this.lastSeen = now;
+		}
+
+
+		/*
+		 * Returns reason of rejection or 'null' if request is accepted.
+		 */
+		synchronized String acquire(long size, long now)
+		{
+			lastSeen = now;
+			String reason = null;
+			if (maxActive > 0 && active >= maxActive) {
+				reason = "Too many requests in progress.";
+			}
+			else if (requestBucket != null && !requestBucket.canTake(1, now)) {
+				reason = "Too many requests per minute.";
+			}
+			else if (byteBucket != null && !byteBucket.canTake(size, now)) {
+				reason = "Too much data per minute.";
+			}
+			if (reason != null) {
+				rejected++;
+				return reason;
+			}
+			if (requestBucket != null) {
+				requestBucket.take(1);
+			}
+			if (byteBucket != null) {
+				byteBucket.take(size);
+			}
+			active++;
+			requestCount++;
+			byteCount += size;
+			return null;
+		}
+
+
+		/*
+		 * Charges client for data read from request without declared length;
+		 * returns 'false' if limit of data is exceeded.
+		 */
+		synchronized boolean charge(long amount, long now)
+		{
+			lastSeen = now;
+			byteCount += amount;
+			if (byteBucket == null) {
+				return true;
+			}
+			byteBucket.take(amount);
+			return !byteBucket.isExhausted(now);
+		}
+
+
+		synchronized void release()
+		{
+			active--;
+			lastSeen = System.currentTimeMillis();
+		}
+
+
+		/*
+		 * Seconds after which request of selected size could be accepted.
+		 */
+		synchronized int getRetryAfter(long size, long now)
+		{
+			long wait = 1000;
+			if (requestBucket != null) {
+				wait = Math.max(wait, requestBucket.getWait(1, now));
+			}
+			if (byteBucket != null) {
+				wait = Math.max(wait, byteBucket.getWait(size, now));
+			}
+			return (int) Math.min(Integer.MAX_VALUE, (wait + 999) / 1000);
+		}
+
+
+		synchronized boolean isIdle(long now)
+		{
+			return active == 0 && now - lastSeen > IDLE_TIMEOUT;
+		}
+
+
+		/**
+		 * Returns identifier of client.
+		 */
+		public String getId()
+		{
+			return id;
+		}
+
+
+		/**
+		 * Returns number of accepted requests.
+		 */
+		public synchronized long getRequests()
+		{
+			return requestCount;
+		}
+
+
+		/**
+		 * Returns number of bytes uploaded with accepted requests.
+		 */
+		public synchronized long getBytes()
+		{
+			return byteCount;
+		}
+
+
+		/**
+		 * Returns number of rejected requests.
+		 */
+		public synchronized long getRejected()
+		{
+			return rejected;
+		}
+
+
+		/**
+		 * Returns number of requests in progress.
+		 */
+		public synchronized int getActive()
+		{
+			return active;
+		}
+
+
+		/**
+		 * Returns time of the last request.
+		 */
+		public synchronized long getLastSeen()
+		{
+			return lastSeen;
+		}
+
+	}
+
+	/*
+	 * Token bucket refilled with 'capacity' tokens per minute; request larger
+	 * than capacity is accepted when the bucket is full.
+	 */
+	private static class TokenBucket
+	{
+
+		private final long capacity;
+
+		private double tokens;
+
+		private long updated;
+
+
+		public TokenBucket(long capacity, long now)
+		{
+			this.capacity = capacity;
+			this.tokens = capacity;
+			this.updated = now;
+		}
+
+
+		private void refill(long now)
+		{
+			if (now > updated) {
+				tokens = Math.min(capacity, tokens + (double) capacity
+						* (now - updated) / MINUTE);
+				updated = now;
+			}
+		}
+
+
+		public boolean canTake(long amount, long now)
+		{
+			refill(now);
+			return tokens >= Math.min(amount, capacity);
+		}
+
+
+		public void take(long amount)
+		{
+			tokens -= amount;
+		}
+
+
+		public boolean isExhausted(long now)
+		{
+			refill(now);
+			return tokens < 0;
+		}
+
+
+		/*
+		 * Milliseconds until selected amount can be taken.
+		 */
+		public long getWait(long amount, long now)
+		{
+			refill(now);
+			double missing = Math.min(amount, capacity) - tokens;
+			return missing <= 0 ? 0 : (long) Math.ceil(missing * MINUTE
+					/ capacity);
+		}
+
+	}
+
+	/**
+	 * Result of rate limiting of request.
+	 */
+	class Permit
+	{
+
+		private final Client client;
+
+		private String reason;
+
+		private int retryAfter;
+
+		private boolean released = false;
+
+		private volatile boolean exceeded = false;
+
+
+		private Permit(Client client, String reason, int retryAfter)
+		{
+			this.client = client;
+			this.reason = reason;
+			this.retryAfter = retryAfter;
+		}
+
+
+		public boolean isAccepted()
+		{
+			return reason == null;
+		}
+
+
+		/**
+		 * Returns 'true' if reading of accepted request was stopped, because
+		 * client exceeded its limit of data.
+		 */
+		public boolean isExceeded()
+		{
+			return exceeded;
+		}
+
+
+		/**
+		 * Sends 429 response to rejected request or to request, which
+		 * exceeded limit of data.
+		 */
+		public void reject(HttpServletResponse response)
+			throws IOException
+		{
+			if (exceeded) {
+				reason = "Too much data per minute.";
+				retryAfter = client.getRetryAfter(1, System.currentTimeMillis());
+			}
+			response.setHeader("Retry-After", String.valueOf(retryAfter));
+			response.sendError(SC_TOO_MANY_REQUESTS, reason);
+		}
+
+
+		/**
+		 * Returns request of accepted permit, which charges client for data
+		 * of request without declared length, when the data is read.
+		 */
+		public HttpServletRequest wrap(HttpServletRequest request)
+		{
+			if (client == null || request.getContentLength() >= 0) {
+				// declared length is already charged
+				return request;
+			}
+			return new ChargedRequest(request, this);
+		}
+
+
+		/*
+		 * Charges client for data read from request.
+		 */
+		void charge(long amount)
+			throws IOException
+		{
+			if (!client.charge(amount, System.currentTimeMillis())) {
+				exceeded = true;
+				LOGGER.warn("Request of " + client.getId()
+						+ " stopped : too much data per minute.");
+				throw new IOException("Too much data per minute.");
+			}
+		}
+
+
+		/**
+		 * Ends accepted request.
+		 */
+		public synchronized void release()
+		{
+			if (client != null && !released) {
+				released = true;
+				client.release();
+			}
+		}
+
+	}
+
+	/*
+	 * Request, which charges its client for read data; form parameters read
+	 * by the container are charged with length of their names and values.
+	 */
+	private static class ChargedRequest
+		extends HttpServletRequestWrapper
+	{
+
+		private final Permit permit;
+
+		private ServletInputStream stream = null;
+
+		private boolean parametersCharged = false;
+
+
+		public ChargedRequest(HttpServletRequest request, Permit permit)
+		{
+			super(request);
+			this.permit = permit;
+		}
+
+
+		public ServletInputStream getInputStream()
+			throws IOException
+		{
+			if (stream == null) {
+				stream = new ChargedInputStream(super.getInputStream(), permit);
+			}
+			return stream;
+		}
+
+
+		public String getParameter(String name)
+		{
+			chargeParameters();
+			return super.getParameter(name);
+		}
+
+
+		public Map getParameterMap()
+		{
+			chargeParameters();
+			return super.getParameterMap();
+		}
+
+
+		public String[] getParameterValues(String name)
+		{
+			chargeParameters();
+			return super.getParameterValues(name);
+		}
+
+
+		private void chargeParameters()
+		{
+			if (parametersCharged) {
+				return;
+			}
+			parametersCharged = true;
+			long size = 0;
+			for (Object entry : super.getParameterMap().entrySet()) {
+				Map.Entry<?, ?> param = (Map.Entry<?, ?>) entry;
+				for (String value : (String[]) param.getValue()) {
+					size += length(param.getKey()) + length(value) + 2;
+				}
+			}
+			try {
+				permit.charge(size);
+			}
+			catch (IOException ex) {
+				// the data is already read - next requests are rejected
+			}
+		}
+
+
+		private static long length(Object text)
+		{
+			try {
+				return text == null ? 0 : text.toString().getBytes("UTF-8").length;
+			}
+			catch (UnsupportedEncodingException ex) {
+				return text.toString().length();
+			}
+		}
+
+	}
+
+	/*
+	 * Input stream of request, which charges client for read bytes.
+	 */
+	private static class ChargedInputStream
+		extends ServletInputStream
+	{
+
+		private final ServletInputStream stream;
+
+		private final Permit permit;
+
+
+		public ChargedInputStream(ServletInputStream stream, Permit permit)
+		{
+			this.stream = stream;
+			this.permit = permit;
+		}
+
+
+		public int read()
+			throws IOException
+		{
+			int b = stream.read();
+			if (b != -1) {
+				permit.charge(1);
+			}
+			return b;
+		}
+
+
+		public int read(byte[] b, int off, int len)
+			throws IOException
+		{
+			int n = stream.read(b, off, len);
+			if (n > 0) {
+				permit.charge(n);
+			}
+			return n;
+		}
+
+
+		public void close()
+			throws IOException
+		{
+			stream.close();
+		}
+
+	}
+
+}
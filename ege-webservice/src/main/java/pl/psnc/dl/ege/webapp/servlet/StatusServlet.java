@@ -0,0 +1,200 @@
+package pl.psnc.dl.ege.webapp.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import pl.psnc.dl.ege.ConversionScheduler;
+import pl.psnc.dl.ege.ConversionStatistics;
+import pl.psnc.dl.ege.CallbackDelivery;
+import pl.psnc.dl.ege.JobJournal;
+import pl.psnc.dl.ege.JobQueue;
+import pl.psnc.dl.ege.StageCache;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
+import pl.psnc.dl.ege.webapp.config.PreConfig;
+
+/**
+ * Serves readiness of the service (503 until converters are warmed up, see
+ * {@link PreConfig#READY}) and its current load : admission of requests,
+ * pools of converters (with time of waiting in their queues), jobs of
+ * workers, asynchronous jobs, temporary space, cache of intermediate results,
+ * measured conversions and usage of clients (API keys are shortened).
+ */
+public class StatusServlet
+	extends HttpServlet
+{
+
+	private static final long serialVersionUID = 1L;
+
+
+	/**
+	 * @see HttpServlet#HttpServlet()
+	 */
+	public StatusServlet()
+	{
+		super();
+	}
+
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request,
+			HttpServletResponse response)
+		throws ServletException, IOException
+	{
+		boolean ready = Boolean.TRUE.equals(getServletContext().getAttribute(
+			PreConfig.READY));
+		if (!ready) {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		}
+		response.setContentType("text/xml");
+		response.setHeader("Cache-Control", "no-cache");
+		PrintWriter out = response.getWriter();
+		try {
+			out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			out.println("<status ready=\"" + ready + "\">");
+			printAdmission(out);
+			printPools(out);
+			printJobQueue(out);
+			printJobJournal(out);
+			printTempSpace(out);
+			printStageCache(out);
+			printStatistics(out);
+			printClients(out);
+			out.println("</status>");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+	private void printAdmission(PrintWriter out)
+	{
+		AdmissionController ac = AdmissionController.getInstance();
+		out.println("<admission in-flight=\"" + ac.getInFlight()
+				+ "\" max-requests=\"" + ac.getMaxRequests() + "\" accepted=\""
+				+ ac.getAccepted() + "\" free-heap=\"" + ac.getFreeHeap()
+				+ "\">");
+		for (Map.Entry<String, Long> entry : ac.getRejections().entrySet()) {
+			out.println("<rejected reason=\"" + entry.getKey() + "\" count=\""
+					+ entry.getValue() + "\" />");
+		}
+		out.println("</admission>");
+	}
+
+
+	private void printPools(PrintWriter out)
+	{
+		out.println("<pools>");
+		for (ConversionScheduler.Pool pool : ConversionScheduler.getInstance()
+				.getPools().values()) {
+			out.println("<pool name=\"" + pool.getName() + "\" limit=\""
+					+ pool.getLimit() + "\" queue-limit=\""
+					+ pool.getQueueLimit() + "\" active=\"" + pool.getActive()
+					+ "\" waiting=\"" + pool.getWaiting() + "\" completed=\""
+					+ pool.getCompleted() + "\" rejected=\""
+					+ pool.getRejected() + "\" average-wait=\""
+					+ Math.round(pool.getAverageWait()) + "\" max-wait=\""
+					+ pool.getMaxWait() + "\" />");
+		}
+		out.println("</pools>");
+	}
+
+
+	private void printJobQueue(PrintWriter out)
+	{
+		JobQueue jq = JobQueue.getInstance();
+		if (!jq.isEnabled()) {
+			out.println("<job-queue enabled=\"false\" />");
+			return;
+		}
+		out.println("<job-queue enabled=\"true\" pending=\""
+				+ jq.getCount(JobQueue.PENDING) + "\" running=\""
+				+ jq.getCount(JobQueue.RUNNING) + "\" done=\""
+				+ jq.getCount(JobQueue.DONE) + "\" />");
+	}
+
+
+	private void printJobJournal(PrintWriter out)
+	{
+		out.print("<jobs");
+		for (Map.Entry<String, Integer> entry : JobJournal.getInstance()
+				.getCounts().entrySet()) {
+			out.print(" " + entry.getKey() + "=\"" + entry.getValue() + "\"");
+		}
+		out.println(" callbacks=\"" + CallbackDelivery.getInstance().getPending()
+				+ "\" />");
+	}
+
+
+	private void printTempSpace(PrintWriter out)
+	{
+		TempSpaceManager tsm = TempSpaceManager.getInstance();
+		out.println("<temp-space in-use=\"" + tsm.getBytesInUse()
+				+ "\" quota=\"" + tsm.getQuota() + "\" leases=\""
+				+ tsm.getActiveLeases() + "\" capacity=\"" + tsm.hasCapacity()
+				+ "\" />");
+	}
+
+
+	private void printStageCache(PrintWriter out)
+	{
+		StageCache sc = StageCache.getInstance();
+		out.println("<stage-cache size=\"" + sc.getSize() + "\" budget=\""
+				+ sc.getBudget() + "\" count=\"" + sc.getCount() + "\" hits=\""
+				+ sc.getHits() + "\" misses=\"" + sc.getMisses() + "\" />");
+	}
+
+
+	private void printStatistics(PrintWriter out)
+	{
+		out.println("<conversions adaptive=\""
+				+ ConversionStatistics.getInstance().isAdaptive() + "\">");
+		for (Map.Entry<String, ConversionStatistics.ActionStatistics> entry : ConversionStatistics
+				.getInstance().getStatistics().entrySet()) {
+			ConversionStatistics.ActionStatistics stats = entry.getValue();
+			out.println("<conversion count=\"" + stats.getCount()
+					+ "\" cost=\"" + stats.getCost()
+					+ "\" average-time=\""
+					+ Math.round(stats.getAverageMillis()) + "\"><![CDATA["
+					+ entry.getKey() + "]]></conversion>");
+		}
+		out.println("</conversions>");
+	}
+
+
+	private void printClients(PrintWriter out)
+	{
+		out.println("<clients>");
+		for (RateLimiter.Client client : RateLimiter.getInstance().getClients()) {
+			out.println("<client id=\"" + mask(client.getId())
+					+ "\" requests=\"" + client.getRequests() + "\" bytes=\""
+					+ client.getBytes() + "\" rejected=\""
+					+ client.getRejected() + "\" active=\""
+					+ client.getActive() + "\" last-seen=\""
+					+ client.getLastSeen() + "\" />");
+		}
+		out.println("</clients>");
+	}
+
+
+	/*
+	 * API keys are not published : only their beginning is shown.
+	 */
+	private static String mask(String id)
+	{
+		if (id.startsWith("key:") && id.length() > 8) {
+			return id.substring(0, 8) + "...";
+		}
+		return id.replace("&", "&amp;").replace("\"", "&quot;").replace("<",
+			"&lt;");
+	}
+
+}
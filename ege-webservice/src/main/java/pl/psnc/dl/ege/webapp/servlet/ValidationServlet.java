@@ -3,7 +3,9 @@ package pl.psnc.dl.ege.webapp.servlet;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.Set;
+import java.util.zip.ZipException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -15,6 +17,7 @@ import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.log4j.Logger;
 
+import pl.psnc.dl.ege.ConversionScheduler;
 import pl.psnc.dl.ege.EGE;
 import pl.psnc.dl.ege.EGEImpl;
 import pl.psnc.dl.ege.exception.ValidatorException;
@@ -117,10 +120,43 @@ public class ValidationServlet
 		throws ServletException, IOException
 	{
 		try {
-			RequestResolver rr = new ValidationRequestResolver(request,
-					Method.POST);
-			DataType dt = (DataType) rr.getData();
-			performValidation(dt, rr, response);
+			// limits of client are checked before any work is scheduled
+			RateLimiter.Permit permit = RateLimiter.getInstance().acquire(
+				request);
+			if (!permit.isAccepted()) {
+				permit.reject(response);
+				return;
+			}
+			try {
+				// data of request is charged while it is read
+				RequestResolver rr = new ValidationRequestResolver(permit
+						.wrap(request), Method.POST);
+				DataType dt = (DataType) rr.getData();
+				// excess requests are rejected before their data is read
+				AdmissionController.Admission admission = AdmissionController
+						.getInstance().admit(
+							Collections.singleton(ConversionScheduler.VALIDATION));
+				if (!admission.isAccepted()) {
+					admission.reject(response);
+					return;
+				}
+				try {
+					performValidation(dt, rr, response);
+				}
+				finally {
+					admission.release();
+				}
+			}
+			catch (Exception ex) {
+				if (permit.isExceeded() && !response.isCommitted()) {
+					permit.reject(response);
+					return;
+				}
+				throw ex;
+			}
+			finally {
+				permit.release();
+			}
 		}
 		catch (RequestResolvingException ex) {
 			//TODO: zastanowic sie nad sytuacja, gdy request jest nieprawidlowo sparsowany
@@ -149,7 +185,10 @@ public class ValidationServlet
 	{
 		EGE ege = new EGEImpl();
 		InputStream is = null;
-		if (ServletFileUpload.isMultipartContent(rr.getRequest())) {
+		if (rr.isBatch()) {
+			performBatchValidation(ege, dt, rr, response);
+		}
+		else if (ServletFileUpload.isMultipartContent(rr.getRequest())) {
 			try {
 				ServletFileUpload upload = new ServletFileUpload();
 				FileItemIterator iter = upload.getItemIterator(rr.getRequest());
@@ -184,11 +223,64 @@ public class ValidationServlet
 		}
 	}
 	
+	/*
+	 * Validates all documents sent in multipart request (every uploaded file
+	 * may be a document or a zip archive of documents) and streams results.
+	 */
+	private void performBatchValidation(EGE ege, DataType dt,
+			RequestResolver rr, HttpServletResponse response)
+		throws Exception
+	{
+		if (!ServletFileUpload.isMultipartContent(rr.getRequest())) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		if (!ege.returnSupportedValidationFormats().contains(dt)) {
+			throw new ValidatorException(dt);
+		}
+		BatchValidation batch = new BatchValidation(ege, dt);
+		try {
+			ServletFileUpload upload = new ServletFileUpload();
+			FileItemIterator iter = upload.getItemIterator(rr.getRequest());
+			while (iter.hasNext()) {
+				FileItemStream item = iter.next();
+				if (!item.isFormField()) {
+					try {
+						batch.addDocument(item.getName(), item.openStream());
+					}
+					catch (ZipException ex) {
+						response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+							"Not a zip archive : " + item.getName());
+						return;
+					}
+				}
+			}
+			if (batch.size() == 0) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			}
+			response.setContentType("text/xml");
+			batch.printResults(response.getWriter());
+		}
+		finally {
+			batch.close();
+		}
+	}
+	
 	public void printValidationResult(HttpServletResponse response, ValidationResult result) throws IOException{
 		PrintWriter out = response.getWriter();
 		response.setContentType("text/xml");
 		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-		out.println("<validation-result>");
+		printResultElement(out, result, null);
+	}
+	
+	/*
+	 * Prints validation result element; name of validated document is
+	 * optional (expected to be escaped).
+	 */
+	static void printResultElement(PrintWriter out, ValidationResult result, String name){
+		out.println(name == null ? "<validation-result>"
+				: "<validation-result name=\"" + name + "\">");
 		out.println("<status>" + result.getStatus()
 				+ "</status>");
 		out.println("<messages>");
@@ -14,7 +14,6 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import java.util.regex.Pattern;
 import java.util.zip.ZipException;
 
@@ -33,6 +32,10 @@ import net.sf.saxon.s9api.QName;
 import org.xml.sax.SAXNotRecognizedException;
 import org.xml.sax.SAXNotSupportedException;
 
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+import org.tei.utils.SaxonProcFactory;
+
 import pl.psnc.dl.ege.utils.EGEIOUtils;
 import pl.psnc.dl.ege.MultiXslOutputResolver;
 import pl.psnc.dl.ege.component.ConfigurableConverter;
@@ -43,6 +46,7 @@ import pl.psnc.dl.ege.exception.EGEException;
 import pl.psnc.dl.ege.types.ConversionActionArguments;
 import pl.psnc.dl.ege.types.DataType;
 import pl.psnc.dl.ege.utils.IOResolver;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
 
 /**
  * <p>
@@ -63,6 +67,8 @@ public class MultiXslConverter implements ConfigurableConverter {
 
 	private static final String STYLESHEETS_PATH;
 
+	private static final Logger LOGGER = Logger.getLogger(MultiXslConverter.class);
+
 	static {
 		STYLESHEETS_PATH = EGEConstants.TEIROOT + "stylesheet" + File.separator;
 	}
@@ -74,6 +80,11 @@ public class MultiXslConverter implements ConfigurableConverter {
 
 	private URI defaultUri = null;
 
+	/*
+	 * Compiled xsl transformation scheme - prepared at configuration time.
+	 */
+	private volatile XsltExecutable executable = null;
+
 	private final IOResolver ior = EGEConfigurationManager.getInstance()
 			.getStandardIOResolver();
 
@@ -93,8 +104,9 @@ public class MultiXslConverter implements ConfigurableConverter {
 		File outTempDir = null;
 		try {
 			if (conversionDataTypes.getInputType().getFormat().equals(EAD)) {
-				outTempDir = performEADTransformation(prepareInputData(
-						inputStream, inTempDir));
+				outTempDir = prepareTempDir();
+				performEADTransformation(prepareInputData(inputStream,
+						inTempDir), outTempDir);
 			} else {
 				outTempDir = performStandardTransformation(prepareInputData(
 						inputStream, inTempDir));
@@ -110,23 +122,16 @@ public class MultiXslConverter implements ConfigurableConverter {
 			ex.printStackTrace();
 			throw new ConverterException(ex.getMessage());
 		} finally {
-			if (inTempDir != null && inTempDir.exists())
-				EGEIOUtils.deleteDirectory(inTempDir);
-			if (outTempDir != null && outTempDir.exists())
-				EGEIOUtils.deleteDirectory(outTempDir);
+			TempSpaceManager.getInstance().release(inTempDir);
+			TempSpaceManager.getInstance().release(outTempDir);
 		}
 	}
 
 	/*
 	 * Creates temporary directory with UUID random name.
 	 */
-	private File prepareTempDir() {
-		File inTempDir = null;
-		String uid = UUID.randomUUID().toString();
-		inTempDir = new File(EGEConstants.TEMP_PATH + File.separator + uid
-				+ File.separator);
-		inTempDir.mkdir();
-		return inTempDir;
+	private File prepareTempDir() throws IOException {
+		return TempSpaceManager.getInstance().createTempDir();
 	}
 
 	/*
@@ -164,60 +169,29 @@ public class MultiXslConverter implements ConfigurableConverter {
 	}
 
 	/*
-	 * Performs EAD conversions - result contains many files packed to .zip
-	 * archive
+	 * Performs EAD conversions - result contains many files written to
+	 * selected directory and packed to .zip archive
 	 */
-	private File performEADTransformation(InputStream inputStream)
-			throws SaxonApiException, IOException, ConverterException {
-		InputStream is = null;
+	private void performEADTransformation(InputStream inputStream,
+			File tempDir) throws SaxonApiException, IOException,
+			ConverterException {
 		try {
-			Processor proc = new Processor(false);
-			XsltCompiler comp = proc.newXsltCompiler();
-			try{
-				is = new FileInputStream(new File(xslUri));
-			}catch(IOException ex){
-				if(defaultUri != null){
-					URL xslURL = defaultUri.toURL();
-					is = xslURL.openStream();
-				}else{
-					throw ex;
-				}
-			}
-			// create temporary files directory
-			String uid = UUID.randomUUID().toString();
-			File tempDir = new File(System.getProperty("java.io.tmpdir")
-					+ File.separator + uid + File.separator);
-			tempDir.mkdir();
+			Processor proc = SaxonProcFactory.getProcessor();
 
-			// setup xslt processor
-			proc.getUnderlyingConfiguration().setOutputURIResolver(
-					new MultiXslOutputResolver(uid));
-			XsltExecutable exec = comp.compile(new StreamSource(is));
-			XsltTransformer transformer = exec.load();
+			XsltTransformer transformer = getExecutable().load();
+			// result documents of this transformation go to temporary directory
+			transformer.getUnderlyingController().setOutputURIResolver(
+					new MultiXslOutputResolver(tempDir));
 			transformer.setInitialContextNode(proc.newDocumentBuilder().build(
 					new StreamSource(inputStream)));
 			Serializer result = new Serializer();
 
-			// create dummy result file - result file is empty
-			File dummyResult = new File(tempDir.getPath() + ".xml");
-			FileOutputStream dummyOs = new FileOutputStream(dummyResult);
-
-			result.setOutputStream(dummyOs);
+			// principal result is empty
+			result.setOutputStream(new NullOutputStream());
 			transformer.setDestination(result);
 			transformer.transform();
-			dummyOs.close();
-			dummyResult.delete();
-
-			return tempDir;
 
 		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (Exception ex) {
-					// do nothing
-				}
-			}
 			try {
 				inputStream.close();
 			} catch (Exception ex) {
@@ -232,35 +206,15 @@ public class MultiXslConverter implements ConfigurableConverter {
 	private File performStandardTransformation(InputStream inputStream)
 			throws IOException, SaxonApiException, SAXNotRecognizedException,
 			SAXNotSupportedException {
-		InputStream is = null;
 		File tempDir = null;
 		File inTmpDir = null;
 		FileOutputStream fos = null;
 		try {
-			String uid = UUID.randomUUID().toString();
-			tempDir = new File(EGEConstants.TEMP_PATH + File.separator + uid
-					+ File.separator);
-			tempDir.mkdir();
+			tempDir = prepareTempDir();
 			File standXml = new File(tempDir + File.separator + "stand.xml");
 			fos = new FileOutputStream(standXml);
-			Processor proc = new Processor(false);
-			proc.getUnderlyingConfiguration().setValidation(false);
-			proc.getUnderlyingConfiguration().getSourceParser()
-					.setErrorHandler(null);
-			XsltCompiler comp = proc.newXsltCompiler();
-			/* System.err.println("READ XSL " + xslUri);*/
-			try{
-				is = new FileInputStream(new File(xslUri));
-			}catch(IOException ex){
-				if(defaultUri != null){
-					URL xslURL = defaultUri.toURL();
-					is = xslURL.openStream();
-				}else{
-					throw ex;
-				}
-			}
-			XsltExecutable exec = comp.compile(new StreamSource(is));
-			XsltTransformer transformer = exec.load();
+			Processor proc = SaxonProcFactory.getProcessor();
+			XsltTransformer transformer = getExecutable().load();
 			DocumentBuilder documentBuilder = proc.newDocumentBuilder();
 			documentBuilder.setDTDValidation(false);
 			// write the file			
@@ -320,15 +274,76 @@ public class MultiXslConverter implements ConfigurableConverter {
 			if (fos != null) {
 				fos.close();
 			}
+			TempSpaceManager.getInstance().release(inTmpDir);
+			inputStream.close();
+		}
+	}
+
+	/*
+	 * Returns compiled xsl scheme; compiles it if it was not prepared
+	 * at configuration time.
+	 */
+	private XsltExecutable getExecutable() throws IOException,
+			SaxonApiException {
+		XsltExecutable exec = executable;
+		if (exec == null) {
+			exec = compileStylesheet();
+			executable = exec;
+		}
+		return exec;
+	}
+
+	/*
+	 * Compiles xsl scheme from configured URI, default scheme from plugin
+	 * archive is used if configured one is not available.
+	 */
+	private XsltExecutable compileStylesheet() throws IOException,
+			SaxonApiException {
+		InputStream is = null;
+		try {
+			try {
+				is = new FileInputStream(new File(xslUri));
+			} catch (IOException ex) {
+				if (defaultUri != null) {
+					URL xslURL = defaultUri.toURL();
+					is = xslURL.openStream();
+				} else {
+					throw ex;
+				}
+			}
+			XsltCompiler comp = SaxonProcFactory.getProcessor()
+					.newXsltCompiler();
+			return comp.compile(new StreamSource(is));
+		} finally {
 			if (is != null) {
-				is.close();
+				try {
+					is.close();
+				} catch (Exception ex) {
+					// do nothing
+				}
 			}
-			if (inTmpDir != null && inTmpDir.exists())
-				EGEIOUtils.deleteDirectory(inTmpDir);
-			inputStream.close();
 		}
 	}
 
+	/**
+	 * Compiles again xsl transformation scheme of the converter, e.g. after
+	 * the stylesheet was changed on disk. Conversions already in progress
+	 * finish with previously compiled scheme. Cached intermediate results
+	 * (see {@link StageCache}) are cleared.
+	 * 
+	 * @throws EGEException
+	 *             if scheme could not be compiled
+	 */
+	public void reload() throws EGEException {
+		try {
+			executable = compileStylesheet();
+		} catch (Exception ex) {
+			throw new EGEException(EGEException.WRONG_CONFIGURATION + " "
+					+ ex.getMessage());
+		}
+		StageCache.getInstance().clear();
+	}
+
 	public List<ConversionActionArguments> getPossibleConversions() {
 		return possibleConversions;
 	}
@@ -378,6 +393,12 @@ public class MultiXslConverter implements ConfigurableConverter {
 			throw new EGEException(EGEException.WRONG_CONFIGURATION + " "
 					+ ex.getMessage());
 		}
+		// compile scheme now, failure is reported again on conversion
+		try {
+			reload();
+		} catch (EGEException ex) {
+			LOGGER.error(ex.getMessage());
+		}
 	}
 
 }
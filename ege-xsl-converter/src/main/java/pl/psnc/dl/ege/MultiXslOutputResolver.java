@@ -20,6 +20,8 @@ public class MultiXslOutputResolver
 	extends StandardOutputResolver
 {
 	private String subPath;
+
+	private URI newBase = NEW_BASE;
 	
 	private static final URI NEW_BASE;
 	static {
@@ -43,11 +45,25 @@ public class MultiXslOutputResolver
 		this.subPath = subPath;
 	}
 
+
+	/**
+	 * Constructor : output data is written
+	 * to selected directory (e.g. leased from
+	 * TempSpaceManager).
+	 * 
+	 * @param dir
+	 */
+	public MultiXslOutputResolver(File dir)
+	{
+		this.subPath = dir.getName();
+		this.newBase = dir.getAbsoluteFile().getParentFile().toURI();
+	}
+
 	@Override
 	public Result resolve(String href, String base)
 		throws XPathException
 	{
-		base = NEW_BASE.toString();
+		base = newBase.toString();
 		try {
 			URI absoluteURI;
 			if (href.length() == 0) {
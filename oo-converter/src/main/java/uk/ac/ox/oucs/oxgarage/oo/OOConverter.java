@@ -1,5 +1,6 @@
 package uk.ac.ox.oucs.oxgarage.oo;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.FileOutputStream;
@@ -7,7 +8,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.UUID;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
@@ -18,6 +18,7 @@ import org.artofsolving.jodconverter.office.DefaultOfficeManagerConfiguration;
 
 import org.tei.exceptions.ConfigurationException;
 
+import pl.psnc.dl.ege.CancellationToken;
 import pl.psnc.dl.ege.component.Converter;
 import pl.psnc.dl.ege.configuration.EGEConfigurationManager;
 import pl.psnc.dl.ege.configuration.EGEConstants;
@@ -26,6 +27,7 @@ import pl.psnc.dl.ege.types.ConversionActionArguments;
 import pl.psnc.dl.ege.types.DataType;
 import pl.psnc.dl.ege.utils.EGEIOUtils;
 import pl.psnc.dl.ege.utils.IOResolver;
+import pl.psnc.dl.ege.utils.Workspace;
 
 /**
  * <p>
@@ -90,15 +92,6 @@ public class OOConverter implements Converter {
 		return OOConfiguration.CONVERSIONS;
 	}
 
-	private File prepareTempDir() {
-		File inTempDir = null;
-		String uid = UUID.randomUUID().toString();
-		inTempDir = new File(EGEConstants.TEMP_PATH + File.separator + uid
-				+ File.separator);
-		inTempDir.mkdir();
-		return inTempDir;
-	}
-
 	/*
 	 * prepares received data - decompress, search for file to convert and return it.
 	 */
@@ -135,11 +128,12 @@ public class OOConverter implements Converter {
 
 	private void transform(InputStream inputStream, OutputStream outputStream, DataType input, DataType output) 
 			throws IOException, ConverterException {
-		File inTmpDir = prepareTempDir();
-		File outTmpDir = prepareTempDir();
+		Workspace workspace = Workspace.open(inputStream);
 		try {
+			File inTmpDir = workspace.createDir();
+			File outTmpDir = workspace.createDir();
 			String inputExt = OOConfiguration.getExtension(input);
-			File inTmpFile = prepareInputData(inputStream, inTmpDir, inputExt);
+			File inTmpFile = prepareInputData(workspace.getInputStream(), inTmpDir, inputExt);
 			File inputFile = new File(inTmpDir + File.separator + "input." + inputExt);			
 			inTmpFile.renameTo(inputFile);
 			String outputExt = OOConfiguration.getExtension(output);
@@ -157,7 +151,20 @@ public class OOConverter implements Converter {
 							.setPortNumber(portNumbers[portNum]).buildOfficeManager();
 					converter[portNum] = new OfficeDocumentConverter(officeManager[portNum]);
 					officeManager[portNum].start();		    			
-					converter[portNum].convert(inputFile, outputFile);
+					// cancelled conversion stops office process
+					final OfficeManager manager = officeManager[portNum];
+					Closeable stopper = new Closeable() {
+						public void close() {
+							manager.stop();
+						}
+					};
+					CancellationToken token = CancellationToken.current();
+					token.register(stopper);
+					try {
+						converter[portNum].convert(inputFile, outputFile);
+					} finally {
+						token.unregister(stopper);
+					}
 					officeManager[portNum].stop();
 					officeManager[portNum] = null;
 					converter[portNum] = null;
@@ -167,8 +174,14 @@ public class OOConverter implements Converter {
 			} catch(Exception e) {
 				LOGGER.debug("OOConverter Exception " + e.toString());
 				e.printStackTrace();
-				if(portNum!=-2) {
-					officeManager[portNum].stop();
+				// interrupted wait for port leaves portNum -1
+				if(portNum>=0) {
+					try {
+						officeManager[portNum].stop();
+					} catch (Exception ex) {
+						// office process was already stopped
+						LOGGER.debug("OOConverter Exception " + ex.toString());
+					}
 					officeManager[portNum] = null;
 					converter[portNum] = null;
 					busy[portNum] = false;
@@ -177,8 +190,7 @@ public class OOConverter implements Converter {
 			}
 			ior.compressData(outTmpDir, outputStream);
 		} finally {
-			EGEIOUtils.deleteDirectory(inTmpDir);
-			EGEIOUtils.deleteDirectory(outTmpDir);
+			workspace.close();
 		}
 	}
 
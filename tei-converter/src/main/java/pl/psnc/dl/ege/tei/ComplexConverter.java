@@ -11,7 +11,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.UUID;
 import java.util.zip.ZipOutputStream;
 
 import javax.xml.transform.stream.StreamSource;
@@ -33,7 +32,8 @@ import org.tei.utils.SaxonProcFactory;
 import org.tei.utils.XMLUtils;
 
 import pl.psnc.dl.ege.utils.EGEIOUtils;
-import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.utils.TempSpaceManager;
+import pl.psnc.dl.ege.utils.Workspace;
 
 import org.apache.log4j.Logger;
 
@@ -65,6 +65,12 @@ public abstract class ComplexConverter {
 
 	protected File teiArchive;
 
+	/**
+	 * Workspace of the conversion, 'null' if directories are leased
+	 * directly from TempSpaceManager
+	 */
+	protected final Workspace workspace;
+
 	/**
 	 * Defines which directories are copied to and from the archive
 	 */
@@ -79,8 +85,23 @@ public abstract class ComplexConverter {
 	 */
 	public ComplexConverter (String profile)
 			throws IOException, ConfigurationException {
+		this(profile, (Workspace) null);
+	}
+
+	/**
+	 * Constructs converter for conversion from TEI, which keeps its
+	 * temporary files in selected workspace
+	 * 
+	 * @param profile String representing the profile name
+	 * @param workspace workspace of the conversion
+	 * @throws IOException
+	 * @throws ConfigurationException
+	 */
+	public ComplexConverter (String profile, Workspace workspace)
+			throws IOException, ConfigurationException {
 		this.profile = profile;
 		this.fileName = null;
+		this.workspace = workspace;
 		initTemplate();
 	}
 
@@ -94,8 +115,24 @@ public abstract class ComplexConverter {
 	 */
 	public ComplexConverter (String profile, String fileName)
 			throws IOException, ConfigurationException {
+		this(profile, fileName, null);
+	}
+
+	/**
+	 * Constructs converter for conversion to TEI, which keeps its
+	 * temporary files in selected workspace
+	 * 
+	 * @param profile String representing the profile name
+	 * @param fileName String holding the name of file we are converting
+	 * @param workspace workspace of the conversion
+	 * @throws IOException
+	 * @throws ConfigurationException
+	 */
+	public ComplexConverter (String profile, String fileName, Workspace workspace)
+			throws IOException, ConfigurationException {
 		this.profile = profile;
 		this.fileName = fileName;
+		this.workspace = workspace;
 		tempDirectory = prepareTempDir();
 		tempDirectoryName = tempDirectory.toString();
 		tempDirectoryNameURI = tempDirectory.toURI().toString();
@@ -231,7 +268,7 @@ public abstract class ComplexConverter {
 			// pack tmp dir to zip and send it to output stream.
 			zipToStream(os, tmpArchiveDir);
 		} finally {
-			EGEIOUtils.deleteDirectory(tmpArchiveDir);
+			releaseTempDir(tmpArchiveDir);
 		}
 	}
 
@@ -245,8 +282,7 @@ public abstract class ComplexConverter {
 		Processor proc = SaxonProcFactory.getProcessor();
 		net.sf.saxon.s9api.DocumentBuilder builder = proc.newDocumentBuilder();
 		XdmNode document = builder.build(dxF);
-		XsltCompiler comp = proc.newXsltCompiler();
-		XsltExecutable exec = comp.compile(getStylesheetToTEI());
+		XsltExecutable exec = StylesheetCache.getInstance().getExecutable(getStylesheetToTEI());
 		XsltTransformer transformer = exec.load();
 		setParametersToTEI(transformer);
 		if(fileName!=null) transformer.setParameter(new QName("fileName"), new XdmAtomicValue(fileName));
@@ -267,9 +303,7 @@ public abstract class ComplexConverter {
 	public void mergeTEI(XdmNode tei) throws SaxonApiException,
 			FileNotFoundException, IOException {
 		// prepare transformation
-		Processor proc = SaxonProcFactory.getProcessor();
-		XsltCompiler comp = proc.newXsltCompiler();
-		XsltExecutable exec = comp.compile(getStylesheetFromTEI());
+		XsltExecutable exec = StylesheetCache.getInstance().getExecutable(getStylesheetFromTEI());
 		XsltTransformer transformer = exec.load();
 		setParametersFromTEI(transformer);
 		// transform and write back to document
@@ -304,7 +338,7 @@ public abstract class ComplexConverter {
 
 	public void cleanUp() {
 		// delete temporary dir
-		EGEIOUtils.deleteDirectory(tempDirectory);
+		releaseTempDir(tempDirectory);
 
 		// delete zip file
 		if (null != zipFile && zipFile.exists())
@@ -324,12 +358,21 @@ public abstract class ComplexConverter {
 	/**
 	 * Creates a new temp directory
 	 */
-	protected File prepareTempDir() {
-		String tmpDir = EGEConstants.TEMP_PATH;
-		String uid = UUID.randomUUID().toString();
-		File inTempDir = new File(tmpDir + File.separator + uid
-				+ File.separator);
-		inTempDir.mkdir();
-		return inTempDir;
+	protected File prepareTempDir() throws IOException {
+		if (workspace != null) {
+			return workspace.createDir();
+		}
+		return TempSpaceManager.getInstance().createTempDir();
+	}
+
+	/**
+	 * Deletes temp directory created by prepareTempDir()
+	 */
+	protected void releaseTempDir(File dir) {
+		if (workspace != null) {
+			workspace.release(dir);
+		} else {
+			TempSpaceManager.getInstance().release(dir);
+		}
 	}
 }
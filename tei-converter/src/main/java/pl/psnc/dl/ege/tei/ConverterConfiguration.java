@@ -1,9 +1,10 @@
 package pl.psnc.dl.ege.tei;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
 import org.apache.log4j.Logger;
 
 import pl.psnc.dl.ege.types.ConversionActionArguments;
@@ -25,8 +26,6 @@ final class ConverterConfiguration
 	
 	public static final String STYLESHEETS_PATH;
 
-	public static final List<ConversionActionArguments> CONVERSIONS = new ArrayList<ConversionActionArguments>();
-
 	public static final String PROFILE_KEY = "pl.psnc.dl.ege.tei.profileNames";
 
 	public static final String IMAGES_KEY = "oxgarage.getImages";
@@ -40,104 +39,107 @@ final class ConverterConfiguration
 
 	static {
 		STYLESHEETS_PATH = EGEConstants.TEIROOT + "stylesheet" ;
-		File basePath = new File(STYLESHEETS_PATH +  File.separator + "profiles" + File.separator);
-
-		if (basePath.exists()) {
-			for (Format format : Format.values()) {
-				StringBuffer sbParams = new StringBuffer();
-				sbParams.append("<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">");
-				sbParams.append("<properties>");
-				sbParams.append("<entry key=\"");
-				sbParams.append(IMAGES_KEY);
-				sbParams.append("\">");
-				sbParams.append("true,false");
-				sbParams.append("</entry><entry key=\"" + IMAGES_KEY + ".type\">pathBoolean</entry>");
-				sbParams.append("<entry key=\"");
-				sbParams.append(FETCHIMAGES_KEY);
-				sbParams.append("\">");
-				sbParams.append("true,false");
-				sbParams.append("</entry>");
-				sbParams.append("<entry key=\"" + FETCHIMAGES_KEY + ".type\">pathBoolean</entry>");
-				sbParams.append("<entry key=\"");
-				sbParams.append(LANGUAGE_KEY);
-				sbParams.append("\">");
-				sbParams.append("en,de,es,fr,it,kr,ja,zh-tw");
-				sbParams.append("</entry>");
-				sbParams.append("<entry key=\"" + LANGUAGE_KEY + ".type\">array</entry>");
-				sbParams.append("<entry key=\"");
-				sbParams.append(TEXTONLY_KEY);
-				sbParams.append("\">");
-				sbParams.append("true,false");
-				sbParams.append("</entry>");
-				sbParams.append("<entry key=\"" + TEXTONLY_KEY + ".type\">pathBoolean</entry>");
-				sbParams.append("<entry key=\"");
-				sbParams.append(PROFILE_KEY);
-				sbParams.append("\">");
-
-				
-				String[] profileDirNames = basePath.list();
-				Arrays.sort(profileDirNames);
-				List<String> profileNames = new ArrayList<String> (Arrays.asList(profileDirNames));
-				if(profileNames.contains(EGEConstants.DEFAULT_PROFILE)) {
-					profileNames.remove(EGEConstants.DEFAULT_PROFILE);
-					profileNames.add(0, EGEConstants.DEFAULT_PROFILE);
-				}
-				for (String profileName : profileNames) {
-					File profileDir = new File(basePath + File.separator
-							+ profileName + File.separator);
-					for (String profConv : profileDir.list()) {
-						if (profConv.equals(format.getProfile())) {
-							sbParams.append(profileName);
-							sbParams.append(",");
-						}
-					}
+	}
+
+
+	/**
+	 * Creates list of conversions supported by TEI converter for selected
+	 * profiles; each profile is described by names of formats it supports.
+	 * 
+	 * @param profiles
+	 * @return
+	 */
+	static List<ConversionActionArguments> createConversions(Map<String, Set<String>> profiles)
+	{
+		List<ConversionActionArguments> conversions = new ArrayList<ConversionActionArguments>();
+		List<String> profileNames = new ArrayList<String>(profiles.keySet());
+		Collections.sort(profileNames);
+		if(profileNames.contains(EGEConstants.DEFAULT_PROFILE)) {
+			profileNames.remove(EGEConstants.DEFAULT_PROFILE);
+			profileNames.add(0, EGEConstants.DEFAULT_PROFILE);
+		}
+		for (Format format : Format.values()) {
+			StringBuffer sbParams = new StringBuffer();
+			sbParams.append("<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">");
+			sbParams.append("<properties>");
+			sbParams.append("<entry key=\"");
+			sbParams.append(IMAGES_KEY);
+			sbParams.append("\">");
+			sbParams.append("true,false");
+			sbParams.append("</entry><entry key=\"" + IMAGES_KEY + ".type\">pathBoolean</entry>");
+			sbParams.append("<entry key=\"");
+			sbParams.append(FETCHIMAGES_KEY);
+			sbParams.append("\">");
+			sbParams.append("true,false");
+			sbParams.append("</entry>");
+			sbParams.append("<entry key=\"" + FETCHIMAGES_KEY + ".type\">pathBoolean</entry>");
+			sbParams.append("<entry key=\"");
+			sbParams.append(LANGUAGE_KEY);
+			sbParams.append("\">");
+			sbParams.append("en,de,es,fr,it,kr,ja,zh-tw");
+			sbParams.append("</entry>");
+			sbParams.append("<entry key=\"" + LANGUAGE_KEY + ".type\">array</entry>");
+			sbParams.append("<entry key=\"");
+			sbParams.append(TEXTONLY_KEY);
+			sbParams.append("\">");
+			sbParams.append("true,false");
+			sbParams.append("</entry>");
+			sbParams.append("<entry key=\"" + TEXTONLY_KEY + ".type\">pathBoolean</entry>");
+			sbParams.append("<entry key=\"");
+			sbParams.append(PROFILE_KEY);
+			sbParams.append("\">");
+
+			for (String profileName : profileNames) {
+				if (profiles.get(profileName).contains(format.getProfile())) {
+					sbParams.append(profileName);
+					sbParams.append(",");
 				}
-				if(sbParams.charAt(sbParams.length() - 1)==',') sbParams.deleteCharAt(sbParams.length() - 1);
-				sbParams.append("</entry><entry key=\"" + PROFILE_KEY + ".type\">array</entry>");
-				sbParams.append("</properties>");
-				ConversionActionArguments caa = new ConversionActionArguments(
-					      new DataType(format.getFormatName(), XML_MIME, format.getInputDescription(), 
-								EGEConstants.getType(format.getInputType())), 
-					      new DataType(format.getId(), format.getMimeType(), 
-							format.getOutputDescription(), EGEConstants.getType(format.getOutputType())),
+			}
+			if(sbParams.charAt(sbParams.length() - 1)==',') sbParams.deleteCharAt(sbParams.length() - 1);
+			sbParams.append("</entry><entry key=\"" + PROFILE_KEY + ".type\">array</entry>");
+			sbParams.append("</properties>");
+			ConversionActionArguments caa = new ConversionActionArguments(
+				      new DataType(format.getFormatName(), XML_MIME, format.getInputDescription(), 
+							EGEConstants.getType(format.getInputType())), 
+				      new DataType(format.getId(), format.getMimeType(), 
+						format.getOutputDescription(), EGEConstants.getType(format.getOutputType())),
+					sbParams.toString(), format.getVisible(), format.getCost());
+			if (format.equals(Format.XLSX)) { }
+			else
+			    {
+				conversions.add(caa);					
+				LOGGER.debug("registered type " + format.getMimeType());
+			    }
+			if (format.equals(Format.XHTML) || format.equals(Format.DOCX) || format.equals(Format.ODT)) {
+				ConversionActionArguments caa2 = new ConversionActionArguments(
+						new DataType(format.getId(), format.getMimeType(), 
+							format.getOutputDescription(), EGEConstants.TEXTFAMILY),
+						new DataType(format.getFormatName(), XML_MIME, 
+							format.getInputDescription(), EGEConstants.TEXTFAMILY), 
 						sbParams.toString(), format.getVisible(), format.getCost());
-				if (format.equals(Format.XLSX)) { }
-				else
-				    {
-					CONVERSIONS.add(caa);					
-					LOGGER.debug("registered type " + format.getMimeType());
-				    }
-				if (format.equals(Format.XHTML) || format.equals(Format.DOCX) || format.equals(Format.ODT)) {
-					ConversionActionArguments caa2 = new ConversionActionArguments(
-							new DataType(format.getId(), format.getMimeType(), 
-								format.getOutputDescription(), EGEConstants.TEXTFAMILY),
-							new DataType(format.getFormatName(), XML_MIME, 
-								format.getInputDescription(), EGEConstants.TEXTFAMILY), 
-							sbParams.toString(), format.getVisible(), format.getCost());
-					LOGGER.debug("registered alt type " + format.getMimeType());
-					CONVERSIONS.add(caa2);
-				}
-				else if (format.equals(Format.XLSX) ) {
-					ConversionActionArguments caa2 = new ConversionActionArguments(
-							new DataType(format.getId(), format.getMimeType(), 
-								format.getOutputDescription(), EGEConstants.SPREADSHEETFAMILY),
-							new DataType(format.getFormatName(), XML_MIME, 
-								format.getInputDescription(), EGEConstants.SPREADSHEETFAMILY), 
-							sbParams.toString(), format.getVisible(), format.getCost());
-					LOGGER.debug("registered alt type " + format.getMimeType());
-					CONVERSIONS.add(caa2);
-				}
+				LOGGER.debug("registered alt type " + format.getMimeType());
+				conversions.add(caa2);
+			}
+			else if (format.equals(Format.XLSX) ) {
+				ConversionActionArguments caa2 = new ConversionActionArguments(
+						new DataType(format.getId(), format.getMimeType(), 
+							format.getOutputDescription(), EGEConstants.SPREADSHEETFAMILY),
+						new DataType(format.getFormatName(), XML_MIME, 
+							format.getInputDescription(), EGEConstants.SPREADSHEETFAMILY), 
+						sbParams.toString(), format.getVisible(), format.getCost());
+				LOGGER.debug("registered alt type " + format.getMimeType());
+				conversions.add(caa2);
 			}
 		}
-		else {
-			throw new RuntimeException();
-		}
+		return conversions;
 	}
 
 
 	/**
 	 * Check if profile of conversion for chosen formatId exists.
-	 * Returns boolean value of 'true' if profile was found.
+	 * Returns boolean value of 'true' if profile was found.<br/>
+	 * Profiles are looked up in {@link ProfileRegistry}, file system is not
+	 * accessed.
 	 * 
 	 * @param profileName
 	 * @param formatId
@@ -149,10 +151,7 @@ final class ConverterConfiguration
 				|| profileName == null) {
 			return false;
 		}
-		File profile = new File(STYLESHEETS_PATH + File.separator + "profiles"
-				+ File.separator + profileName + File.separator + formatId
-				+ File.separator);
-		return profile.exists();
+		return ProfileRegistry.getInstance().hasProfile(profileName, formatId);
 	}
 
 
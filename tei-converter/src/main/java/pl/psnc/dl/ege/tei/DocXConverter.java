@@ -31,6 +31,8 @@ import org.tei.utils.XMLUtils;
 
 import org.tei.exceptions.ConfigurationException;
 
+import pl.psnc.dl.ege.utils.Workspace;
+
 import org.apache.log4j.Logger;
 
 /**
@@ -56,7 +58,21 @@ public class DocXConverter extends ComplexConverter {
 	 */
 	public DocXConverter (String profile)
 			throws IOException, ConfigurationException {
-		super(profile);
+		this(profile, (Workspace) null);
+	}
+
+	/**
+	 * Constructs converter for conversion from TEI, which keeps its
+	 * temporary files in selected workspace
+	 * 
+	 * @param profile String representing the profile name
+	 * @param workspace workspace of the conversion
+	 * @throws IOException
+	 * @throws ConfigurationException
+	 */
+	public DocXConverter (String profile, Workspace workspace)
+			throws IOException, ConfigurationException {
+		super(profile, workspace);
 		File killFile = new File(tempDirectoryName + File.separator + "word"
 						 + File.separator + "webSettings.xml");
 		killFile.delete();
@@ -66,9 +82,8 @@ public class DocXConverter extends ComplexConverter {
 		File oldStyles = new File (tempDirectoryName + File.separator + "word" + File.separator + "styles.xml");
 		File newStyles = new File (tempDirectoryName + File.separator + "word" + File.separator + "newstyles.xml");
 		Processor proc = SaxonProcFactory.getProcessor();
-		XsltCompiler comp = proc.newXsltCompiler();
 		String stylesheet = new File(ConverterConfiguration.STYLESHEETS_PATH).toString() + File.separator   + "docx" + File.separator + "tools" + File.separator   + "fixstyle.xsl";
-		XsltExecutable exec = comp.compile(new StreamSource(stylesheet));
+		XsltExecutable exec = StylesheetCache.getInstance().getExecutable(new StreamSource(stylesheet));
 		XsltTransformer transformer = exec.load();
 		DocumentBuilder documentBuilder = proc.newDocumentBuilder();
 		FileInputStream fis = new FileInputStream(oldStyles);
@@ -92,9 +107,8 @@ public class DocXConverter extends ComplexConverter {
 		File oldDotrels = new File (tempDirectoryName + File.separator + "_rels" + File.separator + ".rels");
 		File newDotrels = new File (tempDirectoryName + File.separator + "_rels" + File.separator + "newdotrels");
 		Processor proc = SaxonProcFactory.getProcessor();
-		XsltCompiler comp = proc.newXsltCompiler();
 		String stylesheet = new File(ConverterConfiguration.STYLESHEETS_PATH).toString() + File.separator   + "docx" + File.separator + "tools" + File.separator   + "fixdotrels.xsl";
-		XsltExecutable exec = comp.compile(new StreamSource(stylesheet));
+		XsltExecutable exec = StylesheetCache.getInstance().getExecutable(new StreamSource(stylesheet));
 		XsltTransformer transformer = exec.load();
 		DocumentBuilder documentBuilder = proc.newDocumentBuilder();
 		FileInputStream fis = new FileInputStream(oldDotrels);
@@ -146,6 +160,21 @@ public class DocXConverter extends ComplexConverter {
 		super(profile, fileName);
 	}
 
+	/**
+	 * Constructs converter for conversion to TEI, which keeps its
+	 * temporary files in selected workspace
+	 * 
+	 * @param profile String representing the profile name
+	 * @param fileName String holding the name of file we are converting
+	 * @param workspace workspace of the conversion
+	 * @throws IOException
+	 * @throws ConfigurationException
+	 */
+	public DocXConverter (String profile, String fileName, Workspace workspace)
+			throws IOException, ConfigurationException {
+		super(profile, fileName, workspace);
+	}
+
 	/**
 	 * Returns path to the template file
 	 */
@@ -42,6 +42,7 @@ import org.apache.log4j.Logger;
 import org.tei.utils.XMLUtils;
 import org.tei.utils.SaxonProcFactory;
 
+import pl.psnc.dl.ege.ConversionProgress;
 import pl.psnc.dl.ege.exception.ConverterException;
 import pl.psnc.dl.ege.configuration.EGEConstants;
 import pl.psnc.dl.ege.utils.EGEIOUtils;
@@ -120,6 +121,7 @@ public class ImageFetcher {
 					} else {
 						String graphicUrl = graphic.getAttribute("url");
 						File imageFile = fetchImage(graphicUrl, inputDir, outputDir, i + 1, copy, download);
+						ConversionProgress.current().imagesProcessed(i + 1, graphics.getLength());
 						if(imageFile!=null){
 							graphic.setAttribute("url", imgDirRelativeToDoc + imageFile.getName());
 
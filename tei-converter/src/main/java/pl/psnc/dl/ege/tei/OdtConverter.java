@@ -16,6 +16,8 @@ import net.sf.saxon.s9api.XsltTransformer;
 
 import org.tei.exceptions.ConfigurationException;
 
+import pl.psnc.dl.ege.utils.Workspace;
+
 import org.apache.log4j.Logger;
 
 
@@ -45,6 +47,20 @@ public class OdtConverter extends ComplexConverter {
 		super(profile);
 	}
 
+	/**
+	 * Constructs converter for conversion from TEI, which keeps its
+	 * temporary files in selected workspace
+	 * 
+	 * @param profile String representing the profile name
+	 * @param workspace workspace of the conversion
+	 * @throws IOException
+	 * @throws ConfigurationException
+	 */
+	public OdtConverter (String profile, Workspace workspace)
+			throws IOException, ConfigurationException {
+		super(profile, workspace);
+	}
+
 	/**
 	 * Constructs converter for conversion to TEI
 	 * 
@@ -58,6 +74,21 @@ public class OdtConverter extends ComplexConverter {
 		super(profile, fileName);
 	}
 
+	/**
+	 * Constructs converter for conversion to TEI, which keeps its
+	 * temporary files in selected workspace
+	 * 
+	 * @param profile String representing the profile name
+	 * @param fileName String holding the name of file we are converting
+	 * @param workspace workspace of the conversion
+	 * @throws IOException
+	 * @throws ConfigurationException
+	 */
+	public OdtConverter (String profile, String fileName, Workspace workspace)
+			throws IOException, ConfigurationException {
+		super(profile, fileName, workspace);
+	}
+
 	/**
 	 * Returns path to the template file
 	 */
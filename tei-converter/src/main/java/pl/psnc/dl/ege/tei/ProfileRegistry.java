@@ -0,0 +1,235 @@
+package pl.psnc.dl.ege.tei;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.StageCache;
+import pl.psnc.dl.ege.configuration.EGEConfigurationManager;
+import pl.psnc.dl.ege.configuration.EGEConstants;
+import pl.psnc.dl.ege.types.ConversionActionArguments;
+
+/**
+ * In-memory registry of TEI conversion profiles.<br/><br/>
+ *
+ * Every subdirectory of STYLESHEETS_PATH/profiles is a profile, its
+ * subdirectories are formats supported by the profile. Registry answers
+ * profile lookups and keeps possible conversions of TEI converter without
+ * accessing the file system.<br/><br/>
+ *
+ * Profiles directory is rescanned in background every
+ * <i>profileScanInterval</i> milliseconds (oxgarage.properties, 0 - disabled,
+ * default: 10 seconds); only modification times of directories and of
+ * stylesheets placed directly in format directories are read. When
+ * stylesheets of a format change, their compiled versions are removed from
+ * {@link StylesheetCache}; when profiles or formats are added or removed,
+ * new list of possible conversions is published at once.<br/>
+ *
+ * Implemented as Singleton.
+ */
+final class ProfileRegistry {
+
+	private static final Logger LOGGER = Logger.getLogger(ProfileRegistry.class);
+
+	/**
+	 * Default interval between scans of profiles directory : 10 seconds.
+	 */
+	public static final long DEFAULT_SCAN_INTERVAL = 10L * 1000;
+
+	private final File profilesDir;
+
+	/*
+	 * Current state of profiles - replaced as a whole, never modified.
+	 */
+	private volatile Snapshot snapshot;
+
+	private static class ProfileRegistryHolder {
+		private static final ProfileRegistry INSTANCE = new ProfileRegistry();
+	}
+
+	private ProfileRegistry() {
+		profilesDir = new File(ConverterConfiguration.STYLESHEETS_PATH + File.separator + "profiles");
+		if (!profilesDir.exists()) {
+			throw new RuntimeException("Profiles directory not found : " + profilesDir);
+		}
+		snapshot = scan(null);
+		long interval = EGEConstants.getLongProperty("profileScanInterval", DEFAULT_SCAN_INTERVAL);
+		if (interval > 0) {
+			ScheduledExecutorService watcher = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "ege-profile-watcher");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			watcher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						refresh();
+					} catch (Throwable t) {
+						LOGGER.error("Scan of profiles failed", t);
+					}
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public static ProfileRegistry getInstance() {
+		return ProfileRegistryHolder.INSTANCE;
+	}
+
+	/**
+	 * Returns 'true' if profile supports format of selected name.
+	 *
+	 * @param profileName
+	 * @param formatId name of format directory
+	 * @return
+	 */
+	public boolean hasProfile(String profileName, String formatId) {
+		if (profileName == null || formatId == null) {
+			return false;
+		}
+		Set<String> formats = snapshot.profiles.get(profileName);
+		return formats != null && formats.contains(formatId);
+	}
+
+	/**
+	 * Returns directory of stylesheets of profile for selected format.
+	 *
+	 * @param profileName
+	 * @param formatId name of format directory
+	 * @return
+	 */
+	public File getProfileDir(String profileName, String formatId) {
+		return new File(profilesDir, profileName + File.separator + formatId);
+	}
+
+	/**
+	 * Returns names of registered profiles.
+	 */
+	public List<String> getProfileNames() {
+		return new ArrayList<String>(snapshot.profiles.keySet());
+	}
+
+	/**
+	 * Returns unmodifiable list of conversions possible with registered
+	 * profiles.
+	 */
+	public List<ConversionActionArguments> getConversions() {
+		return snapshot.conversions;
+	}
+
+	/**
+	 * Rescans profiles directory and publishes changes.
+	 */
+	synchronized void refresh() {
+		Snapshot previous = snapshot;
+		snapshot = scan(previous);
+		if (snapshot.conversions != previous.conversions) {
+			// EGE builds its graph of conversions again
+			EGEConfigurationManager.getInstance().conversionsChanged();
+		}
+	}
+
+	/*
+	 * Reads profiles directory; returns previous snapshot if nothing has
+	 * changed.
+	 */
+	private Snapshot scan(Snapshot previous) {
+		Map<String, Set<String>> profiles = new HashMap<String, Set<String>>();
+		Map<String, Long> stamps = new HashMap<String, Long>();
+		File[] profileDirs = profilesDir.listFiles();
+		if (profileDirs != null) {
+			for (File profileDir : profileDirs) {
+				String[] entries = profileDir.list();
+				if (entries == null) {
+					continue;
+				}
+				Set<String> formats = new HashSet<String>();
+				for (String entry : entries) {
+					formats.add(entry);
+					File formatDir = new File(profileDir, entry);
+					if (formatDir.isDirectory()) {
+						stamps.put(formatDir.getAbsolutePath(), Long.valueOf(stamp(formatDir)));
+					}
+				}
+				profiles.put(profileDir.getName(), Collections.unmodifiableSet(formats));
+			}
+		}
+		if (previous == null) {
+			LOGGER.debug("Registered profiles : " + profiles.keySet());
+			return new Snapshot(profiles, stamps,
+					ConverterConfiguration.createConversions(profiles));
+		}
+		boolean changed = false;
+		Set<String> dirs = new HashSet<String>(previous.stamps.keySet());
+		dirs.addAll(stamps.keySet());
+		for (String dir : dirs) {
+			Long before = previous.stamps.get(dir);
+			if (before == null || !before.equals(stamps.get(dir))) {
+				LOGGER.debug("Stylesheets changed in : " + dir);
+				StylesheetCache.getInstance().invalidate(new File(dir));
+				changed = true;
+			}
+		}
+		if (changed) {
+			// intermediate results of old stylesheets
+			StageCache.getInstance().clear();
+		}
+		if (profiles.equals(previous.profiles)) {
+			return changed ? new Snapshot(previous.profiles, stamps,
+					previous.conversions) : previous;
+		}
+		LOGGER.info("Profiles changed, registered profiles : " + profiles.keySet());
+		return new Snapshot(profiles, stamps,
+				ConverterConfiguration.createConversions(profiles));
+	}
+
+	/*
+	 * Latest modification time of directory and files placed in it.
+	 */
+	private static long stamp(File dir) {
+		long stamp = dir.lastModified();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile()) {
+					stamp = Math.max(stamp, file.lastModified());
+				}
+			}
+		}
+		return stamp;
+	}
+
+	/*
+	 * Inner class : immutable state of profiles.
+	 */
+	private static class Snapshot {
+
+		private final Map<String, Set<String>> profiles;
+
+		private final Map<String, Long> stamps;
+
+		private final List<ConversionActionArguments> conversions;
+
+		public Snapshot(Map<String, Set<String>> profiles, Map<String, Long> stamps,
+				List<ConversionActionArguments> conversions) {
+			this.profiles = Collections.unmodifiableMap(profiles);
+			this.stamps = stamps;
+			this.conversions = Collections.unmodifiableList(conversions);
+		}
+
+	}
+}
@@ -0,0 +1,183 @@
+package pl.psnc.dl.ege.tei;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+
+import org.apache.log4j.Logger;
+import org.tei.utils.SaxonProcFactory;
+
+/**
+ * Keeps compiled TEI stylesheets.<br/>
+ * Each stylesheet is compiled once, by the first thread that needs it;
+ * other threads asking for the same stylesheet wait for the result.
+ * Compiled stylesheets are thread-safe and shared by all conversions.
+ */
+final class StylesheetCache {
+
+	private static final Logger LOGGER = Logger.getLogger(StylesheetCache.class);
+
+	/*
+	 * Prefix of keys of stylesheets compiled with TEIConverterURIResolver.
+	 */
+	private static final String RESOLVED = "resolved:";
+
+	private final ConcurrentMap<String, FutureTask<XsltExecutable>> cache = new ConcurrentHashMap<String, FutureTask<XsltExecutable>>();
+
+	private static class StylesheetCacheHolder {
+		private static final StylesheetCache INSTANCE = new StylesheetCache();
+	}
+
+	private StylesheetCache() {
+
+	}
+
+	public static StylesheetCache getInstance() {
+		return StylesheetCacheHolder.INSTANCE;
+	}
+
+	/**
+	 * Returns compiled stylesheet read from file; includes and imports of
+	 * the stylesheet are resolved with selected URI resolver.
+	 *
+	 * @param stylesheet
+	 * @param resolver
+	 * @return
+	 * @throws IOException
+	 * @throws SaxonApiException
+	 */
+	public XsltExecutable getExecutable(final File stylesheet,
+			final URIResolver resolver) throws IOException, SaxonApiException {
+		return get(RESOLVED + stylesheet.getAbsolutePath(),
+				new Callable<XsltExecutable>() {
+					public XsltExecutable call() throws Exception {
+						XsltCompiler comp = SaxonProcFactory.getProcessor()
+								.newXsltCompiler();
+						comp.setURIResolver(resolver);
+						InputStream is = new FileInputStream(stylesheet);
+						try {
+							return comp.compile(new StreamSource(is));
+						} finally {
+							is.close();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Returns compiled stylesheet from source; source without system id
+	 * is compiled every time.
+	 *
+	 * @param source
+	 * @return
+	 * @throws IOException
+	 * @throws SaxonApiException
+	 */
+	public XsltExecutable getExecutable(final StreamSource source)
+			throws IOException, SaxonApiException {
+		Callable<XsltExecutable> compilation = new Callable<XsltExecutable>() {
+			public XsltExecutable call() throws Exception {
+				return SaxonProcFactory.getProcessor().newXsltCompiler()
+						.compile(source);
+			}
+		};
+		if (source.getSystemId() == null) {
+			try {
+				return compilation.call();
+			} catch (SaxonApiException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new IOException(ex.getMessage());
+			}
+		}
+		return get(normalize(source.getSystemId()), compilation);
+	}
+
+	/*
+	 * Plain paths and file URIs of the same stylesheet give the same key.
+	 */
+	private static String normalize(String systemId) {
+		if (systemId.startsWith("file:")) {
+			return systemId;
+		}
+		return new File(systemId).toURI().toString();
+	}
+
+	/**
+	 * Removes compiled stylesheets, which files are placed in selected
+	 * directory (or its subdirectories).
+	 *
+	 * @param dir
+	 */
+	public void invalidate(File dir) {
+		String path = dir.getAbsolutePath();
+		String uri = dir.toURI().toString();
+		for (Iterator<String> it = cache.keySet().iterator(); it.hasNext();) {
+			String key = it.next();
+			if (key.startsWith(RESOLVED + path) || key.startsWith(uri)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all compiled stylesheets.
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Returns number of kept stylesheets.
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	private XsltExecutable get(String key, Callable<XsltExecutable> compilation)
+			throws IOException, SaxonApiException {
+		FutureTask<XsltExecutable> task = cache.get(key);
+		if (task == null) {
+			FutureTask<XsltExecutable> newTask = new FutureTask<XsltExecutable>(
+					compilation);
+			task = cache.putIfAbsent(key, newTask);
+			if (task == null) {
+				task = newTask;
+				LOGGER.debug("Compiling stylesheet : " + key);
+				task.run();
+			}
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compiling stylesheet " + key);
+		} catch (ExecutionException ex) {
+			// failed compilation is not kept
+			cache.remove(key, task);
+			Throwable cause = ex.getCause();
+			if (cause instanceof SaxonApiException) {
+				throw (SaxonApiException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause == null ? ex.getMessage() : cause
+					.getMessage());
+		}
+	}
+}
@@ -9,10 +9,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Arrays;
-import java.util.UUID;
 import java.util.regex.Pattern;
 import java.util.zip.ZipFile;
 
@@ -34,12 +34,14 @@ import net.sf.saxon.s9api.XdmNode;
 import org.xml.sax.ErrorHandler;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.log4j.Logger;
 import org.tei.exceptions.ConfigurationException;
 import org.tei.tei.DocXTransformationProperties;
 import org.tei.utils.SaxonProcFactory;
 
 import pl.psnc.dl.ege.component.Converter;
+import pl.psnc.dl.ege.component.WarmableConverter;
 import pl.psnc.dl.ege.configuration.EGEConfigurationManager;
 import pl.psnc.dl.ege.configuration.EGEConstants;
 import pl.psnc.dl.ege.exception.ConverterException;
@@ -47,6 +49,8 @@ import pl.psnc.dl.ege.types.ConversionActionArguments;
 import pl.psnc.dl.ege.types.DataType;
 import pl.psnc.dl.ege.utils.EGEIOUtils;
 import pl.psnc.dl.ege.utils.IOResolver;
+import pl.psnc.dl.ege.utils.Workspace;
+import pl.psnc.dl.ege.utils.ZipIOResolver;
 
 
 import com.thaiopensource.relaxng.edit.SchemaCollection;
@@ -83,7 +87,7 @@ import org.xml.sax.SAXParseException;
  * @author mariuszs
  * 
  */
-public class TEIConverter implements Converter,ErrorHandler {
+public class TEIConverter implements WarmableConverter,ErrorHandler {
 	
 	private static final String EX_NO_FILE_DATA_WAS_FOUND = "No file data was found for conversion";
 
@@ -141,17 +145,24 @@ public class TEIConverter implements Converter,ErrorHandler {
 		DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 		Date date = new Date();
 		try {
-			for (ConversionActionArguments cadt : ConverterConfiguration.CONVERSIONS) {
+			for (ConversionActionArguments cadt : getPossibleConversions()) {
 				if (conversionDataTypes.equals(cadt)) {
-					String profile = cadt.getProperties().get(
+					// parameters of this conversion are set on its own arguments
+					String profile = conversionDataTypes.getProperties().get(
 							ConverterConfiguration.PROFILE_KEY);
 					LOGGER.info(dateFormat.format(date) + ": Converting FROM:  "
 						    + conversionDataTypes.getInputType().toString()
 						    + " TO "
 						    + conversionDataTypes.getOutputType().toString()
 						    + " WITH profile " + profile );
-					convertDocument(inputStream, outputStream, cadt.getInputType(), cadt.getOutputType(),
-							cadt.getProperties());
+					Workspace workspace = Workspace.open(inputStream);
+					try {
+						convertDocument(workspace.getInputStream(), outputStream,
+								cadt.getInputType(), cadt.getOutputType(),
+								conversionDataTypes.getProperties(), workspace);
+					} finally {
+						workspace.close();
+					}
 					found = true;
 				}
 			}
@@ -182,7 +193,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 	 * Prepares transformation : based on MIME type.
 	 */
 	private void convertDocument(InputStream inputStream, OutputStream outputStream,
-			DataType fromDataType, DataType toDataType, Map<String, String> properties) throws IOException,
+			DataType fromDataType, DataType toDataType, Map<String, String> properties, Workspace workspace) throws IOException,
 			SaxonApiException, ConfigurationException, ConverterException {
 		String toMimeType = toDataType.getMimeType();
 		String profile = properties.get(ConverterConfiguration.PROFILE_KEY);
@@ -196,7 +207,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 				LOGGER.debug(ConverterConfiguration.PROFILE_NOT_FOUND_MSG);
 				profile = EGEConstants.DEFAULT_PROFILE;
 			}
-			transformFromDocX(inputStream, outputStream, profile, properties);
+			transformFromDocX(inputStream, outputStream, profile, properties, workspace);
 		}
 		// from XlSX to TEI
 		else if (ConverterConfiguration.XML_MIME.equals(toMimeType)
@@ -207,7 +218,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 				LOGGER.debug(ConverterConfiguration.PROFILE_NOT_FOUND_MSG);
 				profile = EGEConstants.DEFAULT_PROFILE;
 			}
-			transformFromXlsX(inputStream, outputStream, profile, properties);
+			transformFromXlsX(inputStream, outputStream, profile, properties, workspace);
 		}
 		// from HTML to TEI
 		else if (ConverterConfiguration.XML_MIME.equals(toMimeType)
@@ -219,7 +230,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 				profile = EGEConstants.DEFAULT_PROFILE;
 			}
 			properties.put("extension", "xml");
-			performXsltTransformation(inputStream, outputStream, Format.XHTML.getProfile(), profile, "from", properties);
+			performXsltTransformation(inputStream, outputStream, Format.XHTML.getProfile(), profile, "from", properties, workspace);
 		}
 		// from TEI to DOCX
 		else if (Format.DOCX.getMimeType().equals(toMimeType)) {
@@ -230,7 +241,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			Processor proc = SaxonProcFactory.getProcessor();
 			XsltCompiler comp = proc.newXsltCompiler();
-			transformToDocX(inputStream, outputStream, proc, comp, profile, properties);
+			transformToDocX(inputStream, outputStream, proc, comp, profile, properties, workspace);
 		}
 		// from ODT to TEI
 		else if (ConverterConfiguration.XML_MIME.equals(toMimeType)
@@ -241,7 +252,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 				LOGGER.debug(ConverterConfiguration.PROFILE_NOT_FOUND_MSG);
 				profile = EGEConstants.DEFAULT_PROFILE;
 			}
-			transformFromOdt(inputStream, outputStream, profile, properties);
+			transformFromOdt(inputStream, outputStream, profile, properties, workspace);
 		}
 		// from TEI to ODT
 		else if (Format.ODT.getMimeType().equals(toMimeType)) {
@@ -252,7 +263,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			Processor proc = SaxonProcFactory.getProcessor();
 			XsltCompiler comp = proc.newXsltCompiler();
-			transformToOdt(inputStream, outputStream, proc, comp, profile, properties);
+			transformToOdt(inputStream, outputStream, proc, comp, profile, properties, workspace);
 		}
 		// TEI to HTML for ODD
 		else if (Format.ODDHTML.getMimeType().equals(toMimeType)
@@ -264,7 +275,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "html");
 			performXsltTransformation(inputStream, outputStream, Format.ODDHTML
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to XHTML
 		else if (Format.XHTML.getMimeType().equals(toMimeType)) {
@@ -275,7 +286,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "html");
 			performXsltTransformation(inputStream, outputStream, Format.XHTML
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to RELAXNG
 		else if (Format.RELAXNG.getMimeType().equals(toMimeType)) {
@@ -286,7 +297,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "rng");
 			performXsltTransformation(inputStream, outputStream, Format.RELAXNG
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to RNC
 		else if (Format.RNC.getMimeType().equals(toMimeType)
@@ -299,7 +310,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			properties.put("extension", "rnc");
 			try {
 			    generateRngThenTrang(inputStream, outputStream, Format.RELAXNG
-							       .getProfile(), profile, properties);
+							       .getProfile(), profile, properties, workspace);
 			}
 			catch (Exception e) {
 				throw new IOException("to RNG then Trang to make RNC failed: " + e.toString());
@@ -316,7 +327,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			properties.put("extension", "zip");
 			try {
 			    generateRngThenTrang(inputStream, outputStream, Format.RELAXNG
-							       .getProfile(), profile, properties);
+							       .getProfile(), profile, properties, workspace);
 			}
 			catch (Exception e) {
 				throw new IOException("to RNG then Trang to make XSD failed: " + e.toString());
@@ -332,7 +343,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "dtd");
 			performXsltTransformation(inputStream, outputStream, Format.DTD
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to LITE
 		else if (Format.LITE.getMimeType().equals(toMimeType) 
@@ -344,7 +355,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "xml");
 			performXsltTransformation(inputStream, outputStream, Format.LITE
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to LATEX
 		else if (Format.LATEX.getMimeType().equals(toMimeType)) {
@@ -355,7 +366,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "tex");
 			performXsltTransformation(inputStream, outputStream, Format.LATEX
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to ODDJSON
 		else if (Format.ODDJSON.getMimeType().equals(toMimeType)) {
@@ -366,7 +377,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "json");
 			performXsltTransformation(inputStream, outputStream, Format.ODDJSON
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to FO
 		else if (Format.FO.getMimeType().equals(toMimeType)) {
@@ -378,7 +389,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "fo");
 			performXsltTransformation(inputStream, outputStream, Format.FO
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to EPUB
 		else if (Format.EPUB.getMimeType().equals(toMimeType)) {
@@ -387,7 +398,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 				LOGGER.debug(ConverterConfiguration.PROFILE_NOT_FOUND_MSG);
 				profile = EGEConstants.DEFAULT_PROFILE;
 			}
-			transformToEpub(inputStream, outputStream, profile, Format.EPUB.getProfile(), properties);
+			transformToEpub(inputStream, outputStream, profile, Format.EPUB.getProfile(), properties, workspace);
 		}
 		// TEI to TEXT
 		else if (Format.TEXT.getMimeType().equals(toMimeType)
@@ -399,7 +410,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "txt");
 			performXsltTransformation(inputStream, outputStream, Format.TEXT
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to identity XML
 		else if (Format.XML.getMimeType().equals(toMimeType)
@@ -411,7 +422,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "xml");
 			performXsltTransformation(inputStream, outputStream, Format.XML
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
 		// TEI to RDF
 		else if (Format.RDF.getMimeType().equals(toMimeType)
@@ -423,7 +434,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			}
 			properties.put("extension", "rdf");
 			performXsltTransformation(inputStream, outputStream, Format.RDF
-					.getProfile(), profile,"to", properties);
+					.getProfile(), profile,"to", properties, workspace);
 		}
        
 	}
@@ -481,13 +492,8 @@ public class TEIConverter implements Converter,ErrorHandler {
 		return null;
 	}
 	
-	private File prepareTempDir() {
-		File inTempDir = null;
-		String uid = UUID.randomUUID().toString();
-		inTempDir = new File(EGEConstants.TEMP_PATH + File.separator + uid
-				+ File.separator);
-		inTempDir.mkdir();
-		return inTempDir;
+	private File prepareTempDir(Workspace workspace) throws IOException {
+		return workspace.createDir();
 	}
 
 	/**
@@ -517,7 +523,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 	 * Performs transformation with XSLT 
 	 */
 	private void performXsltTransformation(InputStream inputStream,
-					       OutputStream outputStream, String id, String profile, String direction, Map<String, String> properties)
+					       OutputStream outputStream, String id, String profile, String direction, Map<String, String> properties, Workspace workspace)
 			throws IOException, SaxonApiException, ConverterException {
 		FileOutputStream fos = null;
 		InputStream is = null;
@@ -525,22 +531,33 @@ public class TEIConverter implements Converter,ErrorHandler {
 		File outTempDir = null;
 		File outputDir = null;
 		try {
-			inTmpDir = prepareTempDir();
+			inTmpDir = prepareTempDir(workspace);
 			ior.decompressStream(inputStream, inTmpDir);
 			// avoid processing files ending in .bin
 			File inputFile = searchForData(inTmpDir, "^.*(?<!bin)$");
 			if(inputFile!=null) {
-			outTempDir = prepareTempDir();
+			outTempDir = prepareTempDir(workspace);
 			is = prepareInputData(inputStream, inTmpDir, inputFile);
 			Processor proc = SaxonProcFactory.getProcessor();
-			XsltCompiler comp = proc.newXsltCompiler();
 			// get images and correct graphics tags
 			XdmNode initialNode = getImages(inTmpDir.toString(), outTempDir.toString(), "media" + File.separator, 
 							"media" + File.separator, inputFile, proc, is, "Xslt", properties);
 			String extension = properties.get("extension");
-			File resFile = new File(outTempDir + File.separator + "document." + extension);
-			fos = new FileOutputStream(resFile);
-			XsltExecutable exec = comp.compile(resolveConfiguration(id, comp, profile, direction));
+			ZipOutputStream zipOs = null;
+			String[] media = outTempDir.list();
+			if (EGEConstants.STREAM_SINGLE_FILES && (media == null || media.length == 0)) {
+				// document without media is written straight into archive -
+				// client can receive it while it is transformed
+				zipOs = new ZipOutputStream(new BufferedOutputStream(outputStream));
+				if (ior instanceof ZipIOResolver) {
+					zipOs.setLevel(((ZipIOResolver) ior).getLevel());
+				}
+				zipOs.putNextEntry(EGEIOUtils.createSingleFileEntry("document." + extension));
+			} else {
+				File resFile = new File(outTempDir + File.separator + "document." + extension);
+				fos = new FileOutputStream(resFile);
+			}
+			XsltExecutable exec = getStylesheet(id, profile, direction);
 			XsltTransformer transformer = exec.load();
 			if(properties.get(ConverterConfiguration.LANGUAGE_KEY)!=null) 
 			    {
@@ -552,10 +569,16 @@ public class TEIConverter implements Converter,ErrorHandler {
 			setTransformationParameters(transformer, id);
 			transformer.setInitialContextNode(initialNode);
 			Serializer result = new Serializer();
-			result.setOutputStream(fos);
+			// archive is finished below, even if serializer closes its stream
+			result.setOutputStream(zipOs != null ? new CloseShieldOutputStream(zipOs) : fos);
 			transformer.setDestination(result);
 			transformer.transform();
-			ior.compressData(outTempDir, outputStream);
+			if (zipOs != null) {
+				zipOs.closeEntry();
+				zipOs.close();
+			} else {
+				ior.compressData(outTempDir, outputStream);
+			}
 			}
 		} finally {
 			try {
@@ -568,10 +591,8 @@ public class TEIConverter implements Converter,ErrorHandler {
 			} catch (Exception ex) {
 				// do nothing
 			}
-			if (outTempDir != null && outTempDir.exists())
-				EGEIOUtils.deleteDirectory(outTempDir);
-			if (inTmpDir != null && inTmpDir.exists())
-				EGEIOUtils.deleteDirectory(inTmpDir);
+			workspace.release(outTempDir);
+			workspace.release(inTmpDir);
 			}
 	}
 
@@ -580,7 +601,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 	 * Performs transformation over XSLT to make RNG schema, then runs trang
 	 */
 	private void generateRngThenTrang(InputStream inputStream,
-							OutputStream outputStream, String id, String profile, Map<String, String> properties)
+							OutputStream outputStream, String id, String profile, Map<String, String> properties, Workspace workspace)
 	    throws IOException, SaxonApiException, ConverterException, InputFailedException, SAXException, OutputFailedException, InvalidParamsException {
 		FileOutputStream fos = null;
 		InputStream is = null;
@@ -588,13 +609,12 @@ public class TEIConverter implements Converter,ErrorHandler {
 		File outTempDir = null;
 		File outputDir = null;
 		try {
-			inTmpDir = prepareTempDir();
+			inTmpDir = prepareTempDir(workspace);
 			ior.decompressStream(inputStream, inTmpDir);
 			File inputFile = searchForData(inTmpDir, "^.*");
-			outTempDir = prepareTempDir();
+			outTempDir = prepareTempDir(workspace);
 			is = prepareInputData(inputStream, inTmpDir, inputFile);
 			Processor proc = SaxonProcFactory.getProcessor();
-			XsltCompiler comp = proc.newXsltCompiler();
 			// get images and correct graphics tags
 			XdmNode initialNode = getImages(inTmpDir.toString(), outTempDir.toString(), "media" + File.separator, 
 							"media" + File.separator, inputFile, proc, is, "Xslt", properties);
@@ -606,7 +626,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			File inFile = new File(outTempDir + File.separator + "document.rng");
 			File outFile = new File(outTempDir + File.separator + "document." + realextension);
 			fos = new FileOutputStream(inFile);
-			XsltExecutable exec = comp.compile(resolveConfiguration(id, comp, profile, "to"));
+			XsltExecutable exec = getStylesheet(id, profile, "to");
 			XsltTransformer transformer = exec.load();
 			if(properties.get(ConverterConfiguration.LANGUAGE_KEY)!=null) 
 			    {
@@ -663,10 +683,8 @@ public class TEIConverter implements Converter,ErrorHandler {
 			} catch (Exception ex) {
 				// do nothing
 			}
-			if (outTempDir != null && outTempDir.exists())
-				EGEIOUtils.deleteDirectory(outTempDir);
-			if (inTmpDir != null && inTmpDir.exists())
-				EGEIOUtils.deleteDirectory(inTmpDir);
+			workspace.release(outTempDir);
+			workspace.release(inTmpDir);
 		}
 
 	}
@@ -697,12 +715,12 @@ public class TEIConverter implements Converter,ErrorHandler {
 	 * Performs from XlsX to TEI transformation
 	 */
 	private void transformFromXlsX(InputStream is, OutputStream os,
-			String profile, Map<String, String> properties) throws IOException, SaxonApiException,
+			String profile, Map<String, String> properties, Workspace workspace) throws IOException, SaxonApiException,
 			ConfigurationException, ConverterException {
-		File tmpDir = prepareTempDir();
+		File tmpDir = prepareTempDir(workspace);
 		InputStream fis = null;
 		String fileName = properties.get("fileName");
-		ComplexConverter xlsX = new XlsXConverter(profile, fileName);
+		ComplexConverter xlsX = new XlsXConverter(profile, fileName, workspace);
 		try {
 			ior.decompressStream(is, tmpDir);
 			// should contain only single file
@@ -724,7 +742,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 				}
 			}
 			if (tmpDir != null) {
-				EGEIOUtils.deleteDirectory(tmpDir);
+				workspace.release(tmpDir);
 			}
 			if(xlsX != null){
 				xlsX.cleanUp();
@@ -735,12 +753,12 @@ public class TEIConverter implements Converter,ErrorHandler {
 	 * Performs from DocX to TEI transformation
 	 */
 	private void transformFromDocX(InputStream is, OutputStream os,
-			String profile, Map<String, String> properties) throws IOException, SaxonApiException,
+			String profile, Map<String, String> properties, Workspace workspace) throws IOException, SaxonApiException,
 			ConfigurationException, ConverterException {
-		File tmpDir = prepareTempDir();
+		File tmpDir = prepareTempDir(workspace);
 		InputStream fis = null;
 		String fileName = properties.get("fileName");
-		ComplexConverter docX = new DocXConverter(profile, fileName);
+		ComplexConverter docX = new DocXConverter(profile, fileName, workspace);
 		try {
 			ior.decompressStream(is, tmpDir);
 			// should contain only single file
@@ -762,7 +780,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 				}
 			}
 			if (tmpDir != null) {
-				EGEIOUtils.deleteDirectory(tmpDir);
+				workspace.release(tmpDir);
 			}
 			if(docX != null){
 				docX.cleanUp();
@@ -774,18 +792,18 @@ public class TEIConverter implements Converter,ErrorHandler {
 	 * Performs From TEI to DocX transformation
 	 */
 	private void transformToDocX(InputStream is, OutputStream os,
-			Processor proc, XsltCompiler comp, final String profile, Map<String, String> properties)
+			Processor proc, XsltCompiler comp, final String profile, Map<String, String> properties, Workspace workspace)
 			throws IOException, SaxonApiException, ConfigurationException,
 			ConverterException {
-		File inTmpDir = prepareTempDir();
-		File outTmpDir = prepareTempDir();
+		File inTmpDir = prepareTempDir(workspace);
+		File outTmpDir = prepareTempDir(workspace);
 		ior.decompressStream(is, inTmpDir);
 		File inputFile = searchForData(inTmpDir, "^.*");
 		InputStream inputStream = prepareInputData(is, inTmpDir, inputFile);
 		ComplexConverter docX = null;
 		FileOutputStream fos = null;
 		try {
-			docX = new DocXConverter(profile);
+			docX = new DocXConverter(profile, workspace);
 			// get images and correct graphics tags
 			XdmNode initialNode = getImages(inTmpDir.toString(), docX.getDirectoryName(), docX.getImagesDirectoryName(), 
 						docX.getImagesDirectoryNameRelativeToDocument(), inputFile, proc, inputStream, "toDocx", properties);
@@ -816,18 +834,18 @@ public class TEIConverter implements Converter,ErrorHandler {
 			if(docX != null){
 				docX.cleanUp();
 			}
-			EGEIOUtils.deleteDirectory(inTmpDir);
-			EGEIOUtils.deleteDirectory(outTmpDir);
+			workspace.release(inTmpDir);
+			workspace.release(outTmpDir);
 		}
 	}
 
 	private void transformFromOdt(InputStream is, OutputStream os,
-			String profile, Map<String, String> properties) throws IOException, SaxonApiException,
+			String profile, Map<String, String> properties, Workspace workspace) throws IOException, SaxonApiException,
 			ConfigurationException, ConverterException {
-		File tmpDir = prepareTempDir();
+		File tmpDir = prepareTempDir(workspace);
 		InputStream fis = null;
 		String fileName = properties.get("fileName");
-		ComplexConverter odt = new OdtConverter(profile, fileName);
+		ComplexConverter odt = new OdtConverter(profile, fileName, workspace);
 		try {
 			ior.decompressStream(is, tmpDir);
 			// should contain only single file
@@ -849,7 +867,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 				}
 			}
 			if (tmpDir != null) {
-				EGEIOUtils.deleteDirectory(tmpDir);
+				workspace.release(tmpDir);
 			}
 			if(odt != null){
 				odt.cleanUp();
@@ -858,11 +876,11 @@ public class TEIConverter implements Converter,ErrorHandler {
 	}
 
 	private void transformToOdt(InputStream is, OutputStream os,
-			Processor proc, XsltCompiler comp, final String profile, Map<String, String> properties)
+			Processor proc, XsltCompiler comp, final String profile, Map<String, String> properties, Workspace workspace)
 			throws IOException, SaxonApiException, ConfigurationException,
 			ConverterException {
-		File inTmpDir = prepareTempDir();
-		File outTmpDir = prepareTempDir();
+		File inTmpDir = prepareTempDir(workspace);
+		File outTmpDir = prepareTempDir(workspace);
 		ior.decompressStream(is, inTmpDir);
 		File inputFile = searchForData(inTmpDir, "^.*");
 		InputStream inputStream = prepareInputData(is, inTmpDir, inputFile);
@@ -870,7 +888,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 		FileOutputStream fos = null;
 		// assign properties
 		try {
-			odt = new OdtConverter(profile);
+			odt = new OdtConverter(profile, workspace);
 			// get images and correct graphics tags
 			XdmNode initialNode = getImages(inTmpDir.toString(), odt.getDirectoryName(), odt.getImagesDirectoryName(), 
 						odt.getImagesDirectoryNameRelativeToDocument(), inputFile, proc, inputStream, "toOdt", properties);
@@ -900,13 +918,13 @@ public class TEIConverter implements Converter,ErrorHandler {
 			if(odt != null){
 				odt.cleanUp();
 			}
-			EGEIOUtils.deleteDirectory(inTmpDir);
-			EGEIOUtils.deleteDirectory(outTmpDir);
+			workspace.release(inTmpDir);
+			workspace.release(outTmpDir);
 		}
 	}
 
 	public void transformToEpub(InputStream inputStream, OutputStream outputStream,
-			final String profile, String id, Map<String, String> properties)
+			final String profile, String id, Map<String, String> properties, Workspace workspace)
 			throws IOException, SaxonApiException, ConfigurationException,
 			ConverterException {
 		FileOutputStream fos = null;
@@ -915,17 +933,16 @@ public class TEIConverter implements Converter,ErrorHandler {
 		File outTempDir = null;
 		File outputDir = null;
 		try {
-			inTmpDir = prepareTempDir();
+			inTmpDir = prepareTempDir(workspace);
 			ior.decompressStream(inputStream, inTmpDir);
 			File inputFile = searchForData(inTmpDir, "^.*");
-			outTempDir = prepareTempDir();
+			outTempDir = prepareTempDir(workspace);
 			is = prepareInputData(inputStream, inTmpDir, inputFile);
 			Processor proc = SaxonProcFactory.getProcessor();
-			XsltCompiler comp = proc.newXsltCompiler();
 			// get images and correct graphics tags
 			XdmNode initialNode = getImages(inTmpDir.toString(), outTempDir.toString(), "OPS" + File.separator + "media" + 
 							File.separator, "media" + File.separator, inputFile, proc, is, "toEpub", properties);
-			XsltExecutable exec = comp.compile(resolveConfiguration(id, comp, profile,"to"));
+			XsltExecutable exec = getStylesheet(id, profile, "to");
 			XsltTransformer transformer = exec.load();
 			String dirname = outTempDir.toURI().toString();
 			transformer.setParameter(new QName("directory"), new XdmAtomicValue(dirname));
@@ -941,7 +958,7 @@ public class TEIConverter implements Converter,ErrorHandler {
 			Serializer result = new Serializer();
 			transformer.setDestination(result);
 			transformer.transform();
-			outputDir = prepareTempDir();
+			outputDir = prepareTempDir(workspace);
 			File oEpubFile = new File(outputDir.getAbsolutePath() + File.separator + "result.epub");
 			fos = new FileOutputStream(oEpubFile);
 			// pack directory to final Epub file
@@ -973,12 +990,9 @@ public class TEIConverter implements Converter,ErrorHandler {
 					// do nothing
 				}
 			}
-			if (outTempDir != null && outTempDir.exists())
-				EGEIOUtils.deleteDirectory(outTempDir);
-			if (inTmpDir != null && inTmpDir.exists())
-				EGEIOUtils.deleteDirectory(inTmpDir);
-			if (outputDir != null && outputDir.exists())
-				EGEIOUtils.deleteDirectory(outputDir);
+			workspace.release(outTempDir);
+			workspace.release(inTmpDir);
+			workspace.release(outputDir);
 		}
 	}
 
@@ -1015,21 +1029,55 @@ public class TEIConverter implements Converter,ErrorHandler {
 	}
 
 	/*
-	 * Setups new URIResolver for XSLT compiler and returns StreamSource of XSL
-	 * transform scheme.
+	 * Returns compiled stylesheet of profile for selected format and direction.
 	 */
-	private StreamSource resolveConfiguration(final String id, 
-						  XsltCompiler comp, String profile, String direction) throws IOException {
-		comp.setURIResolver(TEIConverterURIResolver
-				.newInstance(ConverterConfiguration.STYLESHEETS_PATH + File.separator + "profiles" + File.separator
-						+ profile + File.separator + id));
-		return new StreamSource(new FileInputStream(new File(
-				ConverterConfiguration.STYLESHEETS_PATH + File.separator + "profiles"
-						+ File.separator + profile + File.separator + id
-						+ File.separator + direction + ".xsl")));
+	private XsltExecutable getStylesheet(final String id, String profile,
+			String direction) throws IOException, SaxonApiException {
+		File profileDir = ProfileRegistry.getInstance().getProfileDir(profile, id);
+		return StylesheetCache.getInstance().getExecutable(
+				new File(profileDir, direction + ".xsl"),
+				TEIConverterURIResolver.newInstance(profileDir.getPath()));
 	}
 
+	/**
+	 * Returns conversions possible with currently registered profiles.
+	 */
 	public List<ConversionActionArguments> getPossibleConversions() {
-		return (List<ConversionActionArguments>) ConverterConfiguration.CONVERSIONS;
+		return ProfileRegistry.getInstance().getConversions();
+	}
+
+	/**
+	 * Returns tasks compiling stylesheets of every profile of every format;
+	 * sample transformations are performed only with single-document
+	 * stylesheets for TEI input.
+	 */
+	public List<Runnable> getWarmUpTasks(boolean sampleTransform) {
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		ProfileRegistry registry = ProfileRegistry.getInstance();
+		for (String profile : registry.getProfileNames()) {
+			for (Format format : Format.values()) {
+				boolean complex = format.equals(Format.DOCX) || format.equals(Format.ODT)
+					|| format.equals(Format.XLSX);
+				for (String direction : new String[] {"to", "from"}) {
+					File stylesheet = new File(registry.getProfileDir(profile,
+							format.getProfile()), direction + ".xsl");
+					if (stylesheet.isFile()) {
+						boolean sample = sampleTransform && !complex && "to".equals(direction)
+							&& ConverterConfiguration.TEI.equals(format.getFormatName())
+							&& !format.equals(Format.EPUB);
+						tasks.add(new WarmUpTask(stylesheet, !complex, sample));
+					}
+				}
+			}
+		}
+		// stylesheets used by DocXConverter for every conversion from TEI
+		for (String tool : new String[] {"fixstyle.xsl", "fixdotrels.xsl"}) {
+			File stylesheet = new File(ConverterConfiguration.STYLESHEETS_PATH + File.separator + "docx"
+					+ File.separator + "tools" + File.separator + tool);
+			if (stylesheet.isFile()) {
+				tasks.add(new WarmUpTask(stylesheet, false, false));
+			}
+		}
+		return tasks;
 	}
 }
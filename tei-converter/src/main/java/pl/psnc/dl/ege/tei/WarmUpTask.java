@@ -0,0 +1,97 @@
+package pl.psnc.dl.ege.tei;
+
+import java.io.File;
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+import org.tei.utils.SaxonProcFactory;
+
+import pl.psnc.dl.ege.utils.TempSpaceManager;
+
+/**
+ * Compiles single stylesheet into the stylesheet cache and optionally
+ * transforms a tiny TEI document with it, so that both Saxon and the JIT
+ * are warmed up before the first real conversion.
+ */
+class WarmUpTask implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(WarmUpTask.class);
+
+	private static final String SAMPLE = "<TEI xmlns=\"http://www.tei-c.org/ns/1.0\">"
+			+ "<teiHeader><fileDesc><titleStmt><title>Warm-up</title></titleStmt>"
+			+ "<publicationStmt><p/></publicationStmt><sourceDesc><p/></sourceDesc>"
+			+ "</fileDesc></teiHeader><text><body><p>Warm-up</p></body></text></TEI>";
+
+	private final File stylesheet;
+
+	private final boolean resolved;
+
+	private final boolean sampleTransform;
+
+	/**
+	 * @param stylesheet compiled stylesheet
+	 * @param resolved 'true' if stylesheet is compiled with
+	 *            TEIConverterURIResolver (as in TEIConverter), 'false' if it
+	 *            is compiled from its file (as in ComplexConverter)
+	 * @param sampleTransform perform sample transformation
+	 */
+	public WarmUpTask(File stylesheet, boolean resolved, boolean sampleTransform) {
+		this.stylesheet = stylesheet;
+		this.resolved = resolved;
+		this.sampleTransform = sampleTransform;
+	}
+
+	public void run() {
+		XsltExecutable exec;
+		try {
+			if (resolved) {
+				exec = StylesheetCache.getInstance().getExecutable(stylesheet,
+						TEIConverterURIResolver.newInstance(stylesheet.getParent()));
+			} else {
+				exec = StylesheetCache.getInstance().getExecutable(
+						new StreamSource(stylesheet));
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Could not compile " + stylesheet + " : "
+					+ ex.getMessage(), ex);
+		}
+		if (sampleTransform) {
+			transformSample(exec);
+		}
+	}
+
+	/*
+	 * Sample transformation is not required to succeed - stylesheets
+	 * usually expect parameters of real conversions.
+	 */
+	private void transformSample(XsltExecutable exec) {
+		File outputDir = null;
+		try {
+			outputDir = TempSpaceManager.getInstance().createTempDir();
+			Processor proc = SaxonProcFactory.getProcessor();
+			XdmNode sample = proc.newDocumentBuilder().build(
+					new StreamSource(new StringReader(SAMPLE)));
+			XsltTransformer transformer = exec.load();
+			transformer.setInitialContextNode(sample);
+			transformer.setBaseOutputURI(outputDir.toURI().toString());
+			Serializer result = new Serializer();
+			result.setOutputStream(new NullOutputStream());
+			transformer.setDestination(result);
+			transformer.transform();
+		} catch (Exception ex) {
+			LOGGER.debug("Sample transformation with " + stylesheet + " failed : "
+					+ ex.getMessage());
+		} finally {
+			TempSpaceManager.getInstance().release(outputDir);
+		}
+	}
+}
@@ -31,6 +31,8 @@ import org.tei.utils.XMLUtils;
 
 import org.tei.exceptions.ConfigurationException;
 
+import pl.psnc.dl.ege.utils.Workspace;
+
 import org.apache.log4j.Logger;
 
 /**
@@ -60,6 +62,21 @@ public class XlsXConverter extends ComplexConverter {
 		super(profile, fileName);
 	}
 
+	/**
+	 * Constructs converter for conversion to TEI, which keeps its
+	 * temporary files in selected workspace
+	 * 
+	 * @param profile String representing the profile name
+	 * @param fileName String holding the name of file we are converting
+	 * @param workspace workspace of the conversion
+	 * @throws IOException
+	 * @throws ConfigurationException
+	 */
+	public XlsXConverter (String profile, String fileName, Workspace workspace)
+			throws IOException, ConfigurationException {
+		super(profile, fileName, workspace);
+	}
+
 	/**
 	 * Constructs converter for conversion from TEI
 	 * 
@@ -72,6 +89,20 @@ public class XlsXConverter extends ComplexConverter {
 		super(profile);
 	}
 
+	/**
+	 * Constructs converter for conversion from TEI, which keeps its
+	 * temporary files in selected workspace
+	 * 
+	 * @param profile String representing the profile name
+	 * @param workspace workspace of the conversion
+	 * @throws IOException
+	 * @throws ConfigurationException
+	 */
+	public XlsXConverter (String profile, Workspace workspace)
+			throws IOException, ConfigurationException {
+		super(profile, workspace);
+	}
+
 	/**
 	 * Returns the name of the file containing main content used in conversion from TEI
 	 */
@@ -1,25 +1,64 @@
 package org.tei.utils;
 
+import net.sf.saxon.lib.FeatureKeys;
 import net.sf.saxon.s9api.Processor;
 
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.ege.configuration.EGEConstants;
+
 /**
  * Provides access to a Saxon Processor.
- * 
+ *
+ * The processor is created once, when the class is loaded, and shared by all
+ * converters - this way Saxon's name pool and compiled code are reused.
+ * Configuration of the processor can be tuned in oxgarage.properties:
+ * <ul>
+ * <li>saxonTreeModel - tinyTree (default), tinyTreeCondensed or linkedTree</li>
+ * <li>saxonLineNumbering - keep line numbers of source documents (default: false)</li>
+ * <li>saxonPreEvaluateDoc - evaluate doc() calls with constant arguments
+ * when a stylesheet is compiled: the document is loaded once and kept in the
+ * compiled stylesheet instead of being loaded by every transformation; it is
+ * not a pool of documents shared between stylesheets, and changes of the
+ * document are seen only after the stylesheet is compiled again
+ * (default: false)</li>
+ * </ul>
+ * There is no document pool shared by transformations - Saxon keeps loaded
+ * documents per transformation, so other doc() calls load their documents
+ * again in every transformation.
+ * The processor must not be reconfigured by its users; per transformation
+ * settings belong to XsltTransformer or DocumentBuilder.
+ *
  * @author Arno Mittelbach
  *
  */
 public class SaxonProcFactory {
 
-	private static Processor processor;
+	private static final Logger LOGGER = Logger.getLogger(SaxonProcFactory.class);
+
+	private static final Processor processor = createProcessor();
 
 	/**
 	 * Stores and reuses a Saxon processor.
 	 * @return The Saxon processor.
 	 */
 	public static Processor getProcessor(){
-		if(null == processor){
-			processor = new Processor(false);
+		return processor;
+	}
+
+	private static Processor createProcessor() {
+		Processor proc = new Processor(false);
+		String treeModel = EGEConstants.oxgProps.getProperty("saxonTreeModel", "tinyTree");
+		try {
+			proc.setConfigurationProperty(FeatureKeys.TREE_MODEL_NAME, treeModel);
+		} catch (IllegalArgumentException e) {
+			LOGGER.error("Unknown Saxon tree model : " + treeModel);
 		}
-		return processor; 
+		proc.setConfigurationProperty(FeatureKeys.LINE_NUMBERING,
+				Boolean.valueOf(EGEConstants.getBooleanProperty("saxonLineNumbering", false)));
+		proc.setConfigurationProperty(FeatureKeys.PRE_EVALUATE_DOC_FUNCTION,
+				Boolean.valueOf(EGEConstants.getBooleanProperty("saxonPreEvaluateDoc", false)));
+		proc.setConfigurationProperty(FeatureKeys.DTD_VALIDATION, Boolean.FALSE);
+		return proc;
 	}
 }